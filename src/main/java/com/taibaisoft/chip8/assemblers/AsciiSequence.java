@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only CharSequence view over a buffer of ASCII bytes, e.g. a memory mapped
+ * source file. Bytes outside of ASCII read as U+FFFD.
+ * @author jeffreybian
+ *
+ */
+class AsciiSequence implements CharSequence {
+	/* Files from this size on are memory mapped instead of read */
+	private static final long MAP_THRESHOLD = 1 << 20;
+	private final ByteBuffer buf_;
+	
+	/**
+	 * Opens the file as a sequence. Large files are memory mapped, small ones 
+	 * are read as a mapping would keep them locked on some platforms until 
+	 * garbage collected, and editors could not save over them.
+	 */
+	public static AsciiSequence open(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = ch.size();
+			if (size < MAP_THRESHOLD) {
+				return new AsciiSequence(ByteBuffer.wrap(Files.readAllBytes(file)));
+			}
+			return new AsciiSequence(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+	
+	public AsciiSequence(ByteBuffer buf) {
+		buf_ = buf;
+	}
+	@Override
+	public int length() {
+		return buf_.remaining();
+	}
+	@Override
+	public char charAt(int index) {
+		int b = buf_.get(buf_.position() + index);
+		return b >= 0 ? (char)b : '\uFFFD';
+	}
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		ByteBuffer dup = buf_.duplicate();
+		dup.position(buf_.position() + start);
+		dup.limit(buf_.position() + end);
+		return new AsciiSequence(dup.slice());
+	}
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(length());
+		sb.append(this);
+		return sb.toString();
+	}
+}
@@ -24,6 +24,8 @@
 
 package com.taibaisoft.chip8.assemblers;
 
+import java.util.Locale;
+
 public class AsmError {
 	public enum AsmErrorLevel {
 		ERROR, 
@@ -31,6 +33,8 @@ public class AsmError {
 	}
 	
 	public int lineNumber = -1;
+	/** Included file the error is in, null for the main source. */
+	public String fileName = null;
 	public int errorCode = 0;
 	public String errorMessage = "";
 	public AsmErrorLevel errorLevel = AsmErrorLevel.ERROR;
@@ -49,11 +53,13 @@ public class AsmError {
 	public static final int E_RESERVED_KEYWORD = 14;
 	public static final int E_FILE_NOT_FOUND = 15;
 	public static final int E_FILE_IO_ERROR = 16;
+	public static final int E_CIRCULAR_REFERENCE = 17;
 	public static final int E_PREPROCESS_WRONG_DIRECTIVE = 20;
 	public static final int E_PREPROCESS_UNBALANCED_IF = 21;
 	public static final int E_PREPROCESS_SYMBOL = 22;
 	public static final int E_UNUSED_SYMBOL = 23;
 	public static final int E_SYNTAX = 24;
+	public static final int E_ABORTED = 25;
 	
 	private String[] msgs_ = {
 	/*0*/   "", 
@@ -73,14 +79,15 @@ public class AsmError {
 			"Use of reserved keywords as label or variable name.",
 	/*15*/	"File not found.",
 			"File IO error.",
-			"",
+			"Circular variable definition.",
 			"",
 			"",
 	/*20*/	"Wrong preprocess directive.",
 			"Unbalanced condition checks.",
 			"Preprocessing symbole error.",
 			"Unused symbol.",
-			"Syntax error."
+			"Syntax error.",
+	/*25*/	"Assembling aborted."
 	};
 	
 	public AsmError(int code, String extra, int line) {
@@ -95,6 +102,9 @@ public class AsmError {
 	}
 	
 	public String toString() {
-		return String.format("[C%03d][Line %d] %s ", errorCode, lineNumber, errorMessage);
+		if (fileName!=null) {
+			return String.format(Locale.ENGLISH, "[C%03d][%s Line %d] %s ", errorCode, fileName, lineNumber, errorMessage);
+		}
+		return String.format(Locale.ENGLISH, "[C%03d][Line %d] %s ", errorCode, lineNumber, errorMessage);
 	}
 }
@@ -24,6 +24,8 @@
 
 package com.taibaisoft.chip8.assemblers;
 
+import java.util.Locale;
+
 
 public class AsmLine {
 	public static short UNINITIALIZED = -1;
@@ -43,6 +45,12 @@ public class AsmLine {
 	 */
 	public int offset = UNINITIALIZED;	
 	
+	/**
+	 * Address of this line as laid out by the first pass, with rebasing. It is
+	 * the value of the current address symbol (?) on this line.
+	 */
+	public int address = UNINITIALIZED;
+	
 	/** 
 	 * If this line aligns at word boundary, only available when offset is NOT -1.
 	 */
@@ -58,6 +66,16 @@ public class AsmLine {
 	 */
 	public int srcLineNo = UNINITIALIZED; 		
 	
+	/**
+	 * Name of the included file this line comes from, null for the main source.
+	 */
+	public String srcFile = null;
+	
+	/**
+	 * Ids of the symbols this line used, recorded for incremental reassembly and the optimizer only.
+	 */
+	public int[] usedSymbols = null;
+	
 	/** 
 	 * If translated, assembleOnLine() method will simply ignore this line.
 	 * Marks if this line is already generated the binary code.
@@ -65,21 +83,25 @@ public class AsmLine {
 	public boolean translated = false; 
 	
 	
+	private String srcLocation() {
+		return srcFile==null ? String.valueOf(srcLineNo) : srcFile + ":" + srcLineNo;
+	}
+	
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		if (data==null) {
-			sb.append(String.format("(%03X): %04X ; ", offset, bin));
+			sb.append(String.format(Locale.ENGLISH, "(%03X): %04X ; ", offset, bin));
 			for (String s : tokens) {
 				sb.append(s).append(" ");
 			}
-			sb.append("(").append(srcLineNo).append(")");
+			sb.append("(").append(srcLocation()).append(")");
 		} else {
-			sb.append(String.format("(%03X): ", offset));
+			sb.append(String.format(Locale.ENGLISH, "(%03X): ", offset));
 			for (byte b : data) {
-				sb.append(String.format("%02X ", b));
+				sb.append(String.format(Locale.ENGLISH, "%02X ", b));
 			}
 			sb.append(" ; Data");
-			sb.append(" (").append(srcLineNo).append(")");
+			sb.append(" (").append(srcLocation()).append(")");
 		}
 		return sb.toString();
 	}
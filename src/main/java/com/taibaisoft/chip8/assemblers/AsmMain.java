@@ -24,16 +24,33 @@
 
 package com.taibaisoft.chip8.assemblers;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.taibaisoft.chip8.platform.Arg;
 import com.taibaisoft.chip8.platform.ArgDef;
 import com.taibaisoft.chip8.platform.CmdArgs;
 import com.taibaisoft.chip8.platform.Platforms;
 import com.taibaisoft.chip8.platform.Util;
+import com.taibaisoft.chip8.processor.Chip8;
 
 public class AsmMain {
 
@@ -43,6 +60,12 @@ public class AsmMain {
     final static String ORG = "base";
     final static String PIN = "print";
     final static String HLP = "help";
+    final static String JOB = "jobs";
+    final static String OPT = "optimize";
+    final static String CYC = "cycles";
+    final static String IPS = "ips";
+    final static String STA = "stats";
+    final static String FRM = "frames";
 
     static ArgDef[] argDefArray = new ArgDef[]{
             new ArgDef(ASM, "a", "Assemble a source file.", 0, 0),
@@ -50,6 +73,12 @@ public class AsmMain {
             new ArgDef(DSM, "d", "Disassemble a binary file.", 0, 0),
             new ArgDef(ORG, "b", "Base loading address, default to 200 (hex).", 0, 1),
             new ArgDef(PIN, "p", "Print the intermediate Assembled lines to STDOUT. Good for debugging the assembler.", 0, 0),
+            new ArgDef(JOB, "j", "Assemble all .asm/.src files under the input directory, N files in parallel.", 0, 1),
+            new ArgDef(OPT, "O", "Run the peephole optimizer, and report the cycles it saves per routine.", 0, 0),
+            new ArgDef(CYC, "c", "Print the assembled lines with their cycles, and the worst cases per routine, loop and label. Model is flat, or drw to count DRW by sprite rows.", 0, 1),
+            new ArgDef(IPS, "i", "Instructions per second the cycle budget per frame is taken from, default to " + Chip8.DEFAULT_CPU_HZ + ".", 0, 1),
+            new ArgDef(STA, "s", "Count the opcodes, opcode pairs and DRW sprite heights of every program under the directory. Output is JSON if the output file ends with .json, CSV otherwise.", 0, 1),
+            new ArgDef(FRM, "f", "With --" + STA + ", also count the instructions run in the first N frames of every program.", 0, 1),
             new ArgDef(HLP, "h", "Print this quick help message.", 0, 0),
     };
 
@@ -66,6 +95,12 @@ public class AsmMain {
         int startAddress = 0x200;
         boolean showHelp = false;
         boolean print = false;
+        int jobs = 0;
+        boolean optimize = false;
+        CycleCounter cycles = null;
+        int ips = Chip8.DEFAULT_CPU_HZ;
+        String statsRoot = null;
+        int frames = 0;
 
 
         if (!Platforms.isJavaVersionOK()) {
@@ -99,6 +134,40 @@ public class AsmMain {
                 case PIN:
                     print = true;
                     break;
+                case OPT:
+                    optimize = true;
+                    break;
+                case CYC:
+                    if ("flat".equals(arg.argVal) || "drw".equals(arg.argVal)) {
+                        cycles = new CycleCounter("drw".equals(arg.argVal));
+                    } else {
+                        System.err.println("Unknown cycle model. Must be flat or drw.");
+                    }
+                    break;
+                case IPS:
+                    try {
+                        ips = Integer.parseInt(arg.argVal);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Wrong instructions per second. Must be an integer.");
+                    }
+                    break;
+                case STA:
+                    statsRoot = arg.argVal;
+                    break;
+                case FRM:
+                    try {
+                        frames = Integer.parseInt(arg.argVal);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Wrong number of frames. Must be an integer.");
+                    }
+                    break;
+                case JOB:
+                    try {
+                        jobs = Integer.parseInt(arg.argVal);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Wrong number of jobs. Must be an integer.");
+                    }
+                    break;
                 default:
                     if (input.length() == 0) {
                         // First free argument is considered as input
@@ -133,22 +202,54 @@ public class AsmMain {
             System.err.println("Option --" + PIN + " only available when in Assemble mode.");
             System.exit(1);
         }
+        if (cycles != null && !isAssemble) {
+            System.err.println("Option --" + CYC + " only available when in Assemble mode.");
+            System.exit(1);
+        }
 
         try {
-            byte[] readBytes = Files.readAllBytes(Paths.get(input));
-
-            if (isAssemble) {
-
-                String asciiString = new String(readBytes, Charset.forName("ASCII"));
+            if (statsRoot != null) {
+                countOpcodes(Paths.get(statsRoot), 0 == output.compareToIgnoreCase("stdout") ? null : Paths.get(output),
+                        jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors(), frames);
+            } else if (isAssemble) {
+
+                if (jobs > 0 || Files.isDirectory(Paths.get(input))) {
+                    assembleTree(Paths.get(input), 0 == output.compareToIgnoreCase("stdout") ? null : Paths.get(output),
+                            startAddress, jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors(), optimize);
+                    return;
+                }
 
                 Assembler asm = new Assembler();
+                asm.setOptimize(optimize);
 
                 System.out.println("Assembling: [" + input + "] => [" + output + "].\n");
-                byte[] outputContent = asm.assemble(asciiString, startAddress);
+                AsmResult result = asm.assemble(Paths.get(input), startAddress);
+                for (AsmError e : result.errors) {
+                    System.err.println(e.toString());
+                }
+                if (result.optimizerReport != null) {
+                    System.out.println(result.optimizerReport);
+                }
+                byte[] outputContent = result.binary;
 
                 if (outputContent != null) {
-                    if (print) {
-                        asm.outputLastAssembledIntermediate();
+                    if (print && cycles == null) {
+                        for (AsmLine li : result.lines) {
+                            if (li.offset != -1) {
+                                System.out.println(li.toString());
+                            }
+                        }
+                    }
+                    if (cycles != null) {
+                        for (AsmLine li : result.lines) {
+                            if (li.offset != -1) {
+                                int c = cycles.cost(li);
+                                System.out.println((c > 0 ? String.format("%3d  ", c) : "     ") + li.toString());
+                            }
+                        }
+                        System.out.println();
+                        System.out.println(cycles.report(result.lines, startAddress,
+                                Math.max(1, ips / Chip8.DEFAULT_TIMER_HZ)));
                     }
                     if (0 == output.compareToIgnoreCase("stdout")) {
                         Assembler.printBinData(outputContent, false);
@@ -160,6 +261,7 @@ public class AsmMain {
                     throw new Exception("Empty output. Unknown exceptions occurred during assembling.");
                 }
             } else {
+                byte[] readBytes = Files.readAllBytes(Paths.get(input));
                 Disassembler d = new Disassembler();
 
                 System.out.println("Disassembling: [" + input + "] => [" + output + "].\n");
@@ -172,23 +274,18 @@ public class AsmMain {
                 byte[] loadedCode = new byte[len + startAddress];
                 System.arraycopy(readBytes, 0, loadedCode, startAddress, len);
 
-                d.disassemble(loadedCode, startAddress, null);
-
-                String outputContent = d.getDisassembleResultAsString();
-                if (outputContent == null) {
-                    throw new Exception("Empty output. Unknown exceptions occurred during disassembling.");
-                }
+                // Streamed to the output, the text is never held as a whole
                 if (0 == output.compareToIgnoreCase("stdout")) {
-                    System.out.println(outputContent);
+                    Writer w = new BufferedWriter(new OutputStreamWriter(System.out, Charset.forName("ASCII")));
+                    d.disassemble(loadedCode, startAddress, w, false, false);
+                    w.flush();
+                    System.out.println();
                 } else {
-                    byte[] bytesToWrite = outputContent.getBytes(Charset.forName("ASCII"));
-
-                    if (bytesToWrite == null) {
-                        throw new Exception("Empty output. Unknown exceptions occurred during disassembling.");
+                    Path outPath = Paths.get(output);
+                    try (Writer w = Files.newBufferedWriter(outPath, Charset.forName("ASCII"))) {
+                        d.disassemble(loadedCode, startAddress, w, false, false);
                     }
-
-                    Files.write(Paths.get(output), bytesToWrite);
-                    System.out.println(bytesToWrite.length + " bytes written. Done.");
+                    System.out.println(Files.size(outPath) + " bytes written. Done.");
                 }
             }
         } catch (IOException e) {
@@ -198,4 +295,123 @@ public class AsmMain {
             System.err.println(e.getMessage());
         }
     }
+
+    /**
+     * Counts the opcodes of every program under a directory, see OpcodeStats.
+     * @param root
+     * @param output CSV or JSON file by its extension, null to print CSV.
+     * @param jobs Number of programs counted in parallel.
+     * @param frames Frames of the dynamic run, 0 for static counts only.
+     * @throws Exception
+     */
+    static void countOpcodes(Path root, Path output, int jobs, int frames) throws Exception {
+        long t0 = System.nanoTime();
+        OpcodeStats stats = OpcodeStats.collect(root, jobs, frames);
+        long ms = (System.nanoTime() - t0) / 1000000;
+        if (output == null) {
+            Writer w = new BufferedWriter(new OutputStreamWriter(System.out, Charset.forName("ASCII")));
+            stats.writeCsv(w);
+            w.flush();
+        } else {
+            try (Writer w = Files.newBufferedWriter(output, Charset.forName("ASCII"))) {
+                if (output.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".json")) {
+                    stats.writeJson(w);
+                } else {
+                    stats.writeCsv(w);
+                }
+            }
+        }
+        System.out.println(String.format("\n%d programs counted, %d failed, %d instructions run, in %d ms with %d jobs.",
+                stats.programs, stats.failed, stats.dynamicInstructions, ms, jobs));
+    }
+
+    /**
+     * Assembles every source file under root in parallel, each worker thread with an 
+     * Assembler of its own. Results are reported in file order once all are done.
+     * @param root
+     * @param outRoot Output directory mirroring root, null to write each binary next to its source.
+     * @param startAddress
+     * @param jobs Number of worker threads.
+     * @param optimize Whether to run the peephole optimizer.
+     * @throws Exception
+     */
+    static void assembleTree(final Path root, final Path outRoot, final int startAddress, int jobs, 
+            final boolean optimize) throws Exception {
+        final List<Path> sources = new ArrayList<Path>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString().toLowerCase(Locale.ENGLISH);
+                if (attrs.isRegularFile() && (name.endsWith(".asm") || name.endsWith(".src"))) {
+                    sources.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(sources);
+
+        final ThreadLocal<Assembler> assemblers = new ThreadLocal<Assembler>() {
+            @Override
+            protected Assembler initialValue() {
+                Assembler asm = new Assembler();
+                asm.setOptimize(optimize);
+                return asm;
+            }
+        };
+        System.out.println("Assembling " + sources.size() + " files under [" + root + "] with " + jobs + " jobs.\n");
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, jobs));
+        List<Future<AsmResult>> futures = new ArrayList<Future<AsmResult>>();
+        try {
+            for (final Path src : sources) {
+                futures.add(pool.submit(new Callable<AsmResult>() {
+                    @Override
+                    public AsmResult call() throws Exception {
+                        AsmResult r = assemblers.get().assemble(src, startAddress);
+                        if (r.binary != null && !r.hasErrors()) {
+                            Path out = binaryPathFor(src, root, outRoot);
+                            if (out.getParent() != null) {
+                                Files.createDirectories(out.getParent());
+                            }
+                            Files.write(out, r.binary);
+                        }
+                        return r;
+                    }
+                }));
+            }
+            int failed = 0;
+            for (int k = 0; k < sources.size(); ++k) {
+                Path src = sources.get(k);
+                try {
+                    AsmResult r = futures.get(k).get();
+                    for (AsmError e : r.errors) {
+                        System.err.println(src + ": " + e.toString());
+                    }
+                    if (r.binary == null || r.hasErrors()) {
+                        failed++;
+                    } else {
+                        System.out.println(String.format("%s => %s (%d bytes)", src, binaryPathFor(src, root, outRoot),
+                                r.binary.length));
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.err.println(src + ": " + e.getCause().getMessage());
+                }
+            }
+            System.out.println(String.format("\n%d files assembled, %d with errors in %d ms.", sources.size(), failed,
+                    (System.nanoTime() - start) / 1000000));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Path binaryPathFor(Path src, Path root, Path outRoot) {
+        String name = src.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        name = (dot > 0 ? name.substring(0, dot) : name) + ".ch8";
+        if (outRoot == null) {
+            return src.resolveSibling(name);
+        }
+        return outRoot.resolve(root.relativize(src)).resolveSibling(name);
+    }
 }
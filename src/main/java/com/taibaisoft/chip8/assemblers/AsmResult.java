@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of one Assembler.assemble() call: the binary, the diagnostics and 
+ * the assembled lines. Owned by the caller, the assembler does not touch it 
+ * again.
+ * @author jeffreybian
+ *
+ */
+public class AsmResult {
+	/** 
+	 * Assembled binary, null if assembling was aborted. 
+	 */
+	public final byte[] binary;
+	/**
+	 * Errors and warnings in the order found.
+	 */
+	public final List<AsmError> errors;
+	/**
+	 * All source lines, with their offsets and translated code.
+	 */
+	public final List<AsmLine> lines;
+	/**
+	 * Real paths of the source file and every file it included.
+	 */
+	public final List<Path> sources;
+	/**
+	 * What the peephole optimizer did and the cycles it saved, null if it did not run.
+	 */
+	public final String optimizerReport;
+	
+	AsmResult(byte[] binary, List<AsmError> errors, List<AsmLine> lines, List<Path> sources) {
+		this(binary, errors, lines, sources, null);
+	}
+	AsmResult(byte[] binary, List<AsmError> errors, List<AsmLine> lines, List<Path> sources, String optimizerReport) {
+		this.binary = binary;
+		this.errors = Collections.unmodifiableList(errors);
+		this.lines = Collections.unmodifiableList(lines);
+		this.sources = Collections.unmodifiableList(sources);
+		this.optimizerReport = optimizerReport;
+	}
+	
+	/**
+	 * @return true if any of the diagnostics is an error rather than a warning.
+	 */
+	public boolean hasErrors() {
+		return hasErrors(errors);
+	}
+	static boolean hasErrors(List<AsmError> errors) {
+		for (AsmError e : errors) {
+			if (e.errorLevel == AsmError.AsmErrorLevel.ERROR) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
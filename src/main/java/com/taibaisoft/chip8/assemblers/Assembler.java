@@ -29,14 +29,17 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 import com.taibaisoft.chip8.platform.Util;
@@ -59,11 +62,8 @@ public class Assembler {
 	public static final char CHAR_QUOTE = '\'';
 	public static final char TK_DELIM_04 = '='; // Well! This is not really a delim
 	public static final char CHAR_COMMENT_START = ';';
-	private static final int MAX_PASSES = 32;
 	private static final int FIRST_PASS = 0;
-	private static final int SECOND_PASS = 1;
-	private static final int MAX_SYMBOL_RESOLUTION_PASSES = 32;
-	private static final int lastPass_ = MAX_PASSES - 1; 
+	private static final int FINAL_PASS = 1;
 	private static final int S_IF = 1;
 	private static final int S_ELSE = 2;
 	private static final int S_ENDIF = -1;
@@ -86,6 +86,41 @@ public class Assembler {
 		"V0", "V1", "V2", "V3", "V4", "V5", "V6", "V7", "V8", "V9", 
 		"VA", "VB", "VC", "VD", "VE", "VF",		
 	}; 
+	/* 
+	 * Perfect hash of the reserved keywords, upper cased. The seed is searched 
+	 * once so that no two keywords share a slot, a lookup is then one hash and 
+	 * at most one comparison.
+	 */
+	private static final int RESERVED_TABLE_BITS = 8;
+	private static String[] reservedTable_ = new String[1 << RESERVED_TABLE_BITS];
+	private static int reservedSeed_ = 0;
+	static {
+		search:
+		for (;; ++reservedSeed_) {
+			Arrays.fill(reservedTable_, null);
+			for (String w : reservedKeywords_) {
+				String u = w.toUpperCase(Locale.ENGLISH);
+				int i = reservedHash(u, reservedSeed_);
+				if (reservedTable_[i] != null && !reservedTable_[i].equals(u)) {
+					continue search;
+				}
+				reservedTable_[i] = u;
+			}
+			break;
+		}
+	}
+	private static int reservedHash(CharSequence s, int seed) {
+		int h = 0x811C9DC5 ^ seed;
+		int len = s.length();
+		for (int i = 0; i < len; ++i) {
+			h = (h ^ Character.toUpperCase(s.charAt(i))) * 0x01000193;
+		}
+		return (h ^ (h >>> 15)) & ((1 << RESERVED_TABLE_BITS) - 1);
+	}
+	static boolean isReservedWord(String s) {
+		String w = reservedTable_[reservedHash(s, reservedSeed_)];
+		return w != null && w.equalsIgnoreCase(s);
+	}
 	
 	@SuppressWarnings("unused")
 	private int lineCounter_ = 0;
@@ -98,22 +133,71 @@ public class Assembler {
 			
 	private Stack<Stack<Integer>> ifStackStack_ = new Stack<Stack<Integer>>();
 
-	private HashMap<String, Integer> symbolTable_ = new HashMap<String, Integer>();
-	private HashMap<String, Integer> symbolLineNumMap_ = new HashMap<String, Integer>();
+	private SymbolTable symbolTable_ = new SymbolTable();
+	/** Id of the current address symbol (?), updated on every line. */
+	private final int currentAddressId_ = symbolTable_.intern("?");
 	private List<AsmLine> lines_ = new ArrayList<AsmLine>();
 	private int startAddress_ = 0x200;
 	private int currentOffset_ = 0;	/* Offset pointer in bytes */
 	private int currentPass_ = 0;
 	private List<AsmError> errors_ = new ArrayList<AsmError>();
 			
-	private ExpressionParser ep_ = new ExpressionParser();
+	private ExpressionParser ep_ = new ExpressionParser(symbolTable_);
 	private Tokenizer tk_ = new Tokenizer();
+	/* Directory of the main source, include file names are relative to it. Null for the working directory */
+	private Path sourceDir_ = null;
+	/* Real paths of the files being expanded, to catch files including themselves */
+	private ArrayDeque<Path> includeStack_ = new ArrayDeque<Path>();
+	/* Real path of the main source, null if not assembling from a file */
+	private Path mainSource_ = null;
+	/* Real paths of all files read by the current run */
+	private List<Path> sources_ = new ArrayList<Path>();
+	
+	/* ---- Incremental reassembly, see setIncremental() ---- */
+	private boolean incremental_ = false;
+	/* Token lists of the included files of the current run, as handed out by IncludeCache */
+	private HashMap<Path, List<TokenizedLine>> includedLists_ = new HashMap<Path, List<TokenizedLine>>();
+	/* State of the last error free run, lastResult_ is null if there is none */
+	private AsmResult lastResult_ = null;
+	private String lastSource_ = null;
+	private Path lastMainSource_ = null;
+	private int lastStartAddress_ = 0;
+	private HashMap<Path, List<TokenizedLine>> lastIncludedLists_ = null;
+	/* Number of uses of each symbol id by all lines of the last result */
+	private int[] useCounts_ = new int[0];
+	
+	/* ---- Peephole optimization, see setOptimize() ---- */
+	private boolean optimize_ = false;
+	private String optimizerReport_ = null;
+	private static final int OPTIMIZER_ROUNDS = 4;
+	
+	/* Heads of the lines that always translate to one 2 byte instruction */
+	private static final Set<String> instructions_ = new HashSet<String>(Arrays.asList(
+		Mnemonics.ADD, Mnemonics.AND, Mnemonics.OR, Mnemonics.XOR, Mnemonics.CALL, Mnemonics.CLS,
+		Mnemonics.DRW, Mnemonics.EXT, Mnemonics.HIGH, Mnemonics.JP, Mnemonics.LD, Mnemonics.LOW,
+		Mnemonics.RET, Mnemonics.RND, Mnemonics.SCD, Mnemonics.SCL, Mnemonics.SCR, Mnemonics.SE,
+		Mnemonics.SNE, Mnemonics.SHL, Mnemonics.SHR, Mnemonics.SKP, Mnemonics.SKNP, Mnemonics.SUB,
+		Mnemonics.SUBN, Mnemonics.SYS));
 	
 	/**
-	 * A map for storing unresolved expressions, indexed by its corresponding source line number.
-	 * Value is the expression string and the current assembly memory address value pair.
+	 * A variable whose expression could not be evaluated during the layout pass.
+	 */
+	private static class PendingSymbol {
+		final String expr;
+		final AsmLine line;
+		PendingSymbol(String expr, AsmLine line) {
+			this.expr = expr;
+			this.line = line;
+		}
+	}
+	/**
+	 * A map for storing unresolved expressions, indexed by the variable name.
+	 */
+	private HashMap<String, PendingSymbol> unresolved_ = new HashMap<String, PendingSymbol>();
+	/**
+	 * Lines left untranslated by the layout pass because of forward references.
 	 */
-	private HashMap<String, String> unresolved_ = new HashMap<String, String>();
+	private List<AsmLine> pending_ = new ArrayList<AsmLine>();
 	
 	public Assembler() {
 		
@@ -121,27 +205,68 @@ public class Assembler {
 	public void init(int startAddress) {
 		wordAlign_ = true;
 		skip_ = false;
+		warnUnusedSymbols_ = true;
+		autoUseSymbols_ = false;
 		ifStackStack_.clear();
 		symbolTable_.clear();
-		lines_.clear();
+		// Handed over to the result of the previous run, never cleared
+		lines_ = new ArrayList<AsmLine>();
+		errors_ = new ArrayList<AsmError>();
+		sources_ = new ArrayList<Path>();
+		includedLists_ = new HashMap<Path, List<TokenizedLine>>();
+		optimizerReport_ = null;
+		if (mainSource_ != null) {
+			sources_.add(mainSource_);
+		}
 		unresolved_.clear();
+		pending_.clear();
 		currentPass_ = 0;
 		currentOffset_ = 0;
 		lineCounter_ = 0;
 		startAddress_ = startAddress;
-		symbolLineNumMap_.clear();
 		ep_.init();
 		ifStackStack_.clear();
 	}
-	public byte[] assemble(String input, int startAddress) {
-		Locale defaultLc = Locale.getDefault();
-		Locale.setDefault(Locale.ENGLISH);
-		
+	/**
+	 * Assembles a source file, large files are memory mapped rather than read into a String.
+	 * @param file
+	 * @param startAddress
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized AsmResult assemble(Path file, int startAddress) throws IOException {
+		try {
+			Path realPath = file.toRealPath();
+			sourceDir_ = realPath.getParent();
+			includeStack_.push(realPath);
+			mainSource_ = realPath;
+			return assemble(AsciiSequence.open(file), startAddress);
+		} finally {
+			mainSource_ = null;
+			sourceDir_ = null;
+			includeStack_.clear();
+		}
+	}
+	/**
+	 * Assembles the source. Nothing global is touched and nothing is printed, all 
+	 * diagnostics come back in the result. An instance assembles one source at a 
+	 * time, concurrent calls on the same instance wait for each other.
+	 * @param input
+	 * @param startAddress
+	 * @return null if input is null.
+	 */
+	public synchronized AsmResult assemble(CharSequence input, int startAddress) {
 		byte[] binfinal = null;
 		
 		if (input==null) {
 			return null;
 		}
+		if (incremental_ && !optimize_) {
+			AsmResult r = reassemble(input, startAddress);
+			if (r != null) {
+				return r;
+			}
+		}
 		
 		try {
 			// 0. Reinitialize 	
@@ -153,72 +278,500 @@ public class Assembler {
 			// - Deals with include preprocessor, which is special.
 			preprocess(input);
 			
-			// 2. Iterates each asm line and try filling up bin field.
-			int len = lines_.size();
-			boolean stopError = false;
-			do {
-				boolean fulfilled = true;
-				if (currentPass_==SECOND_PASS) {
-					// Before second pass, try resolving all the unresolved.
-					resolveAllIntermediateExpr();
+			// 2. - 6. Layout, resolving, final pass and encoding
+			binfinal = translate();
+			
+			// 7. Optional peephole optimization, see setOptimize()
+			if (optimize_ && binfinal != null && !AsmResult.hasErrors(errors_)) {
+				binfinal = optimize(binfinal, startAddress);
+			}
+		} catch (Exception e) {
+			errors_.add(new AsmError(AsmError.E_ABORTED, e.getMessage(), -1));
+		}
+		AsmResult result = new AsmResult(binfinal, errors_, lines_, sources_, optimizerReport_);
+		if (incremental_ && !optimize_) {
+			keepState(input, result);
+		}
+		return result;
+	}
+	/**
+	 * Steps 2 to 6 of assemble(), over the lines left by the preprocessor.
+	 * @return The binary.
+	 * @throws Exception
+	 */
+	private byte[] translate() throws Exception {
+		// 2. Layout pass, fixes the offset of every line and the value of every label,
+		// and translates everything not depending on a forward reference.
+		boolean stopError = false;
+		currentPass_ = FIRST_PASS;
+		for (AsmLine tl : lines_) {
+			int errorCount = errors_.size();
+			assembleLine(tl);
+			if (!tl.translated && errors_.size() == errorCount) {
+				pending_.add(tl);
+			}
+			setErrorFile(errorCount, tl.srcFile);
+		}
+		
+		// 3. Resolves the forward referencing variables in dependency order.
+		resolveAllIntermediateExpr();
+		
+		// 4. Final pass, only over the lines left by the layout pass. Whatever is 
+		// still unresolved now is undefined.
+		currentPass_ = FINAL_PASS;
+		for (AsmLine tl : pending_) {
+			if (!tl.translated) {
+				int errorCount = errors_.size();
+				symbolTable_.set(currentAddressId_, tl.address);
+				assembleLine(tl);
+				setErrorFile(errorCount, tl.srcFile);
+			}
+		}
+		
+		// 5. Collect further warnings, like unused symbols
+		if (warnUnusedSymbols_) {
+			int n = symbolTable_.size();
+			for (int id = 0; id < n; ++id) {
+				if (symbolTable_.isDefined(id) && !symbolTable_.isUsed(id)) {
+					errors_.add(new AsmError(AsmError.E_UNUSED_SYMBOL, symbolTable_.nameOf(id), 
+							symbolTable_.getLine(id), AsmError.AsmErrorLevel.WARNING));
+					setErrorFile(errors_.size() - 1, symbolTable_.getFile(id));
 				}
-				for (int i = 0; i<len ; ++i) {
-					AsmLine tl = lines_.get(i);
-					if (!tl.translated) {
-						assembleOneLine(tl);
-						if ( fulfilled ) {
-							fulfilled = false;
-						}
+			}
+			
+		}
+		
+		// 6. Encode memory addresses.
+		byte[] binfinal = null;
+		if (!stopError) {
+			// Note: BIG endian
+			binfinal = encodeBinary();
+			//printBinData(binfinal, false);
+		}
+		return binfinal;
+	}
+	/**
+	 * Runs the Optimizer over the lines of the run just done, and lays out what 
+	 * it rewrote again, for a few rounds as one rewrite can open the way for 
+	 * another. The diagnostics stay those of the source as written. A round that 
+	 * does not assemble cleanly is dropped.
+	 * @param binary
+	 * @param startAddress
+	 * @return The binary of the last good round.
+	 */
+	private byte[] optimize(byte[] binary, int startAddress) {
+		Optimizer opt = new Optimizer(symbolTable_, currentAddressId_);
+		List<AsmError> errors = errors_;
+		List<Path> sources = sources_;
+		List<AsmLine> lines = lines_;
+		for (int round = 0; round < OPTIMIZER_ROUNDS; ++round) {
+			List<AsmLine> rewritten = opt.rewrite(lines_, startAddress, binary.length);
+			if (rewritten == null) {
+				break;
+			}
+			init(startAddress);
+			lines_.addAll(rewritten);
+			byte[] b = null;
+			try {
+				b = translate();
+			} catch (Exception e) {
+				b = null;
+			}
+			if (b == null || AsmResult.hasErrors(errors_)) {
+				break;
+			}
+			opt.commit();
+			binary = b;
+			lines = lines_;
+		}
+		errors_ = errors;
+		sources_ = sources;
+		lines_ = lines;
+		optimizerReport_ = opt.report();
+		return binary;
+	}
+	
+	/**
+	 * With incremental on, every run keeps what it needs to reassemble the next 
+	 * version of the same source by only translating the lines that changed, see
+	 * reassemble(). Meant for assembling the same source over and over, e.g. in 
+	 * watch mode.
+	 * @param on
+	 */
+	public synchronized void setIncremental(boolean on) {
+		incremental_ = on;
+		lastResult_ = null;
+	}
+	
+	/**
+	 * With optimize on, every run that assembles without errors goes on through 
+	 * the peephole Optimizer, and its result carries the optimizer's report. 
+	 * Incremental reassembly is not done while optimizing.
+	 * @param on
+	 */
+	public synchronized void setOptimize(boolean on) {
+		optimize_ = on;
+	}
+	
+	private void assembleLine(AsmLine tl) {
+		if (!incremental_ && !optimize_) {
+			assembleOneLine(tl);
+			return;
+		}
+		symbolTable_.startRecording();
+		assembleOneLine(tl);
+		int[] used = symbolTable_.stopRecording();
+		if (tl.usedSymbols == null || tl.usedSymbols.length == 0) {
+			tl.usedSymbols = used;
+		} else if (used.length > 0) {
+			int[] all = Arrays.copyOf(tl.usedSymbols, tl.usedSymbols.length + used.length);
+			System.arraycopy(used, 0, all, tl.usedSymbols.length, used.length);
+			tl.usedSymbols = all;
+		}
+	}
+	
+	private void keepState(CharSequence input, AsmResult result) {
+		lastResult_ = null;
+		if (result.binary == null || result.hasErrors()) {
+			return;
+		}
+		int n = symbolTable_.size();
+		useCounts_ = new int[n];
+		for (AsmLine l : result.lines) {
+			countUses(l, 1);
+		}
+		for (int id = 0; id < n; ++id) {
+			// Marked used by no line, like ?, stays used
+			if (symbolTable_.isUsed(id) && useCounts_[id] == 0) {
+				useCounts_[id] = 1;
+			}
+		}
+		lastSource_ = input.toString();
+		lastMainSource_ = mainSource_;
+		lastStartAddress_ = startAddress_;
+		lastIncludedLists_ = includedLists_;
+		lastResult_ = result;
+	}
+	private void countUses(AsmLine l, int d) {
+		if (l.usedSymbols == null) {
+			return;
+		}
+		for (int id : l.usedSymbols) {
+			if (id >= useCounts_.length) {
+				useCounts_ = Arrays.copyOf(useCounts_, Math.max(id + 1, useCounts_.length * 2));
+			}
+			useCounts_[id] += d;
+		}
+	}
+	
+	/**
+	 * The incremental path of assemble(). Taken only if the last run of this instance
+	 * assembled the same source without errors, no included file has changed since, 
+	 * and the changed lines are instructions or variable assignments replaced one for 
+	 * one, so no offset or label moves. Only the changed lines are tokenized, and only 
+	 * they and the lines using a variable whose value changed are translated again and
+	 * patched into a copy of the last binary. An edit that leads to errors takes a full
+	 * run as well.
+	 * @param input
+	 * @param startAddress
+	 * @return null if a full run is needed.
+	 */
+	protected AsmResult reassemble(CharSequence input, int startAddress) {
+		AsmResult last = lastResult_;
+		if (last == null || startAddress != lastStartAddress_ 
+				|| (mainSource_ == null ? lastMainSource_ != null : !mainSource_.equals(lastMainSource_))) {
+			return null;
+		}
+		// The symbol table is changed on the way, a run that gives up leaves nothing to reuse
+		lastResult_ = null;
+		try {
+			for (Map.Entry<Path, List<TokenizedLine>> e : lastIncludedLists_.entrySet()) {
+				if (IncludeCache.get(e.getKey()) != e.getValue()) {
+					return null;
+				}
+			}
+			
+			// 1. The changed range in whole lines, [start, oldEnd) of the last source 
+			// became [start, newEnd) 
+			String old = lastSource_;
+			String src = input.toString();
+			int oldLen = old.length();
+			int newLen = src.length();
+			int min = Math.min(oldLen, newLen);
+			int p = 0;
+			while (p < min && old.charAt(p) == src.charAt(p)) {
+				++p;
+			}
+			if (p == oldLen && p == newLen) {
+				lastResult_ = last;
+				return last;
+			}
+			int start = p;
+			while (start > 0 && !isLineStart(old, start)) {
+				--start;
+			}
+			int s = 0;
+			while (s < min - start && old.charAt(oldLen - 1 - s) == src.charAt(newLen - 1 - s)) {
+				++s;
+			}
+			// The line break in front of oldEnd has to be part of the common suffix
+			int oldEnd = Math.min(oldLen - s + 1, oldLen);
+			while (oldEnd < oldLen && !isLineStart(old, oldEnd)) {
+				++oldEnd;
+			}
+			int newEnd = newLen - (oldLen - oldEnd);
+			int firstLine = countLines(old, 0, start);
+			int lastLine = firstLine + countLines(old, start, oldEnd);
+			int delta = countLines(src, start, newEnd) - (lastLine - firstLine);
+			List<TokenizedLine> oldRange = tokenizeRange(old, start, oldEnd);
+			List<TokenizedLine> newRange = tokenizeRange(src, start, newEnd);
+			if (oldRange.size() != newRange.size()) {
+				return null;
+			}
+			
+			// 2. Replaces the lines of the range one for one
+			List<AsmLine> lines = new ArrayList<AsmLine>(last.lines);
+			int first = 0;
+			while (first < lines.size() && (lines.get(first).srcFile != null || lines.get(first).srcLineNo <= firstLine)) {
+				++first;
+			}
+			ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+			for (int k = 0; k < oldRange.size(); ++k) {
+				String[] ot = oldRange.get(k).tokens;
+				String[] nt = newRange.get(k).tokens;
+				if (first + k >= lines.size()) {
+					return null;
+				}
+				AsmLine ol = lines.get(first + k);
+				if (ol.srcFile != null || ol.srcLineNo != firstLine + oldRange.get(k).lineNo || !Arrays.equals(ol.tokens, ot)) {
+					return null;
+				}
+				if (isInstructionLine(ot) && isInstructionLine(nt)) {
+					if (ol.offset < 0) {
+						return null;
 					}
+				} else if (!(isAssignmentLine(ot) && isAssignmentLine(nt) && ot[0].equals(nt[0]) 
+						&& isOnlyDefinition(ot[0], ol, lines))) {
+					return null;
 				}
-
-				currentPass_++;
-				/*
-				// Find any stop errors
-				if (errors_.size()>0) {
-					for (AsmError e : errors_) {
-						if (e.errorLevel==AsmError.AsmErrorLevel.ERROR) {
-							stopError = true;
-							break;
-						}
+				AsmLine nl = copyLine(ol);
+				nl.tokens = nt;
+				nl.srcLineNo = firstLine + newRange.get(k).lineNo;
+				lines.set(first + k, nl);
+				work.add(first + k);
+			}
+			// Lines and symbols after the range move by delta lines
+			if (delta != 0) {
+				for (int i = first + oldRange.size(); i < lines.size(); ++i) {
+					AsmLine l = lines.get(i);
+					if (l.srcFile == null && l.srcLineNo > lastLine) {
+						AsmLine c = copyLine(l);
+						c.srcLineNo += delta;
+						lines.set(i, c);
 					}
 				}
-				*/
-				if (fulfilled || stopError) {
-					break;
+				for (int id = 0; id < symbolTable_.size(); ++id) {
+					if (symbolTable_.getFile(id) == null && symbolTable_.getLine(id) > lastLine) {
+						symbolTable_.setLine(id, symbolTable_.getLine(id) + delta);
+					}
 				}
-			} while(currentPass_<MAX_PASSES);
+			}
 			
-			// 3. Collect further warnings, like unused symbols
-			if (warnUnusedSymbols_) {
-				for(String v : symbolTable_.keySet()) {
-					if (!ep_.getUsedSymbolSet().contains(v) ) {
-						int lineNo = -1;
-						if ( symbolLineNumMap_.containsKey(v) ) {
-							lineNo = symbolLineNumMap_.get(v);
+			// 3. Translates the changed lines, and the users of every variable that changed
+			lines_ = lines;
+			errors_ = new ArrayList<AsmError>();
+			currentPass_ = FINAL_PASS;
+			skip_ = false;
+			Set<Integer> replaced = new HashSet<Integer>(work);
+			Set<Integer> queued = new HashSet<Integer>(work);
+			Set<Integer> evaluated = new HashSet<Integer>();
+			while (!work.isEmpty()) {
+				int i = work.poll();
+				queued.remove(i);
+				AsmLine l = lines.get(i);
+				if (!isAssignmentLine(l.tokens)) {
+					translateAgain(l);
+					continue;
+				}
+				if (!evaluated.add(i)) {
+					// Depends on itself through other variables
+					return null;
+				}
+				int id = symbolTable_.intern(l.tokens[0]);
+				int before = symbolTable_.get(id);
+				autoUseSymbols_ = l.usedSymbols != null && contains(l.usedSymbols, id);
+				translateAgain(l);
+				if (symbolTable_.get(id) == before) {
+					continue;
+				}
+				for (int j = 0; j < lines.size(); ++j) {
+					AsmLine d = lines.get(j);
+					if (j == i || !contains(d.usedSymbols, id)) {
+						continue;
+					}
+					if (isInstructionLine(d.tokens)) {
+						if (d.offset < 0) {
+							return null;
 						}
-						errors_.add(new AsmError(AsmError.E_UNUSED_SYMBOL, v, lineNo, AsmError.AsmErrorLevel.WARNING));
+					} else if (!isAssignmentLine(d.tokens) || !isOnlyDefinition(d.tokens[0], d, lines)) {
+						return null;
+					}
+					if (replaced.add(j)) {
+						lines.set(j, copyLine(d));
+					}
+					if (queued.add(j)) {
+						work.add(j);
 					}
 				}
-				
 			}
 			
-			for (AsmError e : errors_) {
-				System.err.println(e.toString());
+			// 4. Patches the binary
+			byte[] binary = Arrays.copyOf(last.binary, last.binary.length);
+			for (int i : replaced) {
+				AsmLine l = lines.get(i);
+				if (l.offset >= 0 && l.data == null) {
+					if (l.offset + 2 > binary.length) {
+						return null;
+					}
+					binary[l.offset] = (byte)(l.bin >> 8);
+					binary[l.offset + 1] = (byte)l.bin;
+				}
+			}
+			
+			// 5. Unused symbols, from the use counts
+			if (warnUnusedSymbols_) {
+				int n = symbolTable_.size();
+				for (int id = 0; id < n; ++id) {
+					if (symbolTable_.isDefined(id) && (id >= useCounts_.length || useCounts_[id] == 0)) {
+						errors_.add(new AsmError(AsmError.E_UNUSED_SYMBOL, symbolTable_.nameOf(id), 
+								symbolTable_.getLine(id), AsmError.AsmErrorLevel.WARNING));
+						setErrorFile(errors_.size() - 1, symbolTable_.getFile(id));
+					}
+				}
 			}
 			
-			// 4. Encode memory addresses.
-			if (!stopError) {
-				// Note: BIG endian
-				binfinal = encodeBinary();
-				//printBinData(binfinal, false);
+			AsmResult result = new AsmResult(binary, errors_, lines, last.sources);
+			if (result.hasErrors()) {
+				// Errors are reported the way a full run does, with every line they affect
+				return null;
 			}
+			lastSource_ = src;
+			lastResult_ = result;
+			return result;
 		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			Locale.setDefault(defaultLc);
+			return null;
 		}
-		return binfinal;
+	}
+	private void translateAgain(AsmLine l) {
+		int errorCount = errors_.size();
+		countUses(l, -1);
+		l.translated = false;
+		symbolTable_.set(currentAddressId_, l.address);
+		symbolTable_.startRecording();
+		assembleOneLine(l);
+		l.usedSymbols = symbolTable_.stopRecording();
+		countUses(l, 1);
+		setErrorFile(errorCount, l.srcFile);
+	}
+	private static AsmLine copyLine(AsmLine l) {
+		AsmLine c = new AsmLine();
+		c.bin = l.bin;
+		c.data = l.data;
+		c.offset = l.offset;
+		c.address = l.address;
+		c.align = l.align;
+		c.tokens = l.tokens;
+		c.srcLineNo = l.srcLineNo;
+		c.srcFile = l.srcFile;
+		c.usedSymbols = l.usedSymbols;
+		c.translated = l.translated;
+		return c;
+	}
+	private static boolean contains(int[] a, int id) {
+		if (a != null) {
+			for (int x : a) {
+				if (x == id) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	private static boolean sameFile(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	static boolean isMnemonic(String head) {
+		return instructions_.contains(head);
+	}
+	private static boolean isInstructionLine(String[] t) {
+		return t.length > 0 && instructions_.contains(t[0]) 
+				&& (t.length < 2 || t[1].compareTo(Tokenizer.S_LABEL_SUFFIX) != 0);
+	}
+	private static boolean isAssignmentLine(String[] t) {
+		return t.length == 3 && (t[1].compareTo(Directives.I_EQU) == 0 || t[1].compareTo(Directives.I_EQU_SIGN) == 0);
+	}
+	/**
+	 * @return true if the variable name is defined by line and nowhere else, and 
+	 * no line other than instructions and assignments mentions it, like an IFDEF.
+	 */
+	private boolean isOnlyDefinition(String name, AsmLine line, List<AsmLine> lines) {
+		int id = symbolTable_.find(name);
+		if (id == SymbolTable.NOT_FOUND || !symbolTable_.isDefined(id) 
+				|| !sameFile(symbolTable_.getFile(id), line.srcFile) || symbolTable_.getLine(id) != line.srcLineNo) {
+			return false;
+		}
+		for (AsmLine l : lines) {
+			if (l == line) {
+				continue;
+			}
+			String[] t = l.tokens;
+			for (int j = 0; j < t.length; ++j) {
+				if (t[j].compareTo(name) != 0) {
+					continue;
+				}
+				boolean usedByAssignment = j == 2 && isAssignmentLine(t);
+				if (!usedByAssignment && !isInstructionLine(t)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	private List<TokenizedLine> tokenizeRange(CharSequence src, int from, int to) {
+		final List<TokenizedLine> r = new ArrayList<TokenizedLine>();
+		tk_.tokenize(src.subSequence(from, to), new Tokenizer.LineHandler() {
+			@Override
+			public void handleLine(int lineNo, String[] tokens) {
+				if (tokens.length > 0) {
+					TokenizedLine tl = new TokenizedLine();
+					tl.lineNo = lineNo;
+					tl.tokens = tokens;
+					r.add(tl);
+				}
+			}
+		});
+		return r;
+	}
+	/**
+	 * Same line breaks as the Tokenizer: \r\n, single \r or single \n.
+	 */
+	private static boolean isLineStart(CharSequence s, int i) {
+		if (i == 0 || i >= s.length()) {
+			return true;
+		}
+		char c = s.charAt(i - 1);
+		return c == '\n' || (c == '\r' && s.charAt(i) != '\n');
+	}
+	private static int countLines(CharSequence s, int from, int to) {
+		int n = 0;
+		int len = s.length();
+		for (int i = from; i < to; ++i) {
+			char c = s.charAt(i);
+			if (c == '\n' || (c == '\r' && (i + 1 >= len || s.charAt(i + 1) != '\n'))) {
+				++n;
+			}
+		}
+		return n;
 	}
 	
 	protected byte[] encodeBinary() throws Exception {
@@ -241,19 +794,12 @@ public class Assembler {
 		int p = bb.position();
 		return Arrays.copyOf(bb.array(), p);
 	}
-	public void outputLastAssembledIntermediate() {
-		for (AsmLine li : lines_) {
-			if (li.offset!=-1)
-				System.out.println(li.toString());
-		}
-	}
-	
 	public static void printBinData(byte[] data, boolean compact) {
 		if (data!=null) {
 			StringBuilder sb = new StringBuilder();
 			int c = 0;
 			for (byte b : data) {
-				sb.append(String.format("%02X", b));				
+				sb.append(String.format(Locale.ENGLISH, "%02X", b));				
 				if (!compact) {
 					c++;
 					if (c%2==0) {
@@ -308,13 +854,7 @@ public class Assembler {
 	
 	private boolean checkReservedWord(String s, int lineNo) {
 		// By pass null checks
-		boolean r = false;
-		for (String w : reservedKeywords_) {
-			if (w.compareToIgnoreCase(s)==0) {
-				r = true;
-				break;
-			}
-		}
+		boolean r = isReservedWord(s);
 		if (r) {
 			errors_.add(new AsmError(AsmError.E_RESERVED_KEYWORD, "(" + s + ")", lineNo));
 		}
@@ -375,9 +915,9 @@ public class Assembler {
 	 * @return
 	 */
 	private Pair<Boolean, Integer> checkOperandAndRange(String oName, String expr, int nPowerOfTwo, int lineNo) {
-		Pair<Boolean, Integer> p = ep_.parse(expr, symbolTable_);
+		Pair<Boolean, Integer> p = ep_.parse(expr);
 		if (!p.first) {
-			if (currentPass_ == lastPass_) {
+			if (currentPass_ == FINAL_PASS) {
 				errors_.add(new AsmError(
 						AsmError.E_UNDEFINED_VARIABLE, "(" +oName+ ")",
 						lineNo));
@@ -390,42 +930,68 @@ public class Assembler {
 		}
 		return p;
 	}
-	/*
-	 * Worst O(n*n), not good.
+	/**
+	 * Evaluates the variables left by the layout pass in topological order of 
+	 * their dependencies on each other, so every expression is evaluated once.
+	 * The variables left over are part of, or depend on, a cycle.
 	 */
 	protected void resolveAllIntermediateExpr() {
-		int x = 0;
-		do {
-			Iterator<Map.Entry<String,String>> iter = unresolved_.entrySet().iterator();
-			while (iter.hasNext()) {
-			    String uvar = iter.next().getKey();
-			    if ( resolveIntermediateExpr(uvar) ) {
-			    	iter.remove();
-			    }
+		HashMap<String, List<String>> dependents = new HashMap<String, List<String>>();
+		HashMap<String, Integer> inDegree = new HashMap<String, Integer>();
+		ArrayDeque<String> ready = new ArrayDeque<String>();
+		
+		for (Map.Entry<String, PendingSymbol> e : unresolved_.entrySet()) {
+			String name = e.getKey();
+			int n = 0;
+			for (int id : ep_.getReferencedSymbols(e.getValue().expr)) {
+				String dep = symbolTable_.nameOf(id);
+				if (!symbolTable_.isDefined(id) && unresolved_.containsKey(dep)) {
+					List<String> l = dependents.get(dep);
+					if (l == null) {
+						l = new ArrayList<String>();
+						dependents.put(dep, l);
+					}
+					l.add(name);
+					n++;
+				}
 			}
-			if (x>0) {
-				break;
+			inDegree.put(name, n);
+			if (n == 0) {
+				ready.add(name);
 			}
-			x++;
-		} while( !unresolved_.entrySet().isEmpty() );
-		/*
-		if (!unresolved_.entrySet().isEmpty()) {
-			StringBuilder sb = new StringBuilder("Unresolved expressions: ");
-			for (String s : unresolved_.keySet()) {
-				sb.append(s).append(", ");
+		}
+		while (!ready.isEmpty()) {
+			String name = ready.poll();
+			inDegree.remove(name);
+			resolveIntermediateExpr(name);
+			// Dependents are released even if this one failed, they will report it at the final pass
+			List<String> l = dependents.get(name);
+			if (l != null) {
+				for (String d : l) {
+					int n = inDegree.get(d) - 1;
+					inDegree.put(d, n);
+					if (n == 0) {
+						ready.add(d);
+					}
+				}
 			}
-			System.err.println(sb.toString());
 		}
-		*/
+		for (String name : inDegree.keySet()) {
+			AsmLine line = unresolved_.get(name).line;
+			errors_.add(new AsmError(AsmError.E_CIRCULAR_REFERENCE, "(" + name + ")", line.srcLineNo));
+			setErrorFile(errors_.size() - 1, line.srcFile);
+			line.translated = true;
+		}
 	}
 	protected boolean resolveIntermediateExpr(String i) {
 		// To save some computations, first see if in symbolTable_
-		if ( symbolTable_.containsKey(i) ) {
+		if ( symbolTable_.isDefined(i) ) {
 			return true;
 		} else {
-			String expr = unresolved_.get(i);
-			if (expr!=null) {
-				Pair<Boolean, Integer> p = ep_.parse(expr, symbolTable_);
+			PendingSymbol ps = unresolved_.get(i);
+			if (ps!=null) {
+				symbolTable_.set(currentAddressId_, ps.line.address);
+				Pair<Boolean, Integer> p = ep_.parse(ps.expr);
 				if (p.first) {
 					symbolTable_.put(i, p.second);
 				}
@@ -480,80 +1046,106 @@ public class Assembler {
 	 * @param input
 	 * @throws Exception 
 	 */
-	protected void preprocess(String input) throws Exception {
-		// Fill up lines_
-		// Note there will be BLANK lines, with a zero-lengthed String[] as tokens.
-		List<TokenizedLine> srcTokenArrayList = tk_.tokenize(input);
+	protected void preprocess(CharSequence input) throws Exception {
+		if (input==null || input.length()==0) {
+			throw new Exception("Empty input data.");
+		}
+		// Fill up lines_ while tokenizing, BLANK lines come with a zero-lengthed 
+		// String[] as tokens and are dropped right away.
+		tk_.tokenize(input, new Tokenizer.LineHandler() {
+			@Override
+			public void handleLine(int lineNo, String[] tokens) {
+				addSourceLine(tokens, lineNo, null, sourceDir_);
+			}
+		});
 		
 		if (!tk_.getLastErrors().isEmpty()) {
 			errors_.addAll(tk_.getLastErrors());
+			lines_.clear();
+		}
+	}
+	/**
+	 * Appends one tokenized source line to lines_, or the content of the file if
+	 * it is an INCLUDE. Labels in front of an INCLUDE stay on a line of their own.
+	 * Note INCLUDE is expanded before any IFDEF/IFUND is evaluated.
+	 * @param tokens
+	 * @param lineNo Line number in file.
+	 * @param file Name of the file the line is from, null for the main source.
+	 * @param dir Directory that include file names are relative to.
+	 */
+	protected void addSourceLine(String[] tokens, int lineNo, String file, Path dir) {
+		int count = tokens.length;
+		if (count==0) {
+			return;
+		}
+		int hpos = 0;
+		while (hpos+1<count && tokens[hpos+1].compareTo(Tokenizer.S_LABEL_SUFFIX)==0) {
+			hpos+=2;
+		}
+		boolean isInclude = hpos<count && tokens[hpos].compareTo(Directives.INCLUDE)==0;
+		if (isInclude && hpos>0) {
+			addSourceLine(Arrays.copyOf(tokens, hpos), lineNo, file, dir);
+		}
+		if (!isInclude) {
+			AsmLine asmLine = new AsmLine();
+			// srcLineNo is used for tracking the correct line number in THAT file.
+			asmLine.srcLineNo = lineNo; 
+			asmLine.srcFile = file;
+			asmLine.tokens = tokens;
+			lines_.add(asmLine);
 			return;
 		}
 		
-		if (srcTokenArrayList!=null) {
-			for (TokenizedLine p : srcTokenArrayList) {
-				//++lineCounter_; // TODO: Use of line counter
-				if (p.tokens!=null&&p.tokens.length>0) {
-					AsmLine asmLine = new AsmLine();
-					// srcLineNo is used for tracking the correct line number in THAT file.
-					// lineCounter_ is used to track the combined final line number
-					asmLine.srcLineNo = p.lineNo; 
-					//TODO : Need to add an offset here for the line number for include
-					//System.out.println(asmLine.srcLineNo + ": " + srcLine);
-					asmLine.tokens = p.tokens;
-					
-					lines_.add(asmLine);
-					// TODO:  If INCLUDE, don't put it in lines_ and insert file directly.
-					// TODO:  NEED to test IFDEF/IFUND/ELSE/ENDIF too to correctly generate the line numbers!
-					// Move these directives up here in preprocessing 
-					//if (asmLine.tokens[0]) {
-						
-					//}
-					
-					if (asmLine.tokens.length>0) {
-						// TODO: Use while() and hpos to detect any labels before these directives...
-						// and split the label into a single new line.
-						/*
-						switch (asmLine.tokens[0]) {
-						case Directives.INCLUDE:
-							if (checkNumOfArgs(Directives.INCLUDE, hpos, count, 1, 1,
-									asmLine.srcLineNo)) {
-								asmLine.offset = -1;
-								// TODO: Study this, do we want to preserver cases or use lower case only
-								String fname = asmLine.tokens[hpos + 1].toLowerCase(); 
-								Path file = Paths.get(fname);
-								if (file.toFile().exists()) {
-									boolean ioError = false;
-									String input2 = "";
-									try {
-										input2 = new String(Files.readAllBytes(file),
-												Charset.forName("ASCII"));
-										asmLine.translated = true;
-									} catch (IOException e) {
-										errors_.add(new AsmError(
-												AsmError.E_FILE_IO_ERROR,
-												"Error reading " + fname,
-												asmLine.srcLineNo));
-										ioError = true;
-									}
-									if (!ioError) {
-										preprocess(input2);
-									}
-								} else {
-									errors_.add(new AsmError(AsmError.E_FILE_NOT_FOUND,
-											"" + fname, asmLine.srcLineNo));
-								}
-							}
-							break;
-						default:
-							lines_.add(asmLine);
-						}
-						*/
-					}
+		int errorCount = errors_.size();
+		do {
+			if (!checkNumOfArgs(Directives.INCLUDE, hpos, count, 1, 1, lineNo)) break;
+			String fname = tokens[hpos+1];
+			Path path = dir==null ? Paths.get(fname) : dir.resolve(fname);
+			if (!Files.exists(path)) {
+				// Unquoted names come upper cased from the tokenizer
+				Path lower = dir==null ? Paths.get(fname.toLowerCase(Locale.ENGLISH)) : dir.resolve(fname.toLowerCase(Locale.ENGLISH));
+				if (!Files.exists(lower)) {
+					errors_.add(new AsmError(AsmError.E_FILE_NOT_FOUND, fname, lineNo));
+					break;
 				}
+				path = lower;
+			}
+			try {
+				Path realPath = path.toRealPath();
+				if (includeStack_.contains(realPath)) {
+					errors_.add(new AsmError(AsmError.E_CIRCULAR_REFERENCE, "(INCLUDE " + fname + ")", lineNo));
+					break;
+				}
+				List<TokenizedLine> included = IncludeCache.get(realPath);
+				if (!sources_.contains(realPath)) {
+					sources_.add(realPath);
+				}
+				includedLists_.put(realPath, included);
+				includeStack_.push(realPath);
+				String includedName = file==null ? fname : Paths.get(file).resolveSibling(fname).normalize().toString();
+				Path includedDir = realPath.getParent();
+				for (TokenizedLine tl : included) {
+					addSourceLine(tl.tokens, tl.lineNo, includedName, includedDir);
+				}
+				includeStack_.pop();
+			} catch (IOException e) {
+				errors_.add(new AsmError(AsmError.E_FILE_IO_ERROR, "Error reading " + fname, lineNo));
+			}
+		} while(false);
+		setErrorFile(errorCount, file);
+	}
+	/**
+	 * Sets the file name of the errors from index start on.
+	 */
+	protected void setErrorFile(int start, String file) {
+		if (file==null) {
+			return;
+		}
+		for (int i = start; i < errors_.size(); ++i) {
+			AsmError e = errors_.get(i);
+			if (e.fileName==null) {
+				e.fileName = file;
 			}
-		} else {
-			throw new Exception("Empty input data.");
 		}
 	}
 	
@@ -574,8 +1166,9 @@ public class Assembler {
 		// 2. Only put in current address ? symbol in table at first pass
 		if ( currentPass_==FIRST_PASS ) {
 			line.offset = currentOffset_;
+			line.address = currentOffset_ + startAddress_;
 			// Adjust symbol table for current address
-			symbolTable_.put("?", currentOffset_ + startAddress_); 
+			symbolTable_.set(currentAddressId_, line.address); 
 			line.align =  wordAlign_;
 		}
 		
@@ -1107,7 +1700,8 @@ public class Assembler {
 					if ( !checkIfBalance(S_IF, "[IFDEF]", line.srcLineNo) ) break;
 					
 					String rname = minglePreprocessingDefName(value);
-					skip_ = !(symbolTable_.containsKey(rname) && symbolTable_.get(rname) == Directives.S_TRUE_I);
+					int id = symbolTable_.intern(rname);
+					skip_ = !(symbolTable_.isDefined(id) && symbolTable_.get(id) == Directives.S_TRUE_I);
 					line.translated=true;
 				} while(false);	
 				
@@ -1127,7 +1721,8 @@ public class Assembler {
 					
 					if ( !checkIfBalance(S_IF, "[IFUND]", line.srcLineNo) ) break;
 					String rname = minglePreprocessingDefName(value);
-					skip_ = !(!symbolTable_.containsKey(rname) || symbolTable_.get(rname) == Directives.S_FALSE_I);
+					int id = symbolTable_.intern(rname);
+					skip_ = !(!symbolTable_.isDefined(id) || symbolTable_.get(id) == Directives.S_FALSE_I);
 					line.translated=true;
 				} while(false);	
 				break;
@@ -1156,7 +1751,7 @@ public class Assembler {
 					if ( !checkNumOfArgs(Directives.ENDIF, hpos, count, 1, 1, line.srcLineNo)) break;
 					line.offset = -1;
 					incr = 0;
-					System.out.println("[XREF] Not implemented.");
+					// Recognized but ignored
 					line.translated=true;
 				} while(false);	
 				break;			
@@ -1209,7 +1804,7 @@ public class Assembler {
 					} else if (line.tokens[hpos+1].compareTo(Directives.S_OFF)==0) {
 						autoUseSymbols_ = false;
 					} else {
-						ep_.getUsedSymbolSet().add(line.tokens[hpos+1]);
+						symbolTable_.markUsed(line.tokens[hpos+1]);
 					}
 					line.translated=true;
 				} while(false);	
@@ -1318,22 +1913,25 @@ public class Assembler {
 						break;	
 					}
 					/* Parse expression at hpos+2 */
-					Pair<Boolean, Integer> p = ep_.parse(tokens[hpos+2], symbolTable_);
+					Pair<Boolean, Integer> p = ep_.parse(tokens[hpos+2]);
 					if (!p.first) {
-						if (currentPass_ == lastPass_) {
+						if (currentPass_ == FINAL_PASS) {
 							errors_.add(new AsmError(
 									AsmError.E_UNDEFINED_VARIABLE,
 									"Can't resolve : " + tokens[hpos+2],
 									line.srcLineNo));
 						} else {
-							unresolved_.put(symbolName, tokens[hpos+2]);
+							unresolved_.put(symbolName, new PendingSymbol(tokens[hpos+2], line));
+							// Variables take no space, resolved or not
+							line.offset = -1;
+							incr = 0;
 						}
 						break;
 					}
-					symbolTable_.put(symbolName, p.second);
-					symbolLineNumMap_.put(symbolName, line.srcLineNo);
+					int id = symbolTable_.put(symbolName, p.second);
+					symbolTable_.setLine(id, line.srcLineNo, line.srcFile);
 					if (autoUseSymbols_) {
-						ep_.getUsedSymbolSet().add(symbolName);
+						symbolTable_.markUsed(id);
 					}
 					line.offset = -1;
 					incr = 0;
@@ -1346,10 +1944,10 @@ public class Assembler {
 					if ( checkReservedWord(symbolName, line.srcLineNo)) {						
 						break;
 					}
-					symbolTable_.put(symbolName, currentOffset_ + startAddress_);
-					symbolLineNumMap_.put(tokens[hpos], line.srcLineNo);
+					int id = symbolTable_.put(symbolName, line.address);
+					symbolTable_.setLine(id, line.srcLineNo, line.srcFile);
 					if (autoUseSymbols_) {
-						ep_.pushSymbolAsUsed(symbolName);
+						symbolTable_.markUsed(id);
 					}
 					/* For labels do not increase currentOffset_ 
 					 * Go back to parsing next token, set offset to -1 at that place (end chained labels.)
@@ -1381,7 +1979,7 @@ public class Assembler {
 	public static void main (String[] args) {
 		Assembler a = new Assembler();
 		try {
-			byte[] bytes = a.assemble(new String(Files.readAllBytes(Paths.get("CHIP8/SGAMES/SOURCES/BLINKY.SRC"))),0x200);
+			byte[] bytes = a.assemble(new String(Files.readAllBytes(Paths.get("CHIP8/SGAMES/SOURCES/BLINKY.SRC"))),0x200).binary;
 			//byte[] bytes = a.assemble(new String(Files.readAllBytes(Paths.get("tests/test05.asm"))),200);
 			Files.write(Paths.get("tests/out.ch8"), bytes);
 		} catch (IOException e) {
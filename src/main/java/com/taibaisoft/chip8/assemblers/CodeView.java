@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The instructions of an assembled listing in line order, with what the 
+ * peephole optimizer and the cycle counter need to know about their control 
+ * flow. Every CHIP-8/S-CHIP instruction is 2 bytes.
+ * @author jeffreybian
+ *
+ */
+class CodeView {
+	/* A loop has to spin at most this often to have its trip count taken */
+	static final int MAX_TRIPS = 256;
+	
+	final List<AsmLine> lines;
+	/** Number of instructions */
+	final int size;
+	/** Per instruction, index of its line, position of the mnemonic in the tokens, address and opcode */
+	final int[] line;
+	final int[] hpos;
+	final int[] addr;
+	final int[] op;
+	private final HashMap<Integer, Integer> atAddress_ = new HashMap<Integer, Integer>();
+	
+	CodeView(List<AsmLine> lines) {
+		this.lines = lines;
+		int[] ln = new int[lines.size()];
+		int[] hp = new int[lines.size()];
+		int[] ad = new int[lines.size()];
+		int[] o = new int[lines.size()];
+		int n = 0;
+		for (int i = 0; i < lines.size(); ++i) {
+			AsmLine l = lines.get(i);
+			int h = mnemonicPos(l);
+			if (h < 0) {
+				continue;
+			}
+			ln[n] = i;
+			hp[n] = h;
+			ad[n] = l.address;
+			o[n] = l.bin & 0xFFFF;
+			atAddress_.put(l.address, n);
+			++n;
+		}
+		size = n;
+		line = ln;
+		hpos = hp;
+		addr = ad;
+		op = o;
+	}
+	
+	/**
+	 * @return Position of the mnemonic in the tokens of the line, after its labels, 
+	 * -1 if the line is not an assembled instruction.
+	 */
+	static int mnemonicPos(AsmLine l) {
+		int h = labelCount(l.tokens) * 2;
+		if (l.offset < 0 || l.data != null || !l.translated || h >= l.tokens.length 
+				|| !Assembler.isMnemonic(l.tokens[h])) {
+			return -1;
+		}
+		return h;
+	}
+	/**
+	 * @return Number of labels the tokens start with.
+	 */
+	static int labelCount(String[] tokens) {
+		int n = 0;
+		while (2*n + 1 < tokens.length && tokens[2*n + 1].compareTo(Tokenizer.S_LABEL_SUFFIX)==0) {
+			++n;
+		}
+		return n;
+	}
+	
+	/**
+	 * @return Index of the instruction at address, -1 if there is none.
+	 */
+	int at(int address) {
+		Integer k = atAddress_.get(address);
+		return k == null ? -1 : k;
+	}
+	/**
+	 * @return Index of the instruction run after k when it does not jump or skip, -1 if none.
+	 */
+	int next(int k) {
+		return k + 1 < size && adjacent(k, k + 1) ? k + 1 : at(addr[k] + 2);
+	}
+	boolean adjacent(int a, int b) {
+		return addr[b] == addr[a] + 2;
+	}
+	/**
+	 * @return Whether the instruction in front of k is a skip, so k may be skipped.
+	 */
+	boolean afterSkip(int k) {
+		int p = at(addr[k] - 2);
+		return p >= 0 && isSkip(op[p]);
+	}
+	
+	/**
+	 * Trip count of the loop from head back to the JP at j, for the shape
+	 * LD Vx, i ... head: ... ADD Vx, d ... SE Vx, k; JP head 
+	 * with Vx written nowhere else in the loop and no jump out of it.
+	 * @param target Instructions jumped to from elsewhere, these end the search 
+	 * for the LD in front of the loop. Null if not known.
+	 * @return -1 if not of that shape.
+	 */
+	int tripCount(int head, int j, boolean[] target) {
+		int s = j - 1;
+		if (s < head || !adjacent(s, j) || (op[s] & 0xF000) != 0x3000) {
+			return -1;
+		}
+		int x = (op[s] >> 8) & 0xF;
+		int until = op[s] & 0xFF;
+		int step = -1;
+		for (int k = head; k < s; ++k) {
+			if (isControl(op[k]) || (k > head && !adjacent(k - 1, k))) {
+				return -1;
+			}
+			if (writes(op[k], x)) {
+				if (step >= 0 || (op[k] & 0xF000) != 0x7000 || afterSkip(k)) {
+					return -1;
+				}
+				step = op[k] & 0xFF;
+			}
+		}
+		if (step < 0) {
+			return -1;
+		}
+		// The counter is set in the straight code leading to the loop
+		int init = -1;
+		for (int k = head - 1; k >= 0 && adjacent(k, k + 1) && (k + 1 == head || target == null || !target[k + 1]); --k) {
+			if (isControl(op[k])) {
+				break;
+			}
+			if (writes(op[k], x)) {
+				if ((op[k] & 0xF000) == 0x6000 && !afterSkip(k)) {
+					init = op[k] & 0xFF;
+				}
+				break;
+			}
+		}
+		if (init < 0) {
+			return -1;
+		}
+		for (int t = 1; t <= MAX_TRIPS; ++t) {
+			if (((init + t * step) & 0xFF) == until) {
+				return t;
+			}
+		}
+		return -1;
+	}
+	
+	static boolean isSkip(int op) {
+		switch (op & 0xF000) {
+		case 0x3000:
+		case 0x4000:
+			return true;
+		case 0x5000:
+		case 0x9000:
+			return (op & 0xF) == 0;
+		case 0xE000:
+			return (op & 0xFF) == 0x9E || (op & 0xFF) == 0xA1;
+		}
+		return false;
+	}
+	/* JP, CALL, JP V0, RET and EXIT */
+	static boolean isControl(int op) {
+		int hi = op & 0xF000;
+		return hi == 0x1000 || hi == 0x2000 || hi == 0xB000 || op == 0x00EE || op == 0x00FD;
+	}
+	/* Whether op may change Vx */
+	static boolean writes(int op, int x) {
+		int r = (op >> 8) & 0xF;
+		switch (op & 0xF000) {
+		case 0x6000:
+		case 0xC000:
+			return r == x;
+		case 0x7000:
+		case 0x8000:
+			return r == x || x == 0xF;
+		case 0xD000:
+			return x == 0xF;
+		case 0xF000:
+			switch (op & 0xFF) {
+			case 0x07:
+			case 0x0A:
+				return r == x;
+			case 0x65:
+			case 0x85:
+				return x <= r;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Code reachable from an entry point of a loaded program, found by following 
+ * JP, CALL and both ways of the skips with a worklist, every instruction is 
+ * decoded once. 
+ * 
+ * The code is cut into basic blocks, which end at a control transfer or right 
+ * before an instruction something else jumps to, and the CALL sites of every 
+ * routine are kept as the call graph.
+ * 
+ * JP V0, NNN is treated conservatively: the run of JP instructions at NNN is 
+ * followed as a jump table, the rest of the 256 bytes it may land in is only 
+ * marked, see mayBeCode().
+ * @author jeffreybian
+ *
+ */
+public class ControlFlow {
+	/**
+	 * The most entries of a JP V0 table followed.
+	 */
+	public static final int MAX_TABLE = 128;
+	
+	/* Flags per address */
+	private static final byte INSN = 1;		// An instruction starts here
+	private static final byte COVERED = 2;	// Part of an instruction
+	private static final byte LEADER = 4;	// A block starts here
+	private static final byte MAYBE = 8;	// JP V0 may land here
+	
+	/**
+	 * A basic block, [start, end).
+	 */
+	public static class Block {
+		public final int start;
+		public int end;
+		/**
+		 * Starts of the blocks run next, empty after RET, EXIT or the end of the code.
+		 */
+		public int[] next;
+		/**
+		 * Routine called at the end of the block, -1 if none.
+		 */
+		public int call = -1;
+		/**
+		 * If the block ends with JP V0, next holds the jump table entries.
+		 */
+		public boolean computed = false;
+		
+		Block(int start) {
+			this.start = start;
+		}
+	}
+	
+	private final byte[] memory_;
+	private final byte[] flags_;
+	private final int entry_;
+	private final TreeMap<Integer, Block> blocks_ = new TreeMap<Integer, Block>();
+	private final TreeMap<Integer, List<Integer>> callSites_ = new TreeMap<Integer, List<Integer>>();
+	private final List<Integer> computedJumps_ = new ArrayList<Integer>();
+	
+	private ControlFlow(byte[] memory, int entry, int end) {
+		memory_ = memory;
+		flags_ = new byte[end];
+		entry_ = entry;
+	}
+	
+	/**
+	 * @param memory Program loaded as in Chip8 memory.
+	 * @param entry Address to start from.
+	 * @param end End of the program, exclusive.
+	 * @return
+	 */
+	public static ControlFlow analyze(byte[] memory, int entry, int end) {
+		ControlFlow cf = new ControlFlow(memory, entry, Math.min(end, memory.length));
+		cf.trace();
+		cf.split();
+		return cf;
+	}
+	
+	/**
+	 * @return Whether the opcode is a CHIP-8 or S-CHIP instruction. 0000 is not, 
+	 * it is far more likely to be padding than SYS 000.
+	 */
+	public static boolean isInstruction(int op) {
+		switch (op & 0xF000) {
+		case 0x0000:
+			return op != 0x0000;
+		case 0x5000:
+		case 0x9000:
+			return (op & 0xF) == 0;
+		case 0x8000:
+			return (op & 0xF) <= 7 || (op & 0xF) == 0xE;
+		case 0xE000:
+			return (op & 0xFF) == 0x9E || (op & 0xFF) == 0xA1;
+		case 0xF000:
+			switch (op & 0xFF) {
+			case 0x07: case 0x0A: case 0x15: case 0x18: case 0x1E: case 0x29: 
+			case 0x30: case 0x33: case 0x55: case 0x65: case 0x75: case 0x85:
+				return true;
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	private int opAt(int address) {
+		return ((memory_[address] & 0xFF) << 8) | (memory_[address + 1] & 0xFF);
+	}
+	private boolean decodable(int address) {
+		return address >= 0 && address + 1 < flags_.length && isInstruction(opAt(address));
+	}
+	private void lead(int address, List<Integer> work) {
+		if (address >= 0 && address < flags_.length) {
+			flags_[address] |= LEADER;
+			if (work != null) {
+				work.add(address);
+			}
+		}
+	}
+	
+	/* Marks the reachable instructions and where blocks start */
+	private void trace() {
+		List<Integer> work = new ArrayList<Integer>();
+		lead(entry_, work);
+		while (!work.isEmpty()) {
+			int a = work.remove(work.size() - 1);
+			// Falls through until a control transfer or known code
+			while (decodable(a) && (flags_[a] & INSN) == 0) {
+				int op = opAt(a);
+				flags_[a] |= INSN | COVERED;
+				flags_[a + 1] |= COVERED;
+				if ((op & 0xF000) == 0x1000) {
+					lead(op & 0x0FFF, work);
+					break;
+				} else if ((op & 0xF000) == 0x2000) {
+					int target = op & 0x0FFF;
+					List<Integer> sites = callSites_.get(target);
+					if (sites == null) {
+						sites = new ArrayList<Integer>();
+						callSites_.put(target, sites);
+					}
+					sites.add(a);
+					lead(target, work);
+					lead(a + 2, null);
+				} else if ((op & 0xF000) == 0xB000) {
+					computedJumps_.add(a);
+					int base = op & 0x0FFF;
+					for (int t = base; t < base + 0x100 && t < flags_.length; ++t) {
+						flags_[t] |= MAYBE;
+					}
+					for (int t = base, i = 0; i < MAX_TABLE && decodable(t) && (opAt(t) & 0xF000) == 0x1000; t += 2, ++i) {
+						lead(t, work);
+					}
+					break;
+				} else if (op == 0x00EE || op == 0x00FD) {
+					break;
+				} else if (CodeView.isSkip(op)) {
+					lead(a + 2, null);
+					lead(a + 4, work);
+				}
+				a += 2;
+			}
+		}
+	}
+	
+	/* Cuts the code into blocks, every instruction is visited once from the leader before it */
+	private void split() {
+		for (int s = 0; s < flags_.length; ++s) {
+			if ((flags_[s] & (INSN | LEADER)) != (INSN | LEADER)) {
+				continue;
+			}
+			Block b = new Block(s);
+			int a = s;
+			for (;;) {
+				int op = opAt(a);
+				int n = a + 2;
+				if ((op & 0xF000) == 0x1000) {
+					b.next = codeAt(op & 0x0FFF);
+				} else if ((op & 0xF000) == 0x2000) {
+					b.call = op & 0x0FFF;
+					b.next = codeAt(n);
+				} else if ((op & 0xF000) == 0xB000) {
+					b.computed = true;
+					List<Integer> table = new ArrayList<Integer>();
+					for (int t = op & 0x0FFF, i = 0; i < MAX_TABLE && isCode(t) && (opAt(t) & 0xF000) == 0x1000; t += 2, ++i) {
+						table.add(t);
+					}
+					b.next = new int[table.size()];
+					for (int i = 0; i < b.next.length; ++i) {
+						b.next[i] = table.get(i);
+					}
+				} else if (op == 0x00EE || op == 0x00FD) {
+					b.next = new int[0];
+				} else if (CodeView.isSkip(op)) {
+					b.next = isCode(n) && isCode(n + 2) ? new int[]{n, n + 2} : isCode(n) ? codeAt(n) : codeAt(n + 2);
+				} else if (!isCode(n) || (flags_[n] & LEADER) != 0) {
+					b.next = codeAt(n);
+				} else {
+					a = n;
+					continue;
+				}
+				b.end = n;
+				break;
+			}
+			blocks_.put(s, b);
+		}
+	}
+	private int[] codeAt(int address) {
+		return isCode(address) ? new int[]{address} : new int[0];
+	}
+	
+	/**
+	 * @return Address analyzed from.
+	 */
+	public int getEntry() {
+		return entry_;
+	}
+	/**
+	 * @return Whether a reachable instruction starts at the address.
+	 */
+	public boolean isCode(int address) {
+		return address >= 0 && address < flags_.length && (flags_[address] & INSN) != 0;
+	}
+	/**
+	 * @return Whether the byte is part of a reachable instruction.
+	 */
+	public boolean isCovered(int address) {
+		return address >= 0 && address < flags_.length && (flags_[address] & COVERED) != 0;
+	}
+	/**
+	 * @return Whether a JP V0 may land at the address, whatever was found there.
+	 */
+	public boolean mayBeCode(int address) {
+		return address >= 0 && address < flags_.length && (flags_[address] & MAYBE) != 0;
+	}
+	/**
+	 * @return The block starting at the address, null if none.
+	 */
+	public Block blockAt(int address) {
+		return blocks_.get(address);
+	}
+	/**
+	 * @return The block holding the instruction at the address, null if none.
+	 */
+	public Block blockOf(int address) {
+		Map.Entry<Integer, Block> e = blocks_.floorEntry(address);
+		return e != null && address < e.getValue().end ? e.getValue() : null;
+	}
+	/**
+	 * @return All blocks, by start address.
+	 */
+	public Collection<Block> getBlocks() {
+		return Collections.unmodifiableCollection(blocks_.values());
+	}
+	/**
+	 * @return Addresses of the routines called, by address.
+	 */
+	public Collection<Integer> getRoutines() {
+		return Collections.unmodifiableSet(callSites_.keySet());
+	}
+	/**
+	 * @return Addresses of the CALL instructions to the routine, empty if none.
+	 */
+	public List<Integer> getCallSites(int routine) {
+		List<Integer> sites = callSites_.get(routine);
+		return sites == null ? Collections.<Integer>emptyList() : Collections.unmodifiableList(sites);
+	}
+	/**
+	 * @return Addresses of the JP V0 instructions reached.
+	 */
+	public List<Integer> getComputedJumps() {
+		return Collections.unmodifiableList(computedJumps_);
+	}
+}
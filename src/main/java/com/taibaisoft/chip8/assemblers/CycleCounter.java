@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import com.taibaisoft.chip8.platform.Util;
+
+/**
+ * Static cycle counts of an assembled program, to budget the instructions per 
+ * frame before running it. Every instruction costs one cycle, or with the 
+ * weighted model DRW costs one cycle per sprite row.
+ * 
+ * Worst cases follow the control flow graph: both ways of a skip, JP targets, 
+ * and for a CALL the worst case of the routine called. Loops of the counted 
+ * shape, see CodeView.tripCount(), are taken with their trip count, any other 
+ * loop or recursion once, and flagged. A JP V0 ends a path, flagged as well.
+ * @author jeffreybian
+ *
+ */
+public class CycleCounter {
+	/* Flags of a worst case */
+	private static final int F_LOOP = 1;
+	private static final int F_COMPUTED = 2;
+	
+	private static final byte NEW = 0;
+	private static final byte ON_PATH = 1;
+	private static final byte DONE = 2;
+	
+	private final boolean weightedDraw_;
+	
+	/* State of the program being counted */
+	private CodeView code_;
+	private boolean[] label_;
+	private int[] loopEnd_;
+	private long[] loopCost_;
+	private int[] loopTrips_;
+	private long[] routine_;
+	private int[] routineFlags_;
+	private byte[] routineState_;
+	private int flags_;
+	
+	/**
+	 * @param weightedDraw true to count DRW by its sprite rows, 16 for DRW Vx, Vy, 0.
+	 */
+	public CycleCounter(boolean weightedDraw) {
+		weightedDraw_ = weightedDraw;
+	}
+	
+	/**
+	 * @return Cycles of the instruction.
+	 */
+	public int cost(int op) {
+		if (weightedDraw_ && (op & 0xF000) == 0xD000) {
+			int n = op & 0xF;
+			return n == 0 ? 16 : n;
+		}
+		return 1;
+	}
+	/**
+	 * @return Cycles of the line, 0 if it is not an instruction.
+	 */
+	public int cost(AsmLine l) {
+		return CodeView.mnemonicPos(l) < 0 ? 0 : cost(l.bin & 0xFFFF);
+	}
+	
+	/**
+	 * Worst cases per routine, per loop iteration and between labels.
+	 * @param lines Lines of an assembled program.
+	 * @param entry Address the program starts at.
+	 * @param budget Cycles per frame, routines and loop iterations that take more are marked.
+	 * @return
+	 */
+	public synchronized String report(List<AsmLine> lines, int entry, int budget) {
+		code_ = new CodeView(lines);
+		int n = code_.size;
+		
+		// Labels at instructions, the first one of an address names it
+		TreeMap<Integer, String> names = new TreeMap<Integer, String>();
+		label_ = new boolean[n];
+		for (AsmLine l : lines) {
+			int k = code_.at(l.address);
+			if (CodeView.labelCount(l.tokens) > 0 && k >= 0 && !label_[k]) {
+				label_[k] = true;
+				names.put(l.address, l.tokens[0]);
+			}
+		}
+		// Counted loops, from their head
+		loopEnd_ = new int[n];
+		loopCost_ = new long[n];
+		loopTrips_ = new int[n];
+		Arrays.fill(loopEnd_, -1);
+		boolean[] loopHead = new boolean[n];
+		for (int j = 0; j < n; ++j) {
+			int head = code_.at(code_.op[j] & 0x0FFF);
+			if ((code_.op[j] & 0xF000) != 0x1000 || head < 0 || head > j) {
+				continue;
+			}
+			loopHead[head] = true;
+			int trips = code_.tripCount(head, j, label_);
+			if (trips > 0) {
+				long body = 0;
+				for (int k = head; k <= j; ++k) {
+					body += cost(code_.op[k]);
+				}
+				loopEnd_[head] = j;
+				loopTrips_[head] = trips;
+				// The JP is skipped the last time round
+				loopCost_[head] = trips * body - 1;
+			}
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ENGLISH, "Cycles (%s), frame budget %d:", 
+				weightedDraw_ ? "1 per instruction, DRW 1 per sprite row" : "1 per instruction", budget));
+		sb.append(Util.NEW_LINE);
+		
+		// 1. Routines, from the entry and every CALL target to their RET
+		TreeMap<Integer, String> routines = new TreeMap<Integer, String>();
+		routines.put(entry, nameOf(names, entry, "(start)"));
+		for (int k = 0; k < n; ++k) {
+			int a = code_.op[k] & 0x0FFF;
+			if ((code_.op[k] & 0xF000) == 0x2000 && code_.at(a) >= 0) {
+				routines.put(a, nameOf(names, a, null));
+			}
+		}
+		routine_ = new long[n];
+		routineFlags_ = new int[n];
+		routineState_ = new byte[n];
+		sb.append("Routines, worst case per call:").append(Util.NEW_LINE);
+		for (int a : routines.keySet()) {
+			flags_ = 0;
+			long c = toReturn(code_.at(a));
+			line(sb, routines.get(a), a, c, flags_, c > budget ? ", over budget" : "");
+		}
+		
+		// 2. Loops, one iteration from the head back to it
+		boolean any = false;
+		for (int h = 0; h < n; ++h) {
+			if (!loopHead[h]) {
+				continue;
+			}
+			if (!any) {
+				sb.append("Loops, worst case per iteration:").append(Util.NEW_LINE);
+				any = true;
+			}
+			flags_ = 0;
+			long c = aroundTo(h, h, new long[n], new int[n], new byte[n]);
+			if (c < 0) {
+				// Every path from the head ends before coming back to it
+				continue;
+			}
+			String note = "";
+			if (loopEnd_[h] >= 0) {
+				note = String.format(Locale.ENGLISH, ", %d trips: %d", loopTrips_[h], loopCost_[h]);
+			}
+			if (c > budget) {
+				note += ", over budget";
+			}
+			line(sb, nameOf(names, code_.addr[h], null), code_.addr[h], c, flags_, note);
+		}
+		
+		// 3. From every label to the next labels reached
+		sb.append("Between labels, worst case:").append(Util.NEW_LINE);
+		long[] segMemo = new long[n];
+		int[] segEnd = new int[n];
+		int[] segFlags = new int[n];
+		byte[] segState = new byte[n];
+		for (int a : names.keySet()) {
+			int k = code_.at(a);
+			flags_ = 0;
+			long c = toLabel(k, segMemo, segEnd, segFlags, segState);
+			String to = segEnd[k] < 0 ? "" : names.get(segEnd[k]);
+			line(sb, names.get(a) + " -> " + (to.length() == 0 ? "end" : to), a, c, flags_, "");
+		}
+		code_ = null;
+		routine_ = null;
+		return sb.toString();
+	}
+	
+	private static String nameOf(TreeMap<Integer, String> names, int address, String otherwise) {
+		String s = names.get(address);
+		if (s != null) {
+			return s;
+		}
+		return otherwise != null ? otherwise : String.format(Locale.ENGLISH, "%03X", address);
+	}
+	private static void line(StringBuilder sb, String name, int address, long cycles, int flags, String note) {
+		sb.append(String.format(Locale.ENGLISH, "  %-24s %03X %8d", name, address, cycles));
+		if ((flags & F_LOOP) != 0) {
+			sb.append("+ loops of unknown count");
+		}
+		if ((flags & F_COMPUTED) != 0) {
+			sb.append((flags & F_LOOP) != 0 ? ", " : "+ ").append("JP V0");
+		}
+		sb.append(note).append(Util.NEW_LINE);
+	}
+	
+	/* The instructions run after k: next, the other way of a skip or the JP target */
+	private int[] successors(int k) {
+		int op = code_.op[k];
+		switch (op & 0xF000) {
+		case 0x1000:
+			return new int[]{code_.at(op & 0x0FFF)};
+		case 0xB000:
+			flags_ |= F_COMPUTED;
+			return new int[0];
+		case 0x0000:
+			if (op == 0x00EE || op == 0x00FD) {
+				return new int[0];
+			}
+			break;
+		}
+		if (CodeView.isSkip(op)) {
+			return new int[]{code_.next(k), code_.at(code_.addr[k] + 4)};
+		}
+		return new int[]{code_.next(k)};
+	}
+	/* Cycles of k itself, with the routine it calls */
+	private long self(int k) {
+		long c = cost(code_.op[k]);
+		if ((code_.op[k] & 0xF000) == 0x2000) {
+			c += toReturn(code_.at(code_.op[k] & 0x0FFF));
+		}
+		return c;
+	}
+	
+	/**
+	 * Worst case from k to the RET of the routine, a counted loop is run through as a whole.
+	 */
+	private long toReturn(int k) {
+		long[] memo = routine_;
+		int[] memoFlags = routineFlags_;
+		byte[] state = routineState_;
+		if (k < 0) {
+			return 0;
+		}
+		if (state[k] == DONE) {
+			flags_ |= memoFlags[k];
+			return memo[k];
+		}
+		if (state[k] == ON_PATH) {
+			flags_ |= F_LOOP;
+			return 0;
+		}
+		state[k] = ON_PATH;
+		int outer = flags_;
+		flags_ = 0;
+		long c;
+		if (loopEnd_[k] >= 0) {
+			c = loopCost_[k] + toReturn(code_.next(loopEnd_[k]));
+		} else {
+			long worst = 0;
+			for (int s : successors(k)) {
+				worst = Math.max(worst, toReturn(s));
+			}
+			c = self(k) + worst;
+		}
+		state[k] = DONE;
+		memo[k] = c;
+		memoFlags[k] = flags_;
+		flags_ |= outer;
+		return c;
+	}
+	
+	/**
+	 * Worst case from k back to the loop head h, -1 if h is not reached again.
+	 */
+	private long aroundTo(int k, int h, long[] memo, int[] memoFlags, byte[] state) {
+		if (state[k] == DONE) {
+			flags_ |= memoFlags[k];
+			return memo[k];
+		}
+		if (state[k] == ON_PATH) {
+			flags_ |= F_LOOP;
+			return -1;
+		}
+		state[k] = ON_PATH;
+		int outer = flags_;
+		flags_ = 0;
+		long worst = -1;
+		for (int s : successors(k)) {
+			long c = s < 0 ? -1 : s == h ? 0 : aroundTo(s, h, memo, memoFlags, state);
+			worst = Math.max(worst, c);
+		}
+		long c = worst < 0 ? -1 : self(k) + worst;
+		state[k] = DONE;
+		memo[k] = c;
+		memoFlags[k] = flags_;
+		flags_ |= outer;
+		return c;
+	}
+	
+	/**
+	 * Worst case from k to the next label, RET or end of the code. The label 
+	 * ending the worst path is left in end[k], -1 if none.
+	 */
+	private long toLabel(int k, long[] memo, int[] end, int[] memoFlags, byte[] state) {
+		if (state[k] == DONE) {
+			flags_ |= memoFlags[k];
+			return memo[k];
+		}
+		if (state[k] == ON_PATH) {
+			flags_ |= F_LOOP;
+			return 0;
+		}
+		state[k] = ON_PATH;
+		int outer = flags_;
+		flags_ = 0;
+		long worst = -1;
+		int worstEnd = -1;
+		for (int s : successors(k)) {
+			long c = 0;
+			int e = -1;
+			if (s >= 0 && label_[s]) {
+				e = code_.addr[s];
+			} else if (s >= 0) {
+				c = toLabel(s, memo, end, memoFlags, state);
+				e = end[s];
+			}
+			if (c > worst) {
+				worst = c;
+				worstEnd = e;
+			}
+		}
+		long c = self(k) + Math.max(worst, 0);
+		state[k] = DONE;
+		memo[k] = c;
+		end[k] = worstEnd;
+		memoFlags[k] = flags_;
+		flags_ |= outer;
+		return c;
+	}
+}
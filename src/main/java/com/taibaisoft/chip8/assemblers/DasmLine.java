@@ -37,7 +37,7 @@ enum DasmLineType {
 public class DasmLine {
 	public String asm;
 	public String data;
-	public String data1;
+	public String data1;		// null if the data is one byte
 	public int bin;
 	public String label = "";
 	public String label1 = "";	// Only makes sense for data 
@@ -24,11 +24,15 @@
 package com.taibaisoft.chip8.assemblers;
 // TODO: Finish this in the future.
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import com.taibaisoft.chip8.platform.Util;
 
@@ -47,392 +51,531 @@ public class Disassembler {
 	private HashMap<Integer, String> subroutineMap_ = new HashMap<Integer,String>();
 	private HashMap<Integer, String> jmpLabelMap_ = new HashMap<Integer, String>();
 	private HashMap<Integer, String> dataLabelMap_ = new HashMap<Integer, String>();
-	private int lastRet = -1;
+	private List<String> equates_ = new ArrayList<String>();
+	private ControlFlow flow_ = null;
+	private static final String MAYBE_CODE = "code? (JP V0)";
+	
+	/* Line being formatted, and the tables it is formatted from, so a line allocates nothing */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+	private static final String[] ALU = new String[16];
+	static {
+		ALU[0x0] = Mnemonics.LD;
+		ALU[0x1] = Mnemonics.OR;
+		ALU[0x2] = Mnemonics.AND;
+		ALU[0x3] = Mnemonics.XOR;
+		ALU[0x4] = Mnemonics.ADD;
+		ALU[0x5] = Mnemonics.SUB;
+		ALU[0x6] = Mnemonics.SHR;
+		ALU[0x7] = Mnemonics.SUBN;
+		ALU[0xE] = Mnemonics.SHL;
+	}
+	private final StringBuilder text_ = new StringBuilder(80);
+	private char[] chars_ = new char[80];
+	/* Per address, what the output has there */
+	private static final byte NONE = 0;
+	private static final byte LINE = 1;		// A line starts here
+	private static final byte SECOND = 2;	// Second byte of a data line
+	private static final byte NAMED = 4;	// A label is put here
+	private byte[] layout_ = new byte[0];
+	
 	/**
-	 * 
+	 * Disassembles the code reachable from the start address, see ControlFlow, 
+	 * the bytes in between are output as data.
 	 * @param loadedCode Should be the one directly in Chip8 memory.
 	 * @param startAddress The starting address used to adjust memory access
 	 * @param listener 
 	 */
 	public void disassemble(byte[] loadedCode, int startAddress, Chip8DasmProgressListener listener) {
+		reset(loadedCode, startAddress);
+		int len = memory_.length;
+		// 1st pass, instructions where the control flow reaches, data elsewhere
+		while (cursor_ < len) {
+			if (flow_.isCode(cursor_)) {
+				lines_.add(dis(opAt(cursor_)));
+				cursor_ += 2;
+			} else {
+				lines_.add(data(isPair(cursor_)));
+				cursor_ += lines_.get(lines_.size() - 1).data1 != null ? 2 : 1;
+			}
+		}
+		// 2nd pass, labels
+		enhance();
+		
+	}
+	
+	/**
+	 * Disassembles straight to the writer, the same text as getDisassembleResultAsString() 
+	 * gives, but one line is kept at a time. getDisassembleResult() is left empty.
+	 * @param loadedCode Should be the one directly in Chip8 memory.
+	 * @param startAddress The starting address used to adjust memory access
+	 * @param out Not closed.
+	 * @throws IOException 
+	 */
+	public void disassemble(byte[] loadedCode, int startAddress, Writer out, 
+			boolean showAddress, boolean showComment) throws IOException {
+		reset(loadedCode, startAddress);
+		int len = memory_.length;
+		if (layout_.length < len + 1) {
+			layout_ = new byte[len + 1];
+		} else {
+			Arrays.fill(layout_, NONE);
+		}
+		// 1st pass, where the lines are and the label names, in the order dis() gives them
+		for (int a = startAddress; a < len; ) {
+			layout_[a] = LINE;
+			if (flow_.isCode(a)) {
+				name(opAt(a));
+				a += 2;
+			} else if (isPair(a)) {
+				layout_[a + 1] = SECOND;
+				a += 2;
+			} else {
+				a += 1;
+			}
+		}
+		text_.setLength(0);
+		header(text_);
+		// Same as enhance(), the first label of an address is put at its line, the rest are equates
+		for (Map<Integer, String> map : labelMaps()) {
+			for (Map.Entry<Integer, String> e : new TreeMap<Integer, String>(map).entrySet()) {
+				int a = e.getKey();
+				if (a < 0 || a >= len || layout_[a] == NONE || !e.getValue().equals(labelAt(a))) {
+					equate(text_, e.getValue(), a);
+				} else {
+					layout_[a] |= NAMED;
+				}
+			}
+		}
+		write(out);
+		// 2nd pass, the lines
+		for (int a = startAddress; a < len; ) {
+			String label = (layout_[a] & NAMED) != 0 ? labelAt(a) : null;
+			if (label != null) {
+				text_.append(label).append(':').append(Util.NEW_LINE);
+			}
+			if (showAddress) {
+				address(text_, a);
+			}
+			String comment = null;
+			text_.append('\t');
+			if (flow_.isCode(a)) {
+				int opcode = opAt(a);
+				mnemonic(text_, opcode);
+				comment = computedComment(a, opcode);
+				if (comment == null && label != null && label.equals(subroutineMap_.get(a))) {
+					comment = callersComment(a);
+				}
+				a += 2;
+			} else {
+				db(text_, memory_[a]);
+				if ((layout_[a + 1] & SECOND) != 0) {
+					text_.append(Util.NEW_LINE);
+					String label1 = (layout_[a + 1] & NAMED) != 0 ? labelAt(a + 1) : null;
+					if (label1 != null) {
+						text_.append(label1).append(':').append(Util.NEW_LINE);
+					}
+					if (showAddress) {
+						address(text_, a + 1);
+					}
+					text_.append('\t');
+					db(text_, memory_[a + 1]);
+				}
+				comment = flow_.mayBeCode(a) ? MAYBE_CODE : null;
+				if (comment == null && label != null && label.equals(subroutineMap_.get(a))) {
+					comment = callersComment(a);
+				}
+				a += (layout_[a + 1] & SECOND) != 0 ? 2 : 1;
+			}
+			if (showComment && comment != null) {
+				text_.append(" ;; ").append(comment);
+			}
+			text_.append(Util.NEW_LINE);
+			write(out);
+		}
+	}
+	
+	private void reset(byte[] loadedCode, int startAddress) {
 		memory_ = loadedCode;
 		cursor_ = startAddress;
-		lastRet = -1;
 		srCounter_ = 0;
 		lbCounter_ = 0;
 		dtCounter_ = 0;
+		lines_.clear();
+		equates_.clear();
 		subroutineMap_.clear();
 		jmpLabelMap_.clear();
 		dataLabelMap_.clear();
-		// 1st pass, basic dissassembly
-		int len = memory_.length;
-		for (; cursor_ < len; cursor_ += 2) {
-			// If it is among data seg, don't bother
-			// Suppose data always comes after code in a seprate data segment
-			int opcode = ((memory_[cursor_] & 0xFF) << 8) | (memory_[cursor_ + 1] & 0xFF);
-			lines_.add(dis(opcode));
+		flow_ = ControlFlow.analyze(memory_, startAddress, memory_.length);
+	}
+	private int opAt(int address) {
+		return ((memory_[address] & 0xFF) << 8) | (memory_[address + 1] & 0xFF);
+	}
+	/* If the data line at the address holds two bytes, one if code starts at the next one */
+	private boolean isPair(int address) {
+		return address + 1 < memory_.length && !flow_.isCovered(address + 1);
+	}
+	/* Moves the line built to the writer */
+	private void write(Writer out) throws IOException {
+		int n = text_.length();
+		if (chars_.length < n) {
+			chars_ = new char[n * 2];
 		}
-		// 2nd pass, find out data seg and makegood guessing of functions
-		// At this point not all stuff in lines_ are valid instructions
-		enhance();
-		
+		text_.getChars(0, n, chars_, 0);
+		out.write(chars_, 0, n);
+		text_.setLength(0);
+	}
+	/**
+	 * Data at the cursor, one byte if code starts at the next one.
+	 */
+	private DasmLine data(boolean pair) {
+		DasmLine line = new DasmLine();
+		int b0 = memory_[cursor_] & 0xFF;
+		int b1 = pair ? memory_[cursor_ + 1] & 0xFF : 0;
+		line.type = DasmLineType.DATA;
+		line.bin = (b0 << 8) | b1;
+		line.addr = cursor_;
+		line.addr1 = cursor_ + 1;
+		text_.setLength(0);
+		line.data = db(text_, b0).toString();
+		text_.setLength(0);
+		line.data1 = pair ? db(text_, b1).toString() : null;
+		if (flow_.mayBeCode(cursor_)) {
+			line.comment = MAYBE_CODE;
+		}
+		return line;
 	}
 	private DasmLine dis(int opcode) {
-		// Decode and run an opcode
 		DasmLine srcLine = new DasmLine();
-		String asmText = "";
-		
-		outmost:
+		name(opcode);
+		text_.setLength(0);
+		mnemonic(text_, opcode);
+		switch (opcode & 0xF000) {
+		case 0x0000:
+			if (opcode==0x00EE) {
+				srcLine.type = DasmLineType.CODE_RET;
+			}
+			break;
+		case 0x1000:
+		case 0xB000:
+			srcLine.type = DasmLineType.CODE_JP;
+			break;
+		case 0x2000:
+			srcLine.type = DasmLineType.CODE_CALL;
+			break;
+		case 0xA000:
+			srcLine.type = DasmLineType.CODE_MEMLOAD_I;
+			break;
+		default:
+			if (CodeView.isSkip(opcode)) {
+				srcLine.type = DasmLineType.CODE_CONDITIONAL_SKIP;
+			}
+			break;
+		}
+		srcLine.comment = computedComment(cursor_, opcode);
+		srcLine.bin = opcode;
+		srcLine.addr = cursor_;
+		srcLine.addr1 = cursor_+1;
+		srcLine.asm = text_.toString();
+		return srcLine;
+	}
+	
+	/**
+	 * Names the address the opcode refers to, if it is not named yet.
+	 */
+	private void name(int opcode) {
+		int addr = opcode & 0xFFF;
+		switch (opcode & 0xF000) {
+		case 0x1000: // JP NNN
+		case 0xB000: // JP V0, NNN
+			if (!jmpLabelMap_.containsKey(addr)) {
+				jmpLabelMap_.put(addr, nextLabelName());
+			}
+			break;
+		case 0x2000: // CALL NNN
+			if (!subroutineMap_.containsKey(addr)) {
+				subroutineMap_.put(addr, nextSubroutineName());
+			}
+			break;
+		case 0xA000: // LD I, NNN
+			if (!dataLabelMap_.containsKey(addr)) {
+				dataLabelMap_.put(addr, nextDataName());
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * Appends the assembly text of the opcode, the address it refers to must be named.
+	 * @return sb
+	 */
+	private StringBuilder mnemonic(StringBuilder sb, int opcode) {
+		int x = (opcode & 0x0F00) >>> 8;
+		int y = (opcode & 0x00F0) >>> 4;
+		int nn = opcode & 0xFF;
+		int nnn = opcode & 0xFFF;
 		switch (opcode & 0xF000) {
 		/** ---- 0x0000 ---- */
-		case 0x0000: {
+		case 0x0000:
 			if (opcode==0x00E0) {
-				asmText = Mnemonics.CLS;
-				break outmost;
+				sb.append(Mnemonics.CLS);
 			} else if (opcode==0x00EE) {
-				asmText = Mnemonics.RET;
-				// Possible dataStart, negate it later
-				// dataStart = cursor;
-				srcLine.type = DasmLineType.CODE_RET;
-				lastRet = cursor_;
-				break outmost;
+				sb.append(Mnemonics.RET);
 			} else if (opcode==0x00FB) {
-				asmText = Mnemonics.SCR;
-				break outmost;
+				sb.append(Mnemonics.SCR);
 			} else if (opcode==0x00FC) {
-				asmText = Mnemonics.SCL;
-				break outmost;
+				sb.append(Mnemonics.SCL);
 			} else if (opcode==0x00FD) {
-				asmText = Mnemonics.EXT;
-				break outmost;
+				sb.append(Mnemonics.EXT);
 			} else if (opcode==0x00FE) {
-				asmText = Mnemonics.LOW;
-				break outmost;
+				sb.append(Mnemonics.LOW);
 			} else if (opcode==0x00FF) {
-				asmText = Mnemonics.HIGH;
-				break outmost;
+				sb.append(Mnemonics.HIGH);
+			} else if ((opcode & 0xFFF0)==0x00C0) {
+				hex(sb.append(Mnemonics.SCD).append(" #"), opcode & 0xF, 1);
 			} else {
-				if ( (opcode & 0x00F0)==0x00C0 ) {
-					asmText = String.format("%s #%01x", Mnemonics.SCD, opcode & 0xF); 
-					break outmost;
-				} else {
-					asmText = String.format("%s #%03x", Mnemonics.SYS, opcode & 0xFFF);
-					break outmost;
-				}
+				hex(sb.append(Mnemonics.SYS).append(" #"), nnn, 3);
 			}
-		}
-		/** ---- 0x1000 ---- */			
+			break;
 		case 0x1000: // JP NNN - Jumps to address NNN.
-		{
-			int addr = opcode & 0xFFF;
-			String label = jmpLabelMap_.get(addr);
-			if (label==null) {
-				label = nextLabelName();
-				jmpLabelMap_.put(addr, label);
-			}
-			asmText = String.format("%s %s", Mnemonics.JP, label);
-			srcLine.type = DasmLineType.CODE_JP;
-		}
-		break;
-		/** ---- 0x2000 ---- */
+			sb.append(Mnemonics.JP).append(' ').append(jmpLabelMap_.get(nnn));
+			break;
 		case 0x2000: // CALL NNN - Calls subroutine at NNN.
-		{
-			int addr = opcode & 0xFFF;
-			String subroutine = subroutineMap_.get(addr);
-			if (subroutine==null) {
-				subroutine = nextSubroutineName();
-				subroutineMap_.put(addr, subroutine);
-			}
-			asmText = String.format("%s %s", Mnemonics.CALL, subroutine);
-			srcLine.type = DasmLineType.CODE_CALL;
-		}
-		break;
+			sb.append(Mnemonics.CALL).append(' ').append(subroutineMap_.get(nnn));
+			break;
 		case 0x3000: // SE Vx, NN - Skips the next instruction if VX equals NN.
-		{
-			int index = (opcode & 0x0F00) >>> 8;	
-			asmText = String.format("%s V%01X, #%02x", Mnemonics.SE, index, opcode & 0xFF);
-			srcLine.type = DasmLineType.CODE_CONDITIONAL_SKIP;
-		}
-		break;
+			hex(reg(sb.append(Mnemonics.SE).append(' '), x).append(", #"), nn, 2);
+			break;
 		case 0x4000: // SNE Vx, NN - Skips the next instruction if VX doesn't equal NN.
-		{
-			int index = (opcode & 0x0F00) >>> 8;	
-			asmText = String.format("%s V%01X, #%02x", Mnemonics.SNE, index, opcode & 0xFF);
-			srcLine.type = DasmLineType.CODE_CONDITIONAL_SKIP;
-		}
+			hex(reg(sb.append(Mnemonics.SNE).append(' '), x).append(", #"), nn, 2);
 			break;
 		case 0x5000: // SE Vx, Vy - Skips the next instruction if VX equals VY.
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			int indy = (opcode & 0x00F0) >>> 4;
-			asmText = String.format("%s V%01X, V%01X", Mnemonics.SE, indx, indy);
-			srcLine.type = DasmLineType.CODE_CONDITIONAL_SKIP;
-		}
+			reg(reg(sb.append(Mnemonics.SE).append(' '), x).append(", "), y);
 			break;
 		case 0x6000: // LD Vx, NN - Sets VX to NN.
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			asmText = String.format("%s V%01X, #%02x", Mnemonics.LD, indx, opcode & 0xFF);
-		}
+			hex(reg(sb.append(Mnemonics.LD).append(' '), x).append(", #"), nn, 2);
 			break;
 		case 0x7000: // ADD Vx, NN - Adds NN to VX.
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			asmText = String.format("%s V%01X, #%02x", Mnemonics.ADD, indx, (opcode & 0x00FF));
-		}
+			hex(reg(sb.append(Mnemonics.ADD).append(' '), x).append(", #"), nn, 2);
 			break;
-		case 0x8000: {
-			String format = "";
-			int indx = (opcode & 0x0F00) >>> 8;
-			int indy = (opcode & 0x00F0) >>> 4;
-			switch ((opcode & 0x000F)) {
-			case 0: // LD Vx, Vy - VX to the value of VY.
-				format = Mnemonics.LD + " V%01X, V%01X";
-				break;
-			case 1: // OR Vx, Vy - Sets VX to VX or VY.
-				format = Mnemonics.OR + " V%01X, V%01X";
-				break;
-			case 2: // AND Vx, Vy - Sets VX to VX and VY.
-				format = Mnemonics.AND + " V%01X, V%01X";
-				break;
-			case 3: // XOR Vx, Vy - Sets VX to VX xor VY.
-				format = Mnemonics.XOR + " V%01X, V%01X";
-				break;
-			case 4: // ADD Vx, Vy - Adds VY to VX. VF is set to 1 when there's a carry,
-					// and to 0 when there isn't.
-				format = Mnemonics.ADD + " V%01X, V%01X";
-				break;
-			case 5: // SUB Vx, Vy - VY is subtracted from VX. VF is set to 0 when
-					// there's a borrow, and 1 when there isn't.
-				format = Mnemonics.SUB + " V%01X, V%01X";
-				break;
-			case 6: // SHR Vx {,Vy} - 8XY6 Shifts VX right by one. VF is set to the value of
-					// the least significant bit of VX before the shift.[2]
-				format = Mnemonics.SHR + " V%01X {, V%01X}";
-				break;
-			case 7: // SUBN Vx, Vy - Sets VX to VY minus VX. VF is set to 0 when there's
-					// a borrow, and 1 when there isn't.
-				format = Mnemonics.SUBN + " V%01X, V%01X";
-				break;
-			case 0xE: // SHL Vx {, Vy} - 8XYE Shifts VX left by one. VF is set to the value of
-						// the most significant bit of VX before the shift.[2]
-				format = Mnemonics.SHL + " V%01X {, V%01X}";
-				break;
+		case 0x8000: 
+			// LD, OR, AND, XOR, ADD (VF carry), SUB (VF not borrow), SHR (VF the bit shifted out), 
+			// SUBN (VX = VY - VX, VF not borrow), SHL (VF the bit shifted out)
+			if (ALU[opcode & 0xF] != null) {
+				reg(reg(sb.append(ALU[opcode & 0xF]).append(' '), x).append(", "), y);
 			}
-			asmText = String.format(format, indx, indy);
-		}
 			break;
 		case 0x9000: // SNE Vx, Vy - Skips the next instruction if VX doesn't equal VY.
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			int indy = (opcode & 0x00F0) >>> 4;
-			asmText = String.format("%s V%01X, V%01X", Mnemonics.SNE, indx, indy);
-			srcLine.type = DasmLineType.CODE_CONDITIONAL_SKIP;
-		}
+			reg(reg(sb.append(Mnemonics.SNE).append(' '), x).append(", "), y);
 			break;
-
 		case 0xA000: // LD I, NNN - ANNN Set I to NNN
-		{	
-			int addr = opcode & 0x0FFF;
-			srcLine.type = DasmLineType.CODE_MEMLOAD_I;
-			String dlabel = nextDataName();
-			dataLabelMap_.put(addr, dlabel);
-			asmText = String.format("%s I, %s", Mnemonics.LD, dlabel);
-		}
+			sb.append(Mnemonics.LD).append(" I, ").append(dataLabelMap_.get(nnn));
 			break;
 		case 0xB000: // JP V0, NNN - BNNN Jumps to the address NNN plus V0.
-			asmText = String.format("%s V0, #%03x", Mnemonics.JP, (opcode & 0x0FFF));
-			srcLine.type = DasmLineType.CODE_JP;
+			sb.append(Mnemonics.JP).append(" V0, ").append(jmpLabelMap_.get(nnn));
 			break;
-		case 0xC000: // RND Vx, NNN - CXNN Sets VX to a random number and NN.
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			asmText = String.format("%s V%01X, #%03x", Mnemonics.RND, indx, (opcode & 0x00FF));
-		}
+		case 0xC000: // RND Vx, NN - CXNN Sets VX to a random number and NN.
+			hex(reg(sb.append(Mnemonics.RND).append(' '), x).append(", #"), nn, 3);
 			break;
-		case 0xD000: // DRW Vx, Vy, N - DXYN Sprites stored in memory at location in index
-						// register (I), maximum 8bits wide. Wraps around the
-						// screen. If when drawn, clears a pixel, register VF is
-						// set to 1 otherwise it is zero. All drawing is XOR
-						// drawing (e.g. it toggles the screen pixels)
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			int indy = (opcode & 0x00F0) >>> 4;
-			asmText = String.format("%s V%01X, V%01X, #%01x", Mnemonics.DRW, indx, indy, (opcode & 0x000F));
-		}
+		case 0xD000: // DRW Vx, Vy, N - DXYN Draws the N rows sprite at I, XOR drawing, VF set on collision
+			hex(reg(reg(sb.append(Mnemonics.DRW).append(' '), x).append(", "), y).append(", #"), opcode & 0xF, 1);
 			break;
-		case 0xE000: {  
-			int indx = (opcode & 0x0F00) >>> 8;
-			switch (opcode & 0x00FF) {
-			case 0x9E:	// SKP Vx - Skips next instruction if key with the value of Vx is pressed.
-				asmText = String.format("%s V%01X", Mnemonics.SKP, indx);
-				srcLine.type = DasmLineType.CODE_CONDITIONAL_SKIP;
-				break;
-			case 0xA1: //  SKNP Vx - Skip next instruction if key with the value of Vx is not pressed.
-				asmText = String.format("%s V%01X", Mnemonics.SKNP, indx);
-				srcLine.type = DasmLineType.CODE_CONDITIONAL_SKIP;
-				break;
+		case 0xE000:
+			if (nn == 0x9E) {			// SKP Vx - Skips next instruction if key with the value of Vx is pressed.
+				reg(sb.append(Mnemonics.SKP).append(' '), x);
+			} else if (nn == 0xA1) {	// SKNP Vx - Skip next instruction if key with the value of Vx is not pressed.
+				reg(sb.append(Mnemonics.SKNP).append(' '), x);
 			}
-		}
 			break;
 		case 0xF000: 
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			switch (opcode & 0x00FF) {
+			switch (nn) {
 			case 0x07: // LD Vx, DT - Sets VX to the value of the delay timer.
-				asmText = String.format("%s V%01X, DT", Mnemonics.LD, indx);
+				reg(sb.append(Mnemonics.LD).append(' '), x).append(", DT");
 				break;
 			case 0x0A: // LD Vx, K - A key press is awaited, and then stored in VX.
-				asmText = String.format("%s V%01X, K", Mnemonics.LD, indx);
+				reg(sb.append(Mnemonics.LD).append(' '), x).append(", K");
 				break;
 			case 0x15: // LD DT, Vx - Sets the delay timer to Vx
-				asmText = String.format("%s DT, V%01X", Mnemonics.LD, indx);
+				reg(sb.append(Mnemonics.LD).append(" DT, "), x);
 				break;
 			case 0x18: // LD ST, Vx - Sets the sound timer to VX.
-				asmText = String.format("%s ST, V%01X", Mnemonics.LD, indx);
+				reg(sb.append(Mnemonics.LD).append(" ST, "), x);
 				break;
 			case 0x1E: // ADD I, Vx - Sets I = I + Vx. 
-				asmText = String.format("%s I, V%01X", Mnemonics.ADD, indx);
+				reg(sb.append(Mnemonics.ADD).append(" I, "), x);
 				break;
 			case 0x29: // LD F, Vx - Set I = location of sprite for digit Vx.
-				asmText = String.format("%s F, V%01X", Mnemonics.LD, indx);
+				reg(sb.append(Mnemonics.LD).append(" F, "), x);
 				break;
 			case 0x30: // [S-CHIP] LD HF, Vx - Points I to 10-byte font sprite for digit VX (0..9)
-				asmText = String.format("%s HF, V%01X", Mnemonics.LD, indx); 
+				reg(sb.append(Mnemonics.LD).append(" HF, "), x);
+				break;
+			case 0x33: // LD B, Vx - BCD of Vx at I, I+1 and I+2
+				reg(sb.append(Mnemonics.LD).append(" B, "), x);
 				break;
-			case 0x33: // LD B, Vx (Get BCD code for Vx)
-				// The interpreter takes the decimal value of Vx, and places the
-				// hundreds
-				// digit in memory at location in I, the tens digit at location
-				// I+1, and the
-				// ones digit at location I+2
-				asmText = String.format("%s B, V%01X", Mnemonics.LD, indx);
+			case 0x55: // LD [I], Vx - Copies V0 through Vx into memory, starting at I.
+				reg(sb.append(Mnemonics.LD).append(" [I], "), x);
 				break;
-			case 0x55: // LD [I], Vx - The interpreter copies the values of registers V0
-						// through Vx into memory, starting at the address in I.
-				asmText = String.format("%s [I], V%01X", Mnemonics.LD, indx);
+			case 0x65: // LD Vx, [I] - Read registers V0 through Vx from memory starting at I. 
+				reg(sb.append(Mnemonics.LD).append(' '), x).append(", [I]");
 				break;
-			case 0x65:  // LD Vx, [I] - Read registers V0 through Vx from memory starting at location I. 
-				asmText = String.format("%s V%01X, [I]", Mnemonics.LD, indx);
+			case 0x75: // [S-CHIP] LD R, Vx - Stores V0..VX in RPL user flags (X <= 7)
+				reg(sb.append(Mnemonics.LD).append(" R, "), x);
 				break;
-			case 0x75:  // [S-CHIP] LD R, Vx - Stores V0..VX in RPL user flags (X <= 7), Maybe could be skipped?
-				asmText = String.format("%s R, V%01X", Mnemonics.LD, indx);
+			case 0x85: // [S-CHIP] LD Vx, R - Read V0..VX from RPL user flags (X <= 7)
+				reg(sb.append(Mnemonics.LD).append(' '), x).append(", R");
 				break;
-			case 0x85:  // [S-CHIP] LD Vx, R - Read V0..VX from RPL user flags (X <= 7), Maybe could be skipped? 
-				asmText = String.format("%s V%01X, R", Mnemonics.LD, indx);
-				break;				
 			}
-
+			break;
 		}
-		break;		
+		return sb;
+	}
+	private static StringBuilder reg(StringBuilder sb, int x) {
+		return sb.append('V').append(HEX_UPPER[x]);
+	}
+	private static StringBuilder hex(StringBuilder sb, int value, int digits) {
+		for (int i = digits - 1; i >= 0; --i) {
+			sb.append(HEX[(value >>> (i * 4)) & 0xF]);
 		}
-		
-		srcLine.bin = opcode;
-		srcLine.addr = cursor_;
-		srcLine.addr1 = cursor_+1;
-		srcLine.asm = asmText;
-		return srcLine;
+		return sb;
+	}
+	private static StringBuilder db(StringBuilder sb, int b) {
+		return sb.append("DB #").append(HEX_UPPER[(b >>> 4) & 0xF]).append(HEX_UPPER[b & 0xF]);
+	}
+	private static StringBuilder address(StringBuilder sb, int a) {
+		return hex(sb.append("0x"), a, 3).append(": ");
 	}
+	private static StringBuilder header(StringBuilder sb) {
+		// Data is not padded to words, so the output assembles back to the same bytes
+		return sb.append('\t').append(Directives.ALIGN).append(" OFF").append(Util.NEW_LINE);
+	}
+	private static StringBuilder equate(StringBuilder sb, String name, int a) {
+		sb.append('\t').append(name).append(' ').append(Directives.I_EQU_SIGN).append(" #");
+		for (int i = 2; i >= 0; --i) {
+			sb.append(HEX_UPPER[(a >>> (i * 4)) & 0xF]);
+		}
+		return sb.append(Util.NEW_LINE);
+	}
+	
+	private String computedComment(int address, int opcode) {
+		if ((opcode & 0xF000) != 0xB000) {
+			return null;
+		}
+		return String.format("computed, %d table entries", flow_.blockOf(address).next.length);
+	}
+	private String callersComment(int address) {
+		int n = flow_.getCallSites(address).size();
+		return String.format("called from %d place%s", n, n == 1 ? "" : "s");
+	}
+	private List<Map<Integer, String>> labelMaps() {
+		List<Map<Integer, String>> maps = new ArrayList<Map<Integer, String>>();
+		maps.add(subroutineMap_);
+		maps.add(jmpLabelMap_);
+		maps.add(dataLabelMap_);
+		return maps;
+	}
+	/* The label put at the address, routines first */
+	private String labelAt(int address) {
+		String s = subroutineMap_.get(address);
+		if (s == null) {
+			s = jmpLabelMap_.get(address);
+		}
+		if (s == null) {
+			s = dataLabelMap_.get(address);
+		}
+		return s;
+	}
+
 	public List<DasmLine> getDisassembleResult() {
 		return lines_;
 	}
+	/**
+	 * @return Blocks and call graph of the last disassembled program.
+	 */
+	public ControlFlow getControlFlow() {
+		return flow_;
+	}
 	public String getDisassembleResultAsString() {
 		return getDisassembleResultAsString(false, false);
 	}
 	
 	public String getDisassembleResultAsString(boolean showAddress, boolean showComment) {
-		StringBuilder sb = new StringBuilder();
+		StringBuilder sb = header(new StringBuilder());
+		for (String equ : equates_) {
+			sb.append(equ);
+		}
 		for (DasmLine line : lines_) {
 			if (line.label.length() > 0) {
 				sb.append(line.label).append(":").append(Util.NEW_LINE);
 			}
 			if (showAddress) {
-				sb.append(String.format("0x%03x", line.addr)).append(": ");
+				address(sb, line.addr);
 			}
 			if (line.type != DasmLineType.DATA) {
 				sb.append('\t').append(line.asm);
 			} else {
-				sb.append('\t').append(line.data).append(Util.NEW_LINE);
-				if (line.label1.length() > 0) {
-					sb.append(line.label1).append(":").append(Util.NEW_LINE);
-				}
-				if (showAddress) {
-					sb.append(String.format("0x%03x", line.addr1)).append(": ");
+				sb.append('\t').append(line.data);
+				if (line.data1 != null) {
+					sb.append(Util.NEW_LINE);
+					if (line.label1.length() > 0) {
+						sb.append(line.label1).append(":").append(Util.NEW_LINE);
+					}
+					if (showAddress) {
+						address(sb, line.addr1);
+					}
+					sb.append('\t').append(line.data1);
 				}
-				sb.append('\t').append(line.data1);
 			}
 			if (showComment && line.comment != null) {
 				sb.append(" ;; ").append(line.comment);
 			}
 			sb.append(Util.NEW_LINE);
 		}
-		sb.append("END").append(Util.NEW_LINE);
 		return sb.toString();
 	}
 	
 	
 	private String nextSubroutineName() {
-		return String.format("SUB%d", srCounter_++);
+		return "SUB" + srCounter_++;
 	}
 	private String nextLabelName() {
-		return String.format("LABEL%d", lbCounter_++);
+		return "LABEL" + lbCounter_++;
 	}
 	private String nextDataName() {
-		return String.format("DATA%d", dtCounter_++);
+		return "DATA" + dtCounter_++;
 	}
 	
 	/**
 	 * Side effect: lines_ are changed.
-	 * Nothing to do now.
+	 * Puts the labels at their lines, routines first. A label with no line of 
+	 * its own, inside an instruction or out of the program, becomes an equate.
 	 */
 	private void enhance() {
-		if (lines_!=null && lines_.size()>0) {
-			int i = 0;
-			int s = lines_.size();
-			for ( ; i<s; ++i){
-				DasmLine line = lines_.get(i);
-				if (subroutineMap_.containsKey(line.addr)) {
-					line.label = subroutineMap_.get(line.addr);
-				} else if (jmpLabelMap_.containsKey(line.addr)) {
-					line.label = jmpLabelMap_.get(line.addr);
-				} else {
-					
-				}
-				// For data
-				if (line.addr <= lastRet) {
-					if (dataLabelMap_.containsKey(line.addr)) {
-						line.type = DasmLineType.DATA;
-						line.label = dataLabelMap_.get(line.addr);
-						line.data = String.format("DB #%02X",
-								(line.bin >>> 8) & 0xFF);
-						line.data1 = String.format("DB #%02X", line.bin & 0xFF);
-						line.comment = "data?";
-
-					}
-					if (dataLabelMap_.containsKey(line.addr1)) {
-						line.type = DasmLineType.DATA;
-						line.label1 = dataLabelMap_.get(line.addr1);
-						line.data = String.format("DB #%02X",
-								(line.bin >>> 8) & 0xFF);
-						line.data1 = String.format("DB #%02X", line.bin & 0xFF);
-						line.comment = "data?";
-					}
-				} else {
-					line.comment = "data?";
-					line.type = DasmLineType.DATA;
-					line.data = String.format("DB #%02X",
-							(line.bin >>> 8) & 0xFF);
-					line.data1 = String.format("DB #%02X", line.bin & 0xFF);
-					if (dataLabelMap_.containsKey(line.addr)) {
-						line.label = dataLabelMap_.get(line.addr);
-
-					}
-					if (dataLabelMap_.containsKey(line.addr1)) {
-						line.label1 = dataLabelMap_.get(line.addr1);
+		HashMap<Integer, DasmLine> at = new HashMap<Integer, DasmLine>();
+		HashMap<Integer, DasmLine> second = new HashMap<Integer, DasmLine>();
+		for (DasmLine line : lines_) {
+			at.put(line.addr, line);
+			if (line.type == DasmLineType.DATA && line.data1 != null) {
+				second.put(line.addr1, line);
+			}
+		}
+		for (Map<Integer, String> map : labelMaps()) {
+			for (Map.Entry<Integer, String> e : new TreeMap<Integer, String>(map).entrySet()) {
+				DasmLine line = at.get(e.getKey());
+				if (line != null && line.label.length() == 0) {
+					line.label = e.getValue();
+					if (map == subroutineMap_ && line.comment == null) {
+						line.comment = callersComment(e.getKey());
 					}
+					continue;
 				}
-
-			} // End of for loop
+				line = second.get(e.getKey());
+				if (line != null && line.label1.length() == 0) {
+					line.label1 = e.getValue();
+					continue;
+				}
+				equates_.add(equate(new StringBuilder(), e.getValue(), e.getKey()).toString());
+			}
 		}
 	}
 	
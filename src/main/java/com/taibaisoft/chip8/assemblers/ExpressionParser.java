@@ -24,8 +24,8 @@
 package com.taibaisoft.chip8.assemblers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Stack;
 
@@ -60,12 +60,46 @@ import java.util.Stack;
  */
 public class ExpressionParser {
 	final static int MAX_TOKENS = 64;
+	/** The cache is dropped when it grows past this many distinct expressions. */
+	final static int MAX_CACHED = 1 << 16;
+	
+	/* 
+	 * Instructions of a compiled expression. Every instruction is INSTR_SIZE ints:
+	 * the operation, then the kind and value of its first and second operands.
+	 * Operands taken straight from the expression are looked up when the 
+	 * operation runs, as the string based evaluation used to do.
+	 */
+	final static int INSTR_SIZE = 5;
+	final static int C_RESULT = 0;	// Second operand is the result
+	final static int C_POS = 1;
+	final static int C_NEG = 2;
+	final static int C_NOT = 3;
+	final static int C_POW = 4;
+	final static int C_SHL = 5;
+	final static int C_SHR = 6;
+	final static int C_MUL = 7;
+	final static int C_DIV = 8;
+	final static int C_ADD = 9;
+	final static int C_SUB = 10;
+	final static int C_AND = 11;
+	final static int C_OR = 12;
+	final static int C_XOR = 13;
+	final static int C_MOD = 14;
+	final static int C_ABORT = 15;	// Unknown operator, ends with -1
+	
+	final static int K_NONE = 0;	// No operand, counts as 0
+	final static int K_STACK = 1;	// Result of an earlier instruction
+	final static int K_CONST = 2;
+	final static int K_SYM = 3;		// Value is the symbol id
+	final static int K_FAIL = 4;	// Malformed number or missing operand
 	
 	List<String> tokens_  = new ArrayList<String>();
 	String expr_ = "";
 	List<String> postfixExpr_ = new ArrayList<String>();
-	HashMap<String, Integer> symbolTable_ = new HashMap<String,Integer>();
-	HashSet<String> usedSymbolSet_ = new HashSet<String>();
+	SymbolTable symbolTable_ = null;
+	HashMap<String, Compiled> cache_ = new HashMap<String, Compiled>();
+	int[] stack_ = new int[16];
+	int value_ = -1;
 	
 	static char[] ops_ = new char[] {
 			'=',  '_',  '~', // Use special chars for unary +, - ~
@@ -75,47 +109,95 @@ public class ExpressionParser {
 			'&',  '|',  '^',
 			'\\', '%',  '\0',
 	};
+	/** Priority group of each operator character, -1 if not an operator. */
+	static int[] opGroup_ = new int[128];
+	static {
+		Arrays.fill(opGroup_, -1);
+		for (int j = 0; j < ops_.length; ++j) {
+			opGroup_[ops_[j]] = j / 3;
+		}
+	}
+	
+	/**
+	 * An expression compiled to int coded RPN. Variables are referred to by
+	 * their id in the symbol table and looked up at each evaluation, so one
+	 * compiled expression serves all the passes.
+	 */
+	static final class Compiled {
+		final int[] code;
+		final int[] symbols;
+		final int maxDepth;
+		Compiled(int[] code, int[] symbols, int maxDepth) {
+			this.code = code;
+			this.symbols = symbols;
+			this.maxDepth = maxDepth;
+		}
+	}
 
+	public ExpressionParser() {
+		this(new SymbolTable());
+	}
+	/**
+	 * @param symbolTab the table variables are looked up in, and marked used in.
+	 */
+	public ExpressionParser(SymbolTable symbolTab) {
+		symbolTable_ = symbolTab;
+	}
 	public void init() {
-		usedSymbolSet_.clear();
-		usedSymbolSet_.add("?");
+		symbolTable_.markUsed("?");
 	}
 	/**
-	 * This algorithm involves two steps:
-	 * 1. Transforms the expression into postfix notion, with variable replacement;
-	 * 2. Evaluate the postfix expression to an integer.
+	 * This algorithm involves two steps, the first one is only done once per 
+	 * distinct expression:
+	 * 1. Transforms the expression into postfix notion and compiles it;
+	 * 2. Evaluate the compiled expression to an integer, with variable replacement.
 	 * @param expr
-	 * @param symbolTab
 	 * @return 
 	 */
-	public Pair<Boolean, Integer> parse (String expr, /*IN, OUT*/ HashMap<String, Integer> symbolTab) {
-		// 0. Initialize
-		expr_ = expr;
-		postfixExpr_.clear();
-		tokens_.clear();
-		
-		if (symbolTab!=null) {
-			symbolTable_ = symbolTab;
-		}
-
+	public Pair<Boolean, Integer> parse (String expr) {
 		Pair<Boolean, Integer> p = new Pair<Boolean, Integer>(false, -1);
 		// 0.
-		if (symbolTable_.containsKey(expr)) {
-			usedSymbolSet_.add(expr);
+		int id = symbolTable_.find(expr);
+		if (id!=SymbolTable.NOT_FOUND && symbolTable_.isDefined(id)) {
+			symbolTable_.markUsed(id);
 			p.first = true;
-			p.second = symbolTable_.get(expr);
-		} else {
-
+			p.second = symbolTable_.get(id);
+		} else if (evaluate(compile(expr))) {
+			p.first = true;
+			p.second = value_;
+		}
+		return p;
+	}
+	
+	/**
+	 * Returns the compiled form of the given expression from the cache, compiling
+	 * it the first time.
+	 * @param expr
+	 * @return
+	 */
+	protected Compiled compile(String expr) {
+		Compiled c = cache_.get(expr);
+		if (c == null) {
 			// 1. Tokenize
+			expr_ = expr;
+			postfixExpr_.clear();
+			tokens_.clear();
 			tokenize();
 
 			// 2. Convert to RPN with Shunting Yard Algorithm
 			convertToRPN();
-
-			// 3. Evaluate
-			p = evaluate();
+			
+			// 3. Compile
+			c = compileRPN();
+			if (cache_.size() >= MAX_CACHED) {
+				cache_.clear();
+			}
+			cache_.put(expr, c);
+			if (stack_.length < c.maxDepth) {
+				stack_ = new int[c.maxDepth];
+			}
 		}
-		return p;
+		return c;
 	}
 	
 	/**
@@ -169,77 +251,200 @@ public class ExpressionParser {
 		}
 	}
 	
+	/* Instructions being emitted by compileRPN() */
+	private int[] code_ = new int[32];
+	private int codeSize_ = 0;
+	private List<Integer> symbols_ = new ArrayList<Integer>();
+	
 	/**
-	 * 
+	 * Runs the postfix expression symbolically, keeping the operands taken from 
+	 * the expression as (kind, value) pairs until an operation consumes them.
+	 * Depends on postfixExpr_.
 	 * @return
 	 */
-	protected Pair<Boolean, Integer> evaluate() {
-		// Depends on postfixExpr_
-		Pair<Boolean, Integer> p = new Pair<Boolean, Integer>(true, -1);
-		Stack<String> stack = new Stack<String>();
-		int i = 0;
-		
-		outter_loop:
-		for(;i<postfixExpr_.size();++i) {
-			String s = postfixExpr_.get(i);
+	protected Compiled compileRPN() {
+		codeSize_ = 0;
+		symbols_.clear();
+		// Pending operands, two ints each
+		int[] pending = new int[2 * (postfixExpr_.size() + 1)];
+		int np = 0;
+		int depth = 0, maxDepth = 1;
+		for (String s : postfixExpr_) {
 			if (!isOp(s)) {
-				stack.push(s);
-			} else  {
-				String first = null, second = null;
-				if (!stack.empty()) {
-					second = stack.pop();
+				operand(s, pending, np);
+				np += 2;
+			} else {
+				char o = s.charAt(0);
+				boolean unary = o=='_' || o=='=' || o=='~';
+				if (np==0) {
+					// Nothing to apply the operator to
+					pending[np++] = K_FAIL;
+					pending[np++] = 0;
+					continue;
 				}
-				if (!stack.empty() && s.compareTo("_")!=0 && s.compareTo("=")!=0 && s.compareTo("~")!=0) {
-					first = stack.pop();
+				int bk = pending[np-2], bv = pending[np-1];
+				np -= 2;
+				int ak = K_NONE, av = 0;
+				if (!unary && np>0) {
+					ak = pending[np-2];
+					av = pending[np-1];
+					np -= 2;
 				}
-				if (second!=null) {
-					Pair<Boolean, Integer> p1 = new Pair<Boolean, Integer>(true, 0);
-					Pair<Boolean, Integer> p2;
-					if (first!=null) {
-						p1 = getNumber(first);
-					}
-					p2 = getNumber(second);
-					int tmp = 0;
-					if (p1.first && p2.first) {
-						switch (s.charAt(0)) 
-						{
-						case '=': tmp = p2.second; break;
-						case '_': tmp = -p2.second; break;
-						case '~': tmp = ~p2.second; break;
-						case '!': tmp = (int)Math.pow(p1.second, p2.second); break;
-						case '+': tmp = p1.second + p2.second; break;
-						case '-': tmp = p1.second - p2.second; break;
-						case '*': tmp = p1.second * p2.second; break;
-						case '/': tmp = p1.second / p2.second; break;
-						case '<': tmp = p1.second << p2.second; break;
-						case '>': tmp = p1.second >>> p2.second; break;
-						case '&': tmp = p1.second & p2.second; break;
-						case '|': tmp = p1.second | p2.second; break;
-						case '^': tmp = p1.second ^ p2.second; break;
-						case '\\': tmp = p1.second / p2.second; break;
-						case '%': tmp = p1.second % p2.second; break;
-						default:
-							return new Pair<Boolean, Integer>(true, -1);
-						}
-						
-						// If good, push it to the stack
-						stack.push(String.format("%d", tmp));
-					} else {
-						p.first = false;
-						stack.clear();
-						break outter_loop;
-					}
-				} else {
-					// Second is the only one left
-					stack.push(second);
+				if (ak==K_STACK) {
+					depth--;
+				}
+				if (bk==K_STACK) {
+					depth--;
 				}
+				emit(opCode(o), ak, av, bk, bv);
+				pending[np++] = K_STACK;
+				pending[np++] = 0;
+				maxDepth = Math.max(maxDepth, ++depth);
 			}
 		}
-		
-		if (!stack.empty()) {
-			p = getNumber(stack.pop());
+		if (np==0) {
+			emit(C_RESULT, K_NONE, 0, K_CONST, -1);
+		} else {
+			emit(C_RESULT, K_NONE, 0, pending[np-2], pending[np-1]);
 		}
-		return p;
+		int[] symbols = new int[symbols_.size()];
+		for (int i = 0; i < symbols.length; ++i) {
+			symbols[i] = symbols_.get(i);
+		}
+		return new Compiled(Arrays.copyOf(code_, codeSize_), symbols, maxDepth);
+	}
+	
+	private void operand(String numberStr, int[] pending, int np) {
+		char c = numberStr.charAt(0);
+		int radix = 10;
+		int startIndex = 0;
+		if (c=='$') {
+			radix = 2;
+			startIndex++;
+		} else if (c=='#') {
+			radix = 16;
+			startIndex++;
+		} else if (c=='@') {
+			radix = 8;
+			startIndex++;
+		} else if (!Character.isDigit(c)) {
+			int id = symbolTable_.intern(numberStr);
+			if (!symbols_.contains(id)) {
+				symbols_.add(id);
+			}
+			pending[np] = K_SYM;
+			pending[np+1] = id;
+			return;
+		}
+		try {
+			pending[np+1] = Integer.parseInt(numberStr.substring(startIndex), radix);
+			pending[np] = K_CONST;
+		} catch (NumberFormatException e) {
+			pending[np] = K_FAIL;
+		}
+	}
+	
+	private static int opCode(char o) {
+		switch (o) {
+		case '=': return C_POS;
+		case '_': return C_NEG;
+		case '~': return C_NOT;
+		case '!': return C_POW;
+		case '<': return C_SHL;
+		case '>': return C_SHR;
+		case '*': return C_MUL;
+		case '/': return C_DIV;
+		case '\\': return C_DIV;
+		case '+': return C_ADD;
+		case '-': return C_SUB;
+		case '&': return C_AND;
+		case '|': return C_OR;
+		case '^': return C_XOR;
+		case '%': return C_MOD;
+		default: return C_ABORT;
+		}
+	}
+	
+	private void emit(int op, int ak, int av, int bk, int bv) {
+		if (codeSize_ + INSTR_SIZE > code_.length) {
+			code_ = Arrays.copyOf(code_, code_.length * 2);
+		}
+		code_[codeSize_++] = op;
+		code_[codeSize_++] = ak;
+		code_[codeSize_++] = av;
+		code_[codeSize_++] = bk;
+		code_[codeSize_++] = bv;
+	}
+	
+	/**
+	 * Runs a compiled expression on the int stack. Sets value_ on success.
+	 * @param c
+	 * @return false if a variable is not defined yet or the expression is malformed.
+	 */
+	protected boolean evaluate(Compiled c) {
+		int[] code = c.code;
+		int[] st = stack_;
+		int sp = 0;
+		for (int pc = 0; pc < code.length; pc += INSTR_SIZE) {
+			int op = code[pc];
+			// The second operand is on top of the stack if both are there
+			int b = 0, a = 0;
+			boolean ok = true;
+			int k = code[pc+3];
+			if (k == K_STACK) {
+				b = st[--sp];
+			} else if (k == K_CONST) {
+				b = code[pc+4];
+			} else if (k == K_SYM) {
+				ok = lookup(code[pc+4]);
+				b = value_;
+			} else if (k == K_FAIL) {
+				ok = false;
+			}
+			k = code[pc+1];
+			if (k == K_STACK) {
+				a = st[--sp];
+			} else if (k == K_CONST) {
+				a = code[pc+2];
+			} else if (k == K_SYM) {
+				ok &= lookup(code[pc+2]);
+				a = value_;
+			} else if (k == K_FAIL) {
+				ok = false;
+			}
+			if (!ok) {
+				return false;
+			}
+			switch (op) {
+			case C_RESULT: value_ = b; return true;
+			case C_POS: break;
+			case C_NEG: b = -b; break;
+			case C_NOT: b = ~b; break;
+			case C_POW: b = (int)Math.pow(a, b); break;
+			case C_SHL: b = a << b; break;
+			case C_SHR: b = a >>> b; break;
+			case C_MUL: b = a * b; break;
+			case C_DIV: b = a / b; break;
+			case C_ADD: b = a + b; break;
+			case C_SUB: b = a - b; break;
+			case C_AND: b = a & b; break;
+			case C_OR: b = a | b; break;
+			case C_XOR: b = a ^ b; break;
+			case C_MOD: b = a % b; break;
+			default: value_ = -1; return true;
+			}
+			st[sp++] = b;
+		}
+		return false;
+	}
+	
+	private boolean lookup(int id) {
+		if (!symbolTable_.isDefined(id)) {
+			return false;
+		}
+		symbolTable_.markUsed(id);
+		value_ = symbolTable_.get(id);
+		return true;
 	}
 	
 	/**
@@ -249,20 +454,10 @@ public class ExpressionParser {
 	 * @return 1 if c1 is higher priority than c2; 0 if same; -1 if lower.
 	 */
 	protected int opPriority(String c1, String c2) {
-		int i1 =0 , i2= 0;
-		char a1 = c1.charAt(0), a2 = c2.charAt(0);
-		
-		for (int j =0 ; j < ops_.length; ++j) {
-			if (ops_[j]==a1) {
-				i1 = j;
-			}
-			if (ops_[j]==a2) {
-				i2 = j;
-			}
-		}		
-		if (i1/3>i2/3) {
+		int i1 = opGroup_[c1.charAt(0)], i2 = opGroup_[c2.charAt(0)];
+		if (i1>i2) {
 			return -1;
-		} else if (i1/3==i2/3) {
+		} else if (i1==i2) {
 			return 0;
 		} else {
 			return 1;
@@ -273,75 +468,7 @@ public class ExpressionParser {
 	}
 	
 	protected boolean isOp(char c) {
-		boolean r = false;
-		for (char o : ops_) {
-			if (o==c) {
-				r = true;
-				break;
-			}
-		}
-		return r;
-	}
-	protected Pair<Boolean, Integer> getNumber(String numberStr ) {
-		Pair<Boolean, Integer> f = new Pair<Boolean, Integer>(false, -1);
-		int number = -1;		
-		do {
-			if (numberStr == null || numberStr.length() < 1) {
-				break;
-			}
-			int radix = 10;
-			int sign = 1;
-			int startIndex = 0;
-			boolean isVar = false;
-			char c = numberStr.charAt(0);
-			if (c=='-') {
-				sign = -1;
-				c = numberStr.charAt(1);
-				startIndex++;
-			} else if (c=='+') {
-				sign = 1;
-				c = numberStr.charAt(1);
-				startIndex++;
-			}
-			if (c=='$') {
-				radix = 2;
-				startIndex++;
-			} else if (c=='#') {
-				radix = 16;
-				startIndex++;
-			} else if (c=='@') {
-				radix = 8;
-				startIndex++;
-			} else {
-				if (Character.isDigit(c)) {
-					radix = 10;
-				} else {
-					// Consider variable
-					isVar = true;
-				}
-			}
-			if (!isVar) {
-				try {
-					number = Integer.parseInt(
-							numberStr.substring(startIndex),
-							radix) * sign;
-				} catch (NumberFormatException e) {
-					break;
-				}
-			} else {
-				//
-				String vname = numberStr.substring(startIndex);
-				if (symbolTable_.containsKey(vname)) {
-					number = symbolTable_.get(vname)  * sign;
-					usedSymbolSet_.add(vname);
-				} else {
-					break;
-				}
-			}
-			f.first = true;
-			f.second = number;
-		} while(false);
-		return f;	
+		return c < 128 && opGroup_[c] >= 0;
 	}
 	
 	protected void tokenize() {
@@ -390,11 +517,16 @@ public class ExpressionParser {
 		}
 		
 	}
-	public void pushSymbolAsUsed(String sym) {
-		usedSymbolSet_.add(sym);
+	/**
+	 * Collects the ids of the variables the given expression refers to,
+	 * without evaluating it.
+	 * @param expr
+	 * @return
+	 */
+	public int[] getReferencedSymbols(String expr) {
+		return compile(expr).symbols;
 	}
-	public HashSet<String> getUsedSymbolSet() {
-		return usedSymbolSet_;
+	public void pushSymbolAsUsed(String sym) {
+		symbolTable_.markUsed(sym);
 	}
-	
-}
\ No newline at end of file
+}
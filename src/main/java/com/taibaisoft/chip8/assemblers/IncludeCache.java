@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide cache of tokenized include files, so a library included by 
+ * many sources, or by the same source assembled again, is read and tokenized 
+ * once. An entry is keyed by the real path of the file and is only reused 
+ * while the file keeps the same modification time and size.
+ * 
+ * The cached lines are shared, callers must not modify the token arrays.
+ * @author jeffreybian
+ *
+ */
+final class IncludeCache {
+	
+	private static class Entry {
+		final long mtime;
+		final long size;
+		final List<TokenizedLine> lines;
+		Entry(long mtime, long size, List<TokenizedLine> lines) {
+			this.mtime = mtime;
+			this.size = size;
+			this.lines = lines;
+		}
+	}
+	
+	private static final ConcurrentHashMap<Path, Entry> entries_ = new ConcurrentHashMap<Path, Entry>();
+	
+	private IncludeCache() {
+	}
+	
+	/**
+	 * @param realPath Canonical path of the file, as of Path.toRealPath().
+	 * @return The non-blank lines of the file.
+	 * @throws IOException
+	 */
+	public static List<TokenizedLine> get(Path realPath) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(realPath, BasicFileAttributes.class);
+		long mtime = attrs.lastModifiedTime().toMillis();
+		long size = attrs.size();
+		Entry e = entries_.get(realPath);
+		if (e == null || e.mtime != mtime || e.size != size) {
+			e = new Entry(mtime, size, tokenize(realPath));
+			entries_.put(realPath, e);
+		}
+		return e.lines;
+	}
+	
+	/**
+	 * Drops the entry of the file, for changes the modification time and size 
+	 * may not tell, e.g. on file systems with a coarse time stamp.
+	 */
+	public static void invalidate(Path realPath) {
+		entries_.remove(realPath);
+	}
+	
+	private static List<TokenizedLine> tokenize(Path file) throws IOException {
+		final List<TokenizedLine> lines = new ArrayList<TokenizedLine>();
+		new Tokenizer().tokenize(AsciiSequence.open(file), new Tokenizer.LineHandler() {
+			@Override
+			public void handleLine(int lineNo, String[] tokens) {
+				if (tokens.length > 0) {
+					TokenizedLine tl = new TokenizedLine();
+					tl.lineNo = lineNo;
+					tl.tokens = tokens;
+					lines.add(tl);
+				}
+			}
+		});
+		return Collections.unmodifiableList(lines);
+	}
+}
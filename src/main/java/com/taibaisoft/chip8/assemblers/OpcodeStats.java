@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.taibaisoft.chip8.platform.Util;
+import com.taibaisoft.chip8.processor.Chip8;
+import com.taibaisoft.chip8.processor.HeadlessRunner;
+import com.taibaisoft.chip8.processor.RomDatabase;
+import com.taibaisoft.chip8.processor.RomLibrary;
+import com.taibaisoft.chip8.processor.RomSettings;
+
+/**
+ * Opcode frequencies over a corpus of programs: every instruction kind, every 
+ * pair of kinds one after the other, and the sprite heights DRW uses. 
+ * 
+ * Static counts are taken over the code reachable from the load address, see 
+ * ControlFlow, a pair being an instruction and the one it falls through to. 
+ * Dynamic counts are taken over a headless run, a pair being two instructions 
+ * executed in a row.
+ * 
+ * Counters are plain arrays, one set per thread, added up with merge().
+ * @author jeffreybian
+ *
+ */
+public class OpcodeStats {
+	/**
+	 * Instruction kinds, by the usual opcode patterns.
+	 */
+	public static final String[] KINDS = {
+		"00E0", "00EE", "00CN", "00FB", "00FC", "00FD", "00FE", "00FF", "0NNN",
+		"1NNN", "2NNN", "3XNN", "4XNN", "5XY0", "6XNN", "7XNN",
+		"8XY0", "8XY1", "8XY2", "8XY3", "8XY4", "8XY5", "8XY6", "8XY7", "8XYE",
+		"9XY0", "ANNN", "BNNN", "CXNN", "DXYN", "EX9E", "EXA1",
+		"FX07", "FX0A", "FX15", "FX18", "FX1E", "FX29", "FX30", "FX33", "FX55", "FX65", "FX75", "FX85",
+	};
+	private static final int K = KINDS.length;
+	private static final int DRW = 29;
+	
+	public int programs = 0;
+	public int failed = 0;
+	public final long[] staticKinds = new long[K];
+	public final long[] staticPairs = new long[K * K];
+	/** By sprite height, 0 for the 16x16 S-CHIP sprite. */
+	public final long[] staticRows = new long[16];
+	public long dynamicInstructions = 0;
+	public final long[] dynamicKinds = new long[K];
+	public final long[] dynamicPairs = new long[K * K];
+	public final long[] dynamicRows = new long[16];
+	
+	/**
+	 * @return Index in KINDS, -1 if the opcode is not an instruction.
+	 */
+	public static int kind(int op) {
+		if (!ControlFlow.isInstruction(op)) {
+			return -1;
+		}
+		switch (op & 0xF000) {
+		case 0x0000:
+			switch (op) {
+			case 0x00E0: return 0;
+			case 0x00EE: return 1;
+			case 0x00FB: return 3;
+			case 0x00FC: return 4;
+			case 0x00FD: return 5;
+			case 0x00FE: return 6;
+			case 0x00FF: return 7;
+			}
+			return (op & 0xFFF0) == 0x00C0 ? 2 : 8;
+		case 0x8000:
+			return (op & 0xF) == 0xE ? 24 : 16 + (op & 0xF);
+		case 0x9000: return 25;
+		case 0xA000: return 26;
+		case 0xB000: return 27;
+		case 0xC000: return 28;
+		case 0xD000: return DRW;
+		case 0xE000:
+			return (op & 0xFF) == 0x9E ? 30 : 31;
+		case 0xF000:
+			switch (op & 0xFF) {
+			case 0x07: return 32;
+			case 0x0A: return 33;
+			case 0x15: return 34;
+			case 0x18: return 35;
+			case 0x1E: return 36;
+			case 0x29: return 37;
+			case 0x30: return 38;
+			case 0x33: return 39;
+			case 0x55: return 40;
+			case 0x65: return 41;
+			case 0x75: return 42;
+			default: return 43;
+			}
+		}
+		// 1NNN to 7XNN
+		return 9 + ((op >>> 12) - 1);
+	}
+	
+	/**
+	 * Counts the code reachable from the load address.
+	 * @param memory Program loaded as in Chip8 memory.
+	 * @param start Load address.
+	 */
+	public void addStatic(byte[] memory, int start) {
+		ControlFlow flow = ControlFlow.analyze(memory, start, memory.length);
+		for (int a = start; a + 1 < memory.length; ++a) {
+			if (!flow.isCode(a)) {
+				continue;
+			}
+			int op = opAt(memory, a);
+			int k = kind(op);
+			staticKinds[k]++;
+			if (k == DRW) {
+				staticRows[op & 0xF]++;
+			}
+			if (falls(op) && flow.isCode(a + 2)) {
+				staticPairs[k * K + kind(opAt(memory, a + 2))]++;
+			}
+		}
+	}
+	/* If the next instruction runs right after this one */
+	private static boolean falls(int op) {
+		switch (op & 0xF000) {
+		case 0x1000:
+		case 0x2000:
+		case 0xB000:
+			return false;
+		}
+		return op != 0x00EE && op != 0x00FD;
+	}
+	private static int opAt(byte[] memory, int a) {
+		return ((memory[a] & 0xFF) << 8) | (memory[a + 1] & 0xFF);
+	}
+	
+	/**
+	 * Counts the instructions of a headless run with no key pressed. The run stops 
+	 * early at EXIT or a CPU fault.
+	 * @param prog The program file.
+	 * @param rs Settings to run it with.
+	 * @param frames Frames to run, at the speed of the settings.
+	 */
+	public void addDynamic(byte[] prog, RomSettings rs, int frames) {
+		HeadlessRunner runner = new HeadlessRunner();
+		runner.getCPU().setQuirks(rs.quirks);
+		runner.setCyclesPerFrame(rs.speedOr(Chip8.DEFAULT_CPU_HZ) / Chip8.DEFAULT_TIMER_HZ);
+		runner.load(prog, rs.mode, rs.loadAddress, 0);
+		Chip8 cpu = runner.getCPU();
+		byte[] memory = cpu.getMemory();
+		long n = (long)frames * runner.getCyclesPerFrame();
+		int last = -1;
+		try {
+			for (long i = 0; i < n; ++i) {
+				int pc = cpu.getPC();
+				int op = pc + 1 < memory.length ? opAt(memory, pc) : 0;
+				if (runner.runCycles(1) == 0) {
+					break;
+				}
+				int k = kind(op);
+				if (k < 0) {
+					// Not an instruction, the emulator ran it as a no-op
+					last = -1;
+					continue;
+				}
+				dynamicInstructions++;
+				dynamicKinds[k]++;
+				if (k == DRW) {
+					dynamicRows[op & 0xF]++;
+				}
+				if (last >= 0) {
+					dynamicPairs[last * K + k]++;
+				}
+				last = k;
+				if (runner.isHalted()) {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			// Counts so far are kept
+		}
+	}
+	
+	/**
+	 * Adds the counts of another set.
+	 */
+	public void merge(OpcodeStats o) {
+		programs += o.programs;
+		failed += o.failed;
+		dynamicInstructions += o.dynamicInstructions;
+		add(staticKinds, o.staticKinds);
+		add(staticPairs, o.staticPairs);
+		add(staticRows, o.staticRows);
+		add(dynamicKinds, o.dynamicKinds);
+		add(dynamicPairs, o.dynamicPairs);
+		add(dynamicRows, o.dynamicRows);
+	}
+	private static void add(long[] to, long[] from) {
+		for (int i = 0; i < to.length; ++i) {
+			to[i] += from[i];
+		}
+	}
+	
+	/**
+	 * Counts every program under the directory, on a pool of <code>jobs</code> 
+	 * threads each with its own counters.
+	 * @param root
+	 * @param jobs
+	 * @param frames Frames of the dynamic run, 0 for static counts only.
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static OpcodeStats collect(Path root, int jobs, final int frames) throws IOException, InterruptedException {
+		final List<Path> files = new ArrayList<Path>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && RomLibrary.isCandidate(file, attrs.size())) {
+					files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files);
+		
+		final List<OpcodeStats> perThread = Collections.synchronizedList(new ArrayList<OpcodeStats>());
+		final ThreadLocal<OpcodeStats> local = new ThreadLocal<OpcodeStats>() {
+			@Override
+			protected OpcodeStats initialValue() {
+				OpcodeStats s = new OpcodeStats();
+				perThread.add(s);
+				return s;
+			}
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, jobs));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>(files.size());
+			for (final Path file : files) {
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						OpcodeStats s = local.get();
+						try {
+							byte[] prog = Files.readAllBytes(file);
+							RomSettings rs = RomDatabase.getInstance().settingsFor(prog, Chip8.DEFAULT_LOAD_ADDRESS);
+							byte[] memory = new byte[Math.min(rs.loadAddress + prog.length, Chip8.MEMSIZE)];
+							System.arraycopy(prog, 0, memory, rs.loadAddress, memory.length - rs.loadAddress);
+							s.addStatic(memory, rs.loadAddress);
+							if (frames > 0) {
+								s.addDynamic(prog, rs, frames);
+							}
+							s.programs++;
+						} catch (IOException e) {
+							s.failed++;
+							System.err.println("Cannot read " + file + ": " + e.getMessage());
+						} catch (RuntimeException e) {
+							s.failed++;
+							System.err.println("Cannot analyze " + file + ": " + e);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : results) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					System.err.println(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		OpcodeStats total = new OpcodeStats();
+		for (OpcodeStats s : perThread) {
+			total.merge(s);
+		}
+		return total;
+	}
+	
+	/**
+	 * One row per count that is not zero: table (kind, pair or drw), first, second, static, dynamic.
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		String nl = Util.NEW_LINE;
+		out.write("table,first,second,static,dynamic" + nl);
+		for (int k = 0; k < K; ++k) {
+			if (staticKinds[k] + dynamicKinds[k] > 0) {
+				out.write("kind," + KINDS[k] + ",," + staticKinds[k] + "," + dynamicKinds[k] + nl);
+			}
+		}
+		for (int p = 0; p < K * K; ++p) {
+			if (staticPairs[p] + dynamicPairs[p] > 0) {
+				out.write("pair," + KINDS[p / K] + "," + KINDS[p % K] + "," + staticPairs[p] + "," + dynamicPairs[p] + nl);
+			}
+		}
+		for (int n = 0; n < 16; ++n) {
+			if (staticRows[n] + dynamicRows[n] > 0) {
+				out.write("drw," + (n == 0 ? 16 : n) + ",," + staticRows[n] + "," + dynamicRows[n] + nl);
+			}
+		}
+	}
+	/**
+	 * The same counts as writeCsv(), as one object.
+	 */
+	public void writeJson(Writer out) throws IOException {
+		String nl = Util.NEW_LINE;
+		out.write(String.format(Locale.ENGLISH, "{%n  \"programs\": %d,%n  \"failed\": %d,%n  \"dynamicInstructions\": %d,%n", 
+				programs, failed, dynamicInstructions));
+		String sep = "";
+		out.write("  \"kinds\": {");
+		for (int k = 0; k < K; ++k) {
+			if (staticKinds[k] + dynamicKinds[k] > 0) {
+				out.write(sep + nl + "    " + entry(KINDS[k], staticKinds[k], dynamicKinds[k]));
+				sep = ",";
+			}
+		}
+		out.write(nl + "  }," + nl + "  \"pairs\": {");
+		sep = "";
+		for (int p = 0; p < K * K; ++p) {
+			if (staticPairs[p] + dynamicPairs[p] > 0) {
+				out.write(sep + nl + "    " + entry(KINDS[p / K] + " " + KINDS[p % K], staticPairs[p], dynamicPairs[p]));
+				sep = ",";
+			}
+		}
+		out.write(nl + "  }," + nl + "  \"drw\": {");
+		sep = "";
+		for (int n = 0; n < 16; ++n) {
+			if (staticRows[n] + dynamicRows[n] > 0) {
+				out.write(sep + nl + "    " + entry(Integer.toString(n == 0 ? 16 : n), staticRows[n], dynamicRows[n]));
+				sep = ",";
+			}
+		}
+		out.write(nl + "  }" + nl + "}" + nl);
+	}
+	private static String entry(String key, long s, long d) {
+		return String.format(Locale.ENGLISH, "\"%s\": {\"static\": %d, \"dynamic\": %d}", key, s, d);
+	}
+}
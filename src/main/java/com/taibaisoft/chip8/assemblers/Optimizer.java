@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.taibaisoft.chip8.platform.Util;
+
+/**
+ * Peephole optimizer over the lines of a finished assembler run, cutting the 
+ * number of executed instructions:
+ * - LD/ADD of constants into the same register are folded into one, ADD Vx, 0 
+ *   and LD Vx, Vx are removed. ADD Vx, byte sets VF on overflow, so ADDs are 
+ *   only folded where none of them can overflow: after an LD while the constant 
+ *   sum stays within #FF, or one ADD into another while their bytes add up to 
+ *   at most #FF and x is not F. An LD only replaces the ADDs before it if they 
+ *   follow an LD themselves,
+ * - a jump to the next instruction is removed,
+ * - CALL x; RET becomes JP x,
+ * - a skip over a jump is removed, or inverted if the jump only goes over one 
+ *   instruction.
+ * 
+ * The rewrites are done on source tokens, the Assembler lays the rewritten lines 
+ * out again, so labels simply move with their code. An instruction at a label 
+ * referenced from elsewhere, the entries of a JP V0 table and the instruction 
+ * after a skip never become part of a longer sequence. If the program refers 
+ * to ? or to code by absolute address, instructions are only ever replaced one 
+ * for one.
+ * 
+ * Every instruction costs one cycle. The cycles saved are multiplied by the 
+ * trip count of the loops around them, where it can be told statically.
+ * @author jeffreybian
+ *
+ */
+class Optimizer {
+	
+	/* Savings of one routine, a CALL target or the entry point */
+	private static class Routine {
+		final String name;
+		final int address;
+		int words = 0;
+		long minCycles = 0;
+		long maxCycles = 0;
+		boolean unknownLoops = false;
+		Routine(String name, int address) {
+			this.name = name;
+			this.address = address;
+		}
+	}
+	private final SymbolTable symbolTable_;
+	private final int currentAddressId_;
+	
+	/* Committed rounds */
+	private final Map<String, Routine> routines_ = new LinkedHashMap<String, Routine>();
+	private final List<String> notes_ = new ArrayList<String>();
+	private int removed_ = 0;
+	private int replaced_ = 0;
+	private int rounds_ = 0;
+	/* The round last run, until commit() */
+	private Map<String, Routine> roundRoutines_ = null;
+	private List<String> roundNotes_ = null;
+	private int roundRemoved_ = 0;
+	private int roundReplaced_ = 0;
+	
+	/* Instructions of the round */
+	private CodeView code_;
+	private boolean[] target_;
+	private boolean[] pinned_;
+	private long[] weight_;
+	private boolean[] unknownLoop_;
+	private boolean[] used_;
+	private boolean[] deleted_;
+	private String[][] replacement_;
+	private TreeMap<Integer, String> routineStarts_;
+	
+	Optimizer(SymbolTable symbolTable, int currentAddressId) {
+		symbolTable_ = symbolTable;
+		currentAddressId_ = currentAddressId;
+	}
+	
+	/**
+	 * Runs one round over lines, as left by the assembler with the symbols used 
+	 * by every line recorded. 
+	 * @param lines
+	 * @param start Address the program is loaded at.
+	 * @param length Size of the binary.
+	 * @return The rewritten source lines, not yet assembled, null if nothing could be done.
+	 */
+	List<AsmLine> rewrite(List<AsmLine> lines, int start, int length) {
+		roundRoutines_ = new LinkedHashMap<String, Routine>();
+		roundNotes_ = new ArrayList<String>();
+		roundRemoved_ = 0;
+		roundReplaced_ = 0;
+		
+		// 1. Labels, and which of them are referenced by another line
+		Set<Integer> labels = new HashSet<Integer>();
+		for (AsmLine l : lines) {
+			for (int h = 0; h < CodeView.labelCount(l.tokens) * 2; h += 2) {
+				int id = symbolTable_.find(l.tokens[h]);
+				if (id != SymbolTable.NOT_FOUND && symbolTable_.isDefined(id)) {
+					labels.add(id);
+				}
+			}
+		}
+		Set<Integer> targets = new HashSet<Integer>();
+		boolean canRemove = true;
+		for (AsmLine l : lines) {
+			if (l.usedSymbols == null) {
+				continue;
+			}
+			for (int id : l.usedSymbols) {
+				if (id == currentAddressId_) {
+					canRemove = false;
+				} else if (labels.contains(id) && !definedBy(id, l)) {
+					targets.add(symbolTable_.get(id));
+				}
+			}
+		}
+		
+		// 2. The instructions
+		code_ = new CodeView(lines);
+		target_ = new boolean[code_.size];
+		pinned_ = new boolean[code_.size];
+		used_ = new boolean[code_.size];
+		deleted_ = new boolean[code_.size];
+		replacement_ = new String[code_.size][];
+		weight_ = new long[code_.size];
+		unknownLoop_ = new boolean[code_.size];
+		Arrays.fill(weight_, 1);
+		for (int k = 0; k < code_.size; ++k) {
+			target_[k] = targets.contains(code_.addr[k]);
+			int nnn = code_.op[k] & 0x0FFF;
+			switch (code_.op[k] & 0xF000) {
+			case 0x1000:
+			case 0x2000:
+			case 0xA000:
+				// Code or data in the program by absolute address
+				if (nnn >= start && nnn < start + length && !usesLabel(lines.get(code_.line[k]), labels)) {
+					canRemove = false;
+				}
+				break;
+			case 0xB000:
+				// Entries of a jump table stay where they are
+				if (!usesLabel(lines.get(code_.line[k]), labels)) {
+					canRemove = false;
+				}
+				int e = code_.at(nnn);
+				if (e >= 0) {
+					pinned_[e] = true;
+					while (e + 1 < code_.size && code_.adjacent(e, e + 1) && !target_[e + 1]) {
+						pinned_[++e] = true;
+					}
+				}
+				break;
+			}
+		}
+		
+		// 3. Routines and loop trip counts, for the report
+		routineStarts_ = new TreeMap<Integer, String>();
+		routineStarts_.put(start, nameAt(start, labels, "(start)"));
+		for (int k = 0; k < code_.size; ++k) {
+			if ((code_.op[k] & 0xF000) == 0x2000 && code_.at(code_.op[k] & 0x0FFF) >= 0) {
+				int a = code_.op[k] & 0x0FFF;
+				routineStarts_.put(a, nameAt(a, labels, String.format(Locale.ENGLISH, "%03X", a)));
+			}
+		}
+		for (int j = 0; j < code_.size; ++j) {
+			int nnn = code_.op[j] & 0x0FFF;
+			int head = code_.at(nnn);
+			if ((code_.op[j] & 0xF000) != 0x1000 || nnn > code_.addr[j] || head < 0 || head > j
+					|| !Objects.equals(routineStarts_.floorKey(nnn), routineStarts_.floorKey(code_.addr[j]))) {
+				continue;
+			}
+			int trips = code_.tripCount(head, j, target_);
+			for (int k = head; k <= j; ++k) {
+				if (trips > 0) {
+					weight_[k] = Math.min(weight_[k] * trips, Integer.MAX_VALUE);
+				} else {
+					unknownLoop_[k] = true;
+				}
+			}
+		}
+		
+		// 4. Rewrites
+		for (int k = 0; k < code_.size; ++k) {
+			if (used_[k] || pinned_[k]) {
+				continue;
+			}
+			int op = code_.op[k];
+			int x = (op >> 8) & 0xF;
+			boolean afterSkip = code_.afterSkip(k);
+			boolean next = k + 1 < code_.size && code_.adjacent(k, k + 1) && !used_[k + 1] && !pinned_[k + 1];
+			
+			if (isNoOp(op)) {
+				if (canRemove && !target_[k] && !afterSkip) {
+					remove(k, 1, 1, "removed " + text(k));
+				}
+			} else if ((op & 0xE000) == 0x6000) {
+				// LD Vx, byte or ADD Vx, byte, followed by more of them on Vx
+				if (!canRemove || afterSkip) {
+					continue;
+				}
+				String[] merged = instruction(k);
+				String was = text(k);
+				// After an LD the value of Vx is known, after an ADD only what was added to it
+				boolean known = (op & 0xF000) == 0x6000;
+				int value = op & 0xFF;
+				int m = k;
+				while (m + 1 < code_.size && code_.adjacent(m, m + 1) && !used_[m + 1] && !pinned_[m + 1] && !target_[m + 1]
+						&& (code_.op[m + 1] & 0xE000) == 0x6000 && ((code_.op[m + 1] >> 8) & 0xF) == x) {
+					int nn = code_.op[m + 1] & 0xFF;
+					if ((code_.op[m + 1] & 0xF000) == 0x6000) {
+						// Overwrites what was added before, which may have set VF unless Vx was known
+						if (!known) {
+							break;
+						}
+						value = nn;
+					} else if (value + nn > 0xFF || (!known && x == 0xF)) {
+						// The ADDs could overflow and set VF, the folded one would not
+						break;
+					} else {
+						value += nn;
+					}
+					++m;
+					String[] t = instruction(m);
+					if ((code_.op[m] & 0xF000) == 0x6000) {
+						merged = t;
+					} else {
+						merged = new String[]{merged[0], merged[1], "((" + merged[2] + ")+(" + t[2] + "))&#FF"};
+					}
+					was += " / " + text(m);
+					deleted_[m] = true;
+					used_[m] = true;
+				}
+				if (m > k) {
+					replace(k, merged);
+					save(k, m - k, m - k, m - k, was + " => " + join(merged));
+				}
+			} else if ((op & 0xF000) == 0x1000 && (op & 0x0FFF) == code_.addr[k] + 2) {
+				if (canRemove && !target_[k] && !afterSkip) {
+					remove(k, 1, 1, "removed " + text(k));
+				}
+			} else if ((op & 0xF000) == 0x2000 && next && code_.op[k + 1] == 0x00EE) {
+				String[] t = instruction(k);
+				String[] jp = Arrays.copyOf(t, t.length);
+				jp[0] = Mnemonics.JP;
+				replace(k, jp);
+				int words = 0;
+				if (canRemove && !target_[k + 1] && !afterSkip) {
+					deleted_[k + 1] = true;
+					words = 1;
+				}
+				used_[k + 1] = true;
+				save(k, words, 1, 1, text(k) + " / " + text(k + 1) + " => " + join(jp));
+			} else if (CodeView.isSkip(op) && next && !target_[k + 1] && (code_.op[k + 1] & 0xF000) == 0x1000 && canRemove && !afterSkip) {
+				int to = code_.op[k + 1] & 0x0FFF;
+				if (to == code_.addr[k] + 4 && !target_[k]) {
+					// Both ways end up after the jump
+					deleted_[k] = true;
+					deleted_[k + 1] = true;
+					used_[k] = used_[k + 1] = true;
+					save(k, 2, 1, 2, "removed " + text(k) + " / " + text(k + 1));
+				} else if (to == code_.addr[k] + 6 && k + 2 < code_.size && code_.adjacent(k + 1, k + 2) && !used_[k + 2]) {
+					// Skips the jump to run one instruction, the other skip skips that instruction
+					String[] t = instruction(k);
+					String[] inverse = Arrays.copyOf(t, t.length);
+					inverse[0] = inverse(t[0]);
+					replace(k, inverse);
+					deleted_[k + 1] = true;
+					used_[k + 1] = used_[k + 2] = true;
+					save(k, 1, 0, 1, text(k) + " / " + text(k + 1) + " => " + join(inverse));
+				}
+			}
+		}
+		if (roundRemoved_ == 0 && roundReplaced_ == 0) {
+			return null;
+		}
+		
+		// 5. The new source lines
+		Map<Integer, Integer> insnOfLine = new HashMap<Integer, Integer>();
+		for (int k = 0; k < code_.size; ++k) {
+			insnOfLine.put(code_.line[k], k);
+		}
+		List<AsmLine> result = new ArrayList<AsmLine>(lines.size());
+		for (int i = 0; i < lines.size(); ++i) {
+			AsmLine l = lines.get(i);
+			String[] tokens = l.tokens;
+			Integer k = insnOfLine.get(i);
+			if (k != null && deleted_[k]) {
+				if (code_.hpos[k] == 0) {
+					continue;
+				}
+				// Its labels stay
+				tokens = Arrays.copyOf(tokens, code_.hpos[k]);
+			} else if (k != null && replacement_[k] != null) {
+				tokens = Arrays.copyOf(tokens, code_.hpos[k] + replacement_[k].length);
+				System.arraycopy(replacement_[k], 0, tokens, code_.hpos[k], replacement_[k].length);
+			}
+			AsmLine c = new AsmLine();
+			c.tokens = tokens;
+			c.srcLineNo = l.srcLineNo;
+			c.srcFile = l.srcFile;
+			result.add(c);
+		}
+		return result;
+	}
+	
+	/**
+	 * Keeps the savings of the last round, after the rewritten lines assembled fine.
+	 */
+	void commit() {
+		for (Routine r : roundRoutines_.values()) {
+			Routine s = routines_.get(r.name);
+			if (s == null) {
+				routines_.put(r.name, r);
+			} else {
+				s.words += r.words;
+				s.minCycles += r.minCycles;
+				s.maxCycles += r.maxCycles;
+				s.unknownLoops |= r.unknownLoops;
+			}
+		}
+		notes_.addAll(roundNotes_);
+		removed_ += roundRemoved_;
+		replaced_ += roundReplaced_;
+		rounds_++;
+	}
+	
+	/**
+	 * @return What was done, and the cycles saved per routine.
+	 */
+	String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ENGLISH, "Optimizer: %d instructions removed, %d replaced in %d rounds.", 
+				removed_, replaced_, rounds_)).append(Util.NEW_LINE);
+		for (String s : notes_) {
+			sb.append("  ").append(s).append(Util.NEW_LINE);
+		}
+		if (!routines_.isEmpty()) {
+			sb.append("Cycles saved per call:").append(Util.NEW_LINE);
+		}
+		for (Routine r : routines_.values()) {
+			String cycles = r.minCycles == r.maxCycles ? String.valueOf(r.minCycles) : r.minCycles + "-" + r.maxCycles;
+			sb.append(String.format(Locale.ENGLISH, "  %-16s %03X %4d words %8s cycles%s", r.name, r.address, r.words, 
+					cycles, r.unknownLoops ? ", more in loops of unknown trip count" : ""));
+			sb.append(Util.NEW_LINE);
+		}
+		return sb.toString();
+	}
+	
+	private void remove(int k, long minCycles, long maxCycles, String note) {
+		deleted_[k] = true;
+		used_[k] = true;
+		save(k, 1, minCycles, maxCycles, note);
+	}
+	private void replace(int k, String[] tokens) {
+		replacement_[k] = tokens;
+		used_[k] = true;
+		roundReplaced_++;
+	}
+	private void save(int k, int words, long minCycles, long maxCycles, String note) {
+		Map.Entry<Integer, String> e = routineStarts_.floorEntry(code_.addr[k]);
+		String name = e == null ? "(start)" : e.getValue();
+		Routine r = roundRoutines_.get(name);
+		if (r == null) {
+			r = new Routine(name, e == null ? code_.addr[k] : e.getKey());
+			roundRoutines_.put(name, r);
+		}
+		r.words += words;
+		r.minCycles += minCycles * weight_[k];
+		r.maxCycles += maxCycles * weight_[k];
+		r.unknownLoops |= unknownLoop_[k];
+		roundRemoved_ += words;
+		AsmLine l = code_.lines.get(code_.line[k]);
+		roundNotes_.add((l.srcFile == null ? "Line " : l.srcFile + " line ") + l.srcLineNo + ": " + note);
+	}
+	
+	private boolean definedBy(int id, AsmLine l) {
+		String f = symbolTable_.getFile(id);
+		return symbolTable_.getLine(id) == l.srcLineNo && (f == null ? l.srcFile == null : f.equals(l.srcFile));
+	}
+	private boolean usesLabel(AsmLine l, Set<Integer> labels) {
+		if (l.usedSymbols != null) {
+			for (int id : l.usedSymbols) {
+				if (labels.contains(id)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	private String nameAt(int address, Set<Integer> labels, String otherwise) {
+		for (int id : labels) {
+			if (symbolTable_.get(id) == address) {
+				return symbolTable_.nameOf(id);
+			}
+		}
+		return otherwise;
+	}
+	private String[] instruction(int k) {
+		String[] t = code_.lines.get(code_.line[k]).tokens;
+		return Arrays.copyOfRange(t, code_.hpos[k], t.length);
+	}
+	private String text(int k) {
+		return join(instruction(k));
+	}
+	private static String join(String[] t) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < t.length; ++i) {
+			sb.append(i == 0 ? "" : i == 1 ? " " : ", ").append(t[i]);
+		}
+		return sb.toString();
+	}
+	
+	private static String inverse(String skip) {
+		switch (skip) {
+		case Mnemonics.SE:
+			return Mnemonics.SNE;
+		case Mnemonics.SNE:
+			return Mnemonics.SE;
+		case Mnemonics.SKP:
+			return Mnemonics.SKNP;
+		default:
+			return Mnemonics.SKP;
+		}
+	}
+	/* ADD Vx, 0 and LD Vx, Vx */
+	private static boolean isNoOp(int op) {
+		return (op & 0xF0FF) == 0x7000 || ((op & 0xF00F) == 0x8000 && ((op >> 8) & 0xF) == ((op >> 4) & 0xF));
+	}
+}
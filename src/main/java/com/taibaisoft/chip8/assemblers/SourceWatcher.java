@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a source file and the files it includes, and assembles it again 
+ * whenever one of them changes. The include set is taken from every result, 
+ * so adding or removing an INCLUDE is picked up too.
+ * 
+ * Runs on a daemon thread of its own, the listener is called on that thread.
+ * @author jeffreybian
+ *
+ */
+public class SourceWatcher implements Runnable {
+	
+	public interface Listener {
+		/**
+		 * @param result
+		 * @param millis Time from the change being seen to the result being ready.
+		 */
+		void assembled(AsmResult result, long millis);
+		void failed(IOException e);
+	}
+	
+	/* Editors write a file in several steps, changes this close are taken as one */
+	private static final long SETTLE_MILLIS = 15;
+	
+	private final Path source_;
+	private final int startAddress_;
+	private final Listener listener_;
+	private final Assembler asm_ = new Assembler();
+	private final Map<WatchKey, Path> dirs_ = new HashMap<WatchKey, Path>();
+	private final Set<Path> files_ = new HashSet<Path>();
+	private WatchService ws_ = null;
+	private Thread thread_ = null;
+	private volatile boolean running_ = false;
+	
+	public SourceWatcher(Path source, int startAddress, Listener listener) {
+		source_ = source;
+		startAddress_ = startAddress;
+		listener_ = listener;
+		asm_.setIncremental(true);
+	}
+	public Path getSource() {
+		return source_;
+	}
+	
+	/**
+	 * Assembles the source once and starts watching.
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (running_) {
+			return;
+		}
+		ws_ = FileSystems.getDefault().newWatchService();
+		running_ = true;
+		thread_ = new Thread(this, "SourceWatcher");
+		thread_.setDaemon(true);
+		thread_.start();
+	}
+	public synchronized void stop() {
+		running_ = false;
+		if (thread_ != null) {
+			thread_.interrupt();
+			try {
+				ws_.close();
+			} catch (IOException e) {
+			}
+			thread_ = null;
+		}
+	}
+	public boolean isRunning() {
+		return running_;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			long seen = System.nanoTime();
+			while (running_) {
+				try {
+					AsmResult r = asm_.assemble(source_, startAddress_);
+					watch(r.sources);
+					listener_.assembled(r, (System.nanoTime() - seen) / 1000000);
+				} catch (NoSuchFileException e) {
+					// The editor may be replacing the file, keeps watching for it to come back
+					if (files_.isEmpty()) {
+						watch(Collections.singletonList(source_.toAbsolutePath().normalize()));
+					}
+					listener_.failed(e);
+				}
+				seen = awaitChange();
+			}
+		} catch (InterruptedException e) {
+			// stop()
+		} catch (ClosedWatchServiceException e) {
+			// stop()
+		} catch (IOException e) {
+			if (running_) {
+				listener_.failed(e);
+			}
+		} finally {
+			running_ = false;
+		}
+	}
+	
+	/**
+	 * Blocks until a watched file changes and the changes settle.
+	 * @return System.nanoTime() of the first change.
+	 * @throws InterruptedException
+	 */
+	private long awaitChange() throws InterruptedException {
+		Set<Path> changed = new HashSet<Path>();
+		WatchKey k = ws_.take();
+		long seen = System.nanoTime();
+		while (true) {
+			collect(k, changed);
+			k = ws_.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+			if (k == null) {
+				if (!changed.isEmpty()) {
+					break;
+				}
+				k = ws_.take();
+				seen = System.nanoTime();
+			}
+		}
+		for (Path p : changed) {
+			IncludeCache.invalidate(p);
+		}
+		return seen;
+	}
+	
+	/**
+	 * Registers the directories of the files, drops the ones no longer needed.
+	 */
+	private void watch(List<Path> files) throws IOException {
+		files_.clear();
+		files_.addAll(files);
+		Set<Path> needed = new HashSet<Path>();
+		for (Path f : files_) {
+			needed.add(f.getParent());
+		}
+		for (Map.Entry<WatchKey, Path> e : new HashMap<WatchKey, Path>(dirs_).entrySet()) {
+			if (!needed.remove(e.getValue())) {
+				e.getKey().cancel();
+				dirs_.remove(e.getKey());
+			}
+		}
+		for (Path d : needed) {
+			WatchKey k = d.register(ws_, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			dirs_.put(k, d);
+		}
+	}
+	/**
+	 * Adds the watched files named by the events of the key to changed.
+	 */
+	private void collect(WatchKey k, Set<Path> changed) {
+		Path dir = dirs_.get(k);
+		for (WatchEvent<?> e : k.pollEvents()) {
+			if (dir != null && e.kind() != StandardWatchEventKinds.OVERFLOW) {
+				Path f = dir.resolve((Path)e.context());
+				if (files_.contains(f)) {
+					changed.add(f);
+				}
+			} else if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+				changed.addAll(files_);
+			}
+		}
+		k.reset();
+	}
+}
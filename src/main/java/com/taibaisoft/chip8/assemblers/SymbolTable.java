@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.assemblers;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Symbol table of the assembler. Every name is interned to a small int id
+ * once, values, definition lines and used flags are then kept in parallel
+ * arrays indexed by that id.
+ * 
+ * Ids survive clear(), only the definitions are dropped, so expressions
+ * compiled against this table stay valid from one assembly to the next.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class SymbolTable {
+	public static final int NOT_FOUND = -1;
+	private static final int INITIAL_CAPACITY = 256;
+	
+	/* Open addressing name -> id + 1, 0 for an empty slot */
+	private String[] keys_ = new String[INITIAL_CAPACITY * 2];
+	private int[] slots_ = new int[INITIAL_CAPACITY * 2];
+	private int shift_ = 32 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY * 2);
+	
+	private String[] names_ = new String[INITIAL_CAPACITY];
+	private int[] values_ = new int[INITIAL_CAPACITY];
+	private int[] lines_ = new int[INITIAL_CAPACITY];
+	private String[] files_ = new String[INITIAL_CAPACITY];
+	private BitSet defined_ = new BitSet();
+	private BitSet used_ = new BitSet();
+	private int size_ = 0;
+	/* Ids marked used since startRecording(), recordedCount_ is -1 while not recording */
+	private int[] recorded_ = new int[16];
+	private int recordedCount_ = -1;
+	private static final int[] NONE = new int[0];
+	
+	public SymbolTable() {
+		Arrays.fill(lines_, AsmLine.UNINITIALIZED);
+	}
+	
+	/**
+	 * Drops all definitions and used flags, keeps the ids.
+	 */
+	public void clear() {
+		defined_.clear();
+		used_.clear();
+		Arrays.fill(lines_, 0, size_, AsmLine.UNINITIALIZED);
+		Arrays.fill(files_, 0, size_, null);
+	}
+	
+	/**
+	 * Number of interned names, ids are 0 to size()-1.
+	 */
+	public int size() {
+		return size_;
+	}
+	
+	/**
+	 * @param name
+	 * @return the id of name, NOT_FOUND if it has never been interned.
+	 */
+	public int find(String name) {
+		int mask = keys_.length - 1;
+		for (int i = slot(name, shift_); keys_[i] != null; i = (i + 1) & mask) {
+			if (keys_[i].equals(name)) {
+				return slots_[i] - 1;
+			}
+		}
+		return NOT_FOUND;
+	}
+	
+	/**
+	 * @param name
+	 * @return the id of name, assigning a new one the first time.
+	 */
+	public int intern(String name) {
+		int mask = keys_.length - 1;
+		int i = slot(name, shift_);
+		for (; keys_[i] != null; i = (i + 1) & mask) {
+			if (keys_[i].equals(name)) {
+				return slots_[i] - 1;
+			}
+		}
+		int id = size_++;
+		if (id == names_.length) {
+			int n = names_.length * 2;
+			names_ = Arrays.copyOf(names_, n);
+			values_ = Arrays.copyOf(values_, n);
+			lines_ = Arrays.copyOf(lines_, n);
+			files_ = Arrays.copyOf(files_, n);
+			Arrays.fill(lines_, id, n, AsmLine.UNINITIALIZED);
+		}
+		names_[id] = name;
+		keys_[i] = name;
+		slots_[i] = id + 1;
+		if (size_ * 2 > keys_.length) {
+			rehash();
+		}
+		return id;
+	}
+	
+	public String nameOf(int id) {
+		return names_[id];
+	}
+	public boolean isDefined(int id) {
+		return defined_.get(id);
+	}
+	public boolean isDefined(String name) {
+		int id = find(name);
+		return id != NOT_FOUND && defined_.get(id);
+	}
+	/**
+	 * Only meaningful if isDefined(id).
+	 */
+	public int get(int id) {
+		return values_[id];
+	}
+	public void set(int id, int value) {
+		values_[id] = value;
+		defined_.set(id);
+	}
+	public int put(String name, int value) {
+		int id = intern(name);
+		set(id, value);
+		return id;
+	}
+	public int getLine(int id) {
+		return lines_[id];
+	}
+	public void setLine(int id, int lineNo) {
+		setLine(id, lineNo, null);
+	}
+	/**
+	 * @param file Source file of the definition, null for the main source.
+	 */
+	public void setLine(int id, int lineNo, String file) {
+		lines_[id] = lineNo;
+		files_[id] = file;
+	}
+	public String getFile(int id) {
+		return files_[id];
+	}
+	public boolean isUsed(int id) {
+		return used_.get(id);
+	}
+	public void markUsed(int id) {
+		used_.set(id);
+		if (recordedCount_ >= 0) {
+			if (recordedCount_ == recorded_.length) {
+				recorded_ = Arrays.copyOf(recorded_, recordedCount_ * 2);
+			}
+			recorded_[recordedCount_++] = id;
+		}
+	}
+	public void markUsed(String name) {
+		markUsed(intern(name));
+	}
+	/**
+	 * Starts collecting the ids passed to markUsed(), to tell which symbols one 
+	 * line uses.
+	 */
+	public void startRecording() {
+		recordedCount_ = 0;
+	}
+	/**
+	 * @return The ids marked used since startRecording(), in order and with repeats.
+	 */
+	public int[] stopRecording() {
+		int[] r = recordedCount_ > 0 ? Arrays.copyOf(recorded_, recordedCount_) : NONE;
+		recordedCount_ = -1;
+		return r;
+	}
+	
+	private void rehash() {
+		String[] keys = new String[keys_.length * 2];
+		int[] slots = new int[keys.length];
+		int mask = keys.length - 1;
+		int shift = shift_ - 1;
+		for (int id = 0; id < size_; ++id) {
+			int i = slot(names_[id], shift);
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = names_[id];
+			slots[i] = id + 1;
+		}
+		keys_ = keys;
+		slots_ = slots;
+		shift_ = shift;
+	}
+	
+	/**
+	 * Fibonacci hashing, takes the top bits so that similar names, like
+	 * generated ones, still spread over the table.
+	 */
+	private static int slot(String name, int shift) {
+		return (name.hashCode() * 0x9E3779B9) >>> shift;
+	}
+}
@@ -29,13 +29,15 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-class TokenizedLine {
-	public String[] tokens = null;
-	public int lineNo = -1;
-}
-
+/**
+ * Splits the source into lines and tokens in one pass over the input, which
+ * can be any CharSequence, e.g. a memory mapped file. Nothing is copied per
+ * line: token characters go to a scratch buffer and each distinct token text
+ * becomes one String, shared by every line it appears on.
+ */
 public class Tokenizer {
 
 	public static final char CHAR_QUOTE = '\'';
@@ -45,62 +47,77 @@ public class Tokenizer {
 	public static final char CHAR_LABEL_SUFFIX = ':';
 	public static final String S_EQU = "EQU";
 	public static final String S_LABEL_SUFFIX = ":";
-
+	
+	/**
+	 * Receives the lines as they are tokenized.
+	 */
+	public interface LineHandler {
+		/**
+		 * @param lineNo 1 based.
+		 * @param tokens Empty for blank and comment lines.
+		 */
+		void handleLine(int lineNo, String[] tokens);
+	}
+	
+	private static final String[] NO_TOKENS = new String[0];
 	
 	private List<AsmError> errors_ = new ArrayList<AsmError>();
+	/* Scratch buffers of the current line */
+	private char[] token_ = new char[64];
+	private int tokenLen_ = 0;
+	private String[] lineTokens_ = new String[16];
+	private int lineTokenCount_ = 0;
+	/* Open addressing pool of the token texts seen in the current input */
+	private String[] pool_ = new String[1024];
+	private int poolSize_ = 0;
 	
 	public List<TokenizedLine> tokenize(String input) {
-		errors_.clear();
 		if (input==null || input.length()==0) {
+			errors_.clear();
 			return null;
 		}
+		final List<TokenizedLine> tokenizedLineList = new ArrayList<TokenizedLine>();
+		tokenize(input, new LineHandler() {
+			@Override
+			public void handleLine(int lineNo, String[] tokens) {
+				TokenizedLine tline = new TokenizedLine();
+				tline.lineNo = lineNo;
+				tline.tokens = tokens;
+				tokenizedLineList.add(tline);
+			}
+		});
+		return tokenizedLineList;
+	}
+	
+	/**
+	 * Splits at \r\n or single \r or single \n. Characters outside of ASCII 
+	 * count as U+FFFD.
+	 * @param input
+	 * @param handler
+	 */
+	public void tokenize(CharSequence input, LineHandler handler) {
+		errors_.clear();
+		Arrays.fill(pool_, null);
+		poolSize_ = 0;
 		
-		// 1. Split into lines
 		int lineNum = 0;
-		String asciiStr = new String(input.getBytes(), Charset.forName("ASCII"));
-		int srcLen = asciiStr.length();
-		/** Splits at \r\n or single \r or single \n*/
-		List<TokenizedLine> tokenizedLineList = new ArrayList<TokenizedLine>();
-		StringBuilder tmp = new StringBuilder();
+		int srcLen = input.length();
+		int start = 0;
 		for (int i = 0;i<srcLen;++i) {
-			char c = asciiStr.charAt(i);
-			if (i<srcLen-1) {
-				if (c=='\r' && asciiStr.charAt(i+1)=='\n') {
-					++i;
-					lineNum++;
-					
-					TokenizedLine tline = new TokenizedLine();
-					tline.lineNo = lineNum;
-					tline.tokens = tokenizeOneLine(tmp, tline.lineNo);
-					tokenizedLineList.add(tline);
-					
-					tmp = new StringBuilder();
-					continue;
-				}
-			}
+			char c = input.charAt(i);
 			if (c=='\r' || c=='\n') {
 				lineNum++;
-				
-				TokenizedLine tline = new TokenizedLine();
-				tline.lineNo = lineNum;
-				tline.tokens = tokenizeOneLine(tmp, tline.lineNo);
-				
-				tokenizedLineList.add(tline);
-				
-				tmp = new StringBuilder();
-				continue;
+				handler.handleLine(lineNum, tokenizeOneLine(input, start, i, lineNum));
+				if (c=='\r' && i<srcLen-1 && input.charAt(i+1)=='\n') {
+					++i;
+				}
+				start = i + 1;
 			}
-			tmp.append(c);
 		}
-		
-		if (tmp.length()>0) {
+		if (start<srcLen) {
 			lineNum++;
-			TokenizedLine tline = new TokenizedLine();
-			tline.lineNo = lineNum;
-			tline.tokens = tokenizeOneLine(tmp, tline.lineNo);
-			tokenizedLineList.add(tline);
+			handler.handleLine(lineNum, tokenizeOneLine(input, start, srcLen, lineNum));
 		}
-		return tokenizedLineList;
 	}
 	public List<AsmError> getLastErrors() {
 		return errors_;
@@ -113,26 +130,27 @@ public class Tokenizer {
 	 * followed by delimeters =, :, (white chars) respectively.
 	 * 
 	 * Delimeters: WHITESPACE, = and ','
-	 * @param sb
+	 * @param src
+	 * @param from
+	 * @param to
 	 * @param lineNo
 	 * @return
 	 */
-	protected String[] tokenizeOneLine(StringBuilder sb, int ln) {
-		List<String> tokens = new ArrayList<String>();
+	protected String[] tokenizeOneLine(CharSequence src, int from, int to, int ln) {
+		lineTokenCount_ = 0;
+		tokenLen_ = 0;
 		boolean inStr = false;
 		boolean metWS = false;
 		boolean labelEncountered = false;
 		int posToStopWSDelim = 1;
-		int i = 0;
-		int len = sb.length();
-		StringBuilder token = new StringBuilder();
+		int i = from;
 		
-		for ( ;i<len;++i){	
-			char c = sb.charAt(i);
+		for ( ;i<to;++i){	
+			char c = ascii(src.charAt(i));
 			
-			if (i<len-1) {
-				if ( isQuote(c) && isQuote(sb.charAt(i+1)) ) {
-					token.append(CHAR_QUOTE);
+			if (i<to-1) {
+				if ( isQuote(c) && isQuote(src.charAt(i+1)) ) {
+					append(CHAR_QUOTE);
 					++i;
 					continue;
 				}
@@ -148,11 +166,8 @@ public class Tokenizer {
 							posToStopWSDelim = 3;
 							labelEncountered = false;
 						}
-						if (token.length()>0) {
-							if ( ( tokens.size()<posToStopWSDelim && token.length() > 0) ) {
-								tokens.add(token.toString());
-								token = new StringBuilder();
-							}
+						if (tokenLen_>0 && lineTokenCount_<posToStopWSDelim) {
+							flushToken();
 						}
 					}
 					// Whitespace never counts outside string literals
@@ -164,26 +179,23 @@ public class Tokenizer {
 						continue;
 					}
 					if (isLabelSuffix(c)) {
-						if (token.length()>0) {
-							tokens.add(token.toString());
-							token = new StringBuilder();
+						if (tokenLen_>0) {
+							flushToken();
 						}
-						tokens.add(S_LABEL_SUFFIX);
+						addToken(S_LABEL_SUFFIX);
 						labelEncountered = true;
 						continue;
 					}
 					if (isEqualAssignmentSign(c)) {
-						if (token.length()>0) {
-							tokens.add(token.toString());
-							token = new StringBuilder();
+						if (tokenLen_>0) {
+							flushToken();
 						}
-						tokens.add(S_EQU);
+						addToken(S_EQU);
 						continue;
 					}
 					if (c==CHAR_COMMA) {
-						if (token.length()>0) {
-							tokens.add(token.toString());
-							token = new StringBuilder();
+						if (tokenLen_>0) {
+							flushToken();
 						}
 						continue;
 					}
@@ -193,22 +205,86 @@ public class Tokenizer {
 					if (Character.isAlphabetic(c)) {
 						c = Character.toUpperCase(c);
 					}
-					token.append(c);
+					append(c);
 				}
 			} else {
 				if (c==CHAR_QUOTE) {
 					inStr = false;
-					tokens.add(token.toString());
-					token = new StringBuilder();
+					// Empty string literals are tokens too
+					flushToken();
 					continue;
 				}
-				token.append(c);
+				append(c);
 			}
 		}
-		if (token.length()>0) {
-			tokens.add(token.toString());
+		if (tokenLen_>0) {
+			flushToken();
+		}
+		return lineTokenCount_ == 0 ? NO_TOKENS : Arrays.copyOf(lineTokens_, lineTokenCount_);
+	}
+	
+	private static char ascii(char c) {
+		return c < 0x80 ? c : '\uFFFD';
+	}
+	private void append(char c) {
+		if (tokenLen_ == token_.length) {
+			token_ = Arrays.copyOf(token_, token_.length * 2);
+		}
+		token_[tokenLen_++] = c;
+	}
+	private void flushToken() {
+		addToken(intern(token_, tokenLen_));
+		tokenLen_ = 0;
+	}
+	private void addToken(String t) {
+		if (lineTokenCount_ == lineTokens_.length) {
+			lineTokens_ = Arrays.copyOf(lineTokens_, lineTokens_.length * 2);
+		}
+		lineTokens_[lineTokenCount_++] = t;
+	}
+	
+	/**
+	 * Returns the pooled String with the given characters, creating it the first time.
+	 */
+	private String intern(char[] buf, int len) {
+		int h = 0;
+		for (int i = 0; i < len; ++i) {
+			h = 31 * h + buf[i];
+		}
+		int mask = pool_.length - 1;
+		int slot = (h * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(pool_.length));
+		for (String s = pool_[slot]; s != null; s = pool_[slot]) {
+			if (s.length() == len && s.hashCode() == h && sameChars(s, buf, len)) {
+				return s;
+			}
+			slot = (slot + 1) & mask;
+		}
+		String s = new String(buf, 0, len);
+		pool_[slot] = s;
+		if (++poolSize_ * 2 > pool_.length) {
+			String[] old = pool_;
+			pool_ = new String[old.length * 2];
+			int shift = 32 - Integer.numberOfTrailingZeros(pool_.length);
+			mask = pool_.length - 1;
+			for (String o : old) {
+				if (o != null) {
+					int j = (o.hashCode() * 0x9E3779B9) >>> shift;
+					while (pool_[j] != null) {
+						j = (j + 1) & mask;
+					}
+					pool_[j] = o;
+				}
+			}
+		}
+		return s;
+	}
+	private static boolean sameChars(String s, char[] buf, int len) {
+		for (int i = 0; i < len; ++i) {
+			if (s.charAt(i) != buf[i]) {
+				return false;
+			}
 		}
-		return tokens.toArray(new String[0]);
+		return true;
 	}
 	
 	private boolean isWhitespace(char c) {
@@ -30,40 +30,35 @@ import java.awt.Dimension;
 import java.awt.GraphicsConfiguration;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JRootPane;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
 import com.taibaisoft.chip8.assemblers.AsmMain;
 import com.taibaisoft.chip8.chipmunk.commands.CExit;
+import com.taibaisoft.chip8.chipmunk.commands.Commands;
 import com.taibaisoft.chip8.chipmunk.commands.KeyMappingDialog;
 import com.taibaisoft.chip8.platform.OSXAdapter;
 import com.taibaisoft.chip8.platform.Platforms;
@@ -73,14 +68,21 @@ import com.taibaisoft.chip8.processor.ExitException;
 import com.taibaisoft.chip8.processor.IBuzzer;
 import com.taibaisoft.chip8.processor.IKeyboard;
 import com.taibaisoft.chip8.processor.IScreen;
+import com.taibaisoft.chip8.processor.LibraryMain;
+import com.taibaisoft.chip8.processor.RomDatabase;
+import com.taibaisoft.chip8.processor.RomSettings;
+import com.taibaisoft.chip8.processor.TraceDiffMain;
+import com.taibaisoft.chip8.processor.TraceMain;
+import com.taibaisoft.framework.Beeper;
 import com.taibaisoft.framework.IExceptionHandler;
-import com.taibaisoft.framework.Resources;
-import com.taibaisoft.framework.Tone;
+import com.taibaisoft.framework.MenuModel;
 import com.taibaisoft.framework.ToneGenerator;
+import com.taibaisoft.framework.UICommand;
 import com.taibaisoft.framework.UICommandSite;
 
 @SuppressWarnings("serial")
-public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, IExceptionHandler ,KeyListener, FocusListener {
+public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, IExceptionHandler ,KeyListener, FocusListener,
+		ConfigAndPrefs.Listener {
 
 	private static int DEFAULT_LOADING_ADDRESS=0x200;
 
@@ -91,6 +93,7 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 	private boolean passivePaused = false;
 	private String currentProgramPath_ = "";
 	private byte[] currentProgram_ = null;
+	private RomSettings currentSettings_ = null;
 	
 	
 	private int loadingAddress_ = DEFAULT_LOADING_ADDRESS;
@@ -115,12 +118,34 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 	
 	private Chip8 chip = null;
 	private IScreen screen = null;
-	private AudioInputStream audioStream;
-	private Clip audioClip = null;
+	private volatile Beeper beeper_ = null;
+	/* Audio line state, see startAudio() */
+	private static final int AUDIO_OPENING = 0;
+	private static final int AUDIO_ATTACHED = 1;
+	private static final int AUDIO_GIVEN_UP = 2;
+	private static final int AUDIO_TIMEOUT_MS = 3000;
+	private final AtomicInteger audioState_ = new AtomicInteger(AUDIO_OPENING);
+	private static final double BUZZ_FREQUENCY = 341.0;
+	private static final double BUZZ_VOLUME = 0.25;
+	private static final long BUZZ_HOLD_NANOS = 3 * 1000000000L / (2 * Chip8.DEFAULT_TIMER_HZ);
 	
 	private static final String TITLE_PRE = "Mochi8";
 	private static Board frame = null;
+	private static long mainNanos_ = 0;
+	
+	/**
+	 * @return System.nanoTime() when main() was entered.
+	 */
+	public static long getMainNanos() {
+		return mainNanos_;
+	}
 	public static void start() {
+		start(null);
+	}
+	/**
+	 * @param onFirstFrame If not null, run once the window painted its first frame.
+	 */
+	static void start(final Runnable onFirstFrame) {
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
 			if (Platforms.getOSType()==Platforms.OsType.MAC_OS_X) {
@@ -139,7 +164,7 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
         }
         javax.swing.SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                create();
+                create(onFirstFrame);
             }
             
         });  		    	
@@ -148,10 +173,13 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 	/**
 	 * Entry point.
 	 */
-    private static void create() {
+    private static void create(Runnable onFirstFrame) {
         frame = new Board();
        
         frame.init();
+        if (onFirstFrame != null) {
+        	((GraphicsUnit) frame.screen).setFirstPaintHook(onFirstFrame);
+        }
         
         frame.pack();
         frame.placeMe();
@@ -169,8 +197,8 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 				e.printStackTrace();
 			}
         }
-        // Loading ok, first time running test now.
-        if ( ConfigAndPrefs.getInstance().isFirstTime() ) {
+        // Loading ok, first time running test now. Timed starts leave it for a real one.
+        if ( onFirstFrame == null && ConfigAndPrefs.getInstance().isFirstTime() ) {
         	new KeyMappingDialog(frame, "", frame.keycodeMap_, true).showMe();
         }
     }
@@ -184,14 +212,15 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 				"About Mochi8 Emulator", JOptionPane.PLAIN_MESSAGE);
 	}
 
+	/**
+	 * Called on the CPU thread at every timer tick the sound timer is on, the
+	 * tone is held a little over one tick so that timer jitter does not gap it.
+	 */
 	@Override
 	public void buzz() {
-		if (!muted_ && audioClip != null) {
-			if (!audioClip.isRunning()) {
-				audioClip.stop();
-				audioClip.setFramePosition(0);
-				audioClip.start();
-			}
+		Beeper b = beeper_;
+		if (!muted_ && b != null) {
+			b.soundFor(BUZZ_HOLD_NANOS);
 		}
 	}
     @Override
@@ -234,6 +263,12 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
     public byte[] getCurrentProgram() {
     	return currentProgram_;
     }
+    /**
+     * @return The settings to run the current program with, null if not looked up yet.
+     */
+    public RomSettings getCurrentSettings() {
+    	return currentSettings_;
+    }
     public IScreen getGraphicsUnit() {
     	return screen;
     }
@@ -295,7 +330,12 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 	public void setCurrentProgram(byte[] cp, int loadingAddress) {
     	currentProgram_ = cp;
     	loadingAddress_ = loadingAddress;
+    	currentSettings_ = null;
     }
+	
+	public void setCurrentSettings(RomSettings rs) {
+		currentSettings_ = rs;
+	}
 
 	public void setCurrentProgramPath(String path) {
     	currentProgramPath_ = path;
@@ -307,7 +347,51 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 
 	public void setMuted(boolean f) {
     	muted_ = f;
+    	if (f && beeper_ != null) {
+    		beeper_.silence();
+    	}
     }	
+	/**
+	 * Menu commands are created with their constructors, see Commands.
+	 */
+	@Override
+	protected UICommand<Board> createCommand(MenuModel.Entry e) {
+		UICommand<Board> c = Commands.create(e.command);
+		return c != null ? c : super.createCommand(e);
+	}
+	/**
+	 * Applies a changed setting, so that commands only have to change it in
+	 * ConfigAndPrefs.
+	 */
+	@Override
+	public void preferenceChanged(String key) {
+		ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
+		switch (key) {
+		case ConfigAndPrefs.MP_SPEED:
+			chip.setCpuFrequency(cap.getSpeed());
+			break;
+		case ConfigAndPrefs.MP_MUTE:
+			setMuted(cap.getMute());
+			break;
+		case ConfigAndPrefs.MP_PAUSE_ON_LOST_FOCUS:
+			setPauseOnLostFocus(cap.getPauseOnLostFocus());
+			break;
+		case ConfigAndPrefs.MP_ALWAYS_ON_TOP:
+			setAlwaysOnTop(cap.getAlwaysOnTop());
+			break;
+		case ConfigAndPrefs.MP_FORECOLOR:
+			screen.setPixelColor(cap.getForeColor());
+			break;
+		case ConfigAndPrefs.MP_BACKCOLOR:
+			screen.setBackgroundColor(cap.getBackColor());
+			break;
+		case ConfigAndPrefs.MP_KEY_MAPPINGS:
+			keycodeMap_ = cap.getKeyMappings();
+			break;
+		default:
+			break;
+		}
+	}
 	public void setPauseOnLostFocus(boolean f) {
     	pauseOnLostFocus_ = f;
     }
@@ -343,37 +427,13 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 		setAlwaysOnTop(cap.getAlwaysOnTop());
 		
 		muted_ = cap.getMute();
+		cap.addListener(this);
 		
-		/* 3. Generates the audio clip */
-		boolean aloaded = false;
-		ToneGenerator tg = new ToneGenerator();
-		Tone t;
-		try {
-			t = tg.generateTone(341.0, 0.062);
-			audioClip = tg.generateAudioClipFromTones(Collections.singletonList(t));
-			aloaded = true;
-		} catch (Exception e2) {
-			aloaded = false;
-			
-		}
-		/* 3.1 Fallback for audio clip loading. */
-		if (!aloaded || audioClip==null) {
-			try {
-				InputStream is = Resources.getInstance().open("340-s.wav");
-				if (is==null) {
-					throw new IOException("Cannot file audio file.");
-				}
-				audioStream = AudioSystem.getAudioInputStream(new BufferedInputStream(is));
-				AudioFormat format = audioStream.getFormat();
-				DataLine.Info info = new DataLine.Info(Clip.class, format);
-				audioClip = (Clip) AudioSystem.getLine(info);
-				audioClip.open(audioStream);
-			} catch (UnsupportedAudioFileException | IOException e1) {
-				audioClip = null;
-			} catch (LineUnavailableException e1) {
-				audioClip = null;
-			}
-		}
+		/* 2.1 Per program settings, read once. */
+		RomDatabase.getInstance();
+		
+		/* 3. Opens the audio line in the background, programs run silent until it is ready. */
+		startAudio();
 		
 		/* 4. Load the menu! - From parent */
 		reloadMenu();
@@ -390,23 +450,64 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 		addWindowListener(new WindowAdapter() {
 			@Override
 			public void windowClosing(WindowEvent e) {
-				try {
-					Point p = getLocation();
-					ConfigAndPrefs.getInstance().setDefaultWindowPos(p);
-					if (audioClip!=null)
-						audioClip.close();
-					if (audioStream!=null)
-						audioStream.close();					
-					chip.reset();
-
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}		
+				Point p = getLocation();
+				ConfigAndPrefs.getInstance().setDefaultWindowPos(p);
+				ConfigAndPrefs.getInstance().flush();
+				chip.reset();
+				audioState_.compareAndSet(AUDIO_OPENING, AUDIO_GIVEN_UP);
+				if (beeper_!=null)
+					beeper_.close();
 				System.exit(0);
 			}
 		});
 	}
 
+	/**
+	 * Opening a line may take hundreds of milliseconds on some audio stacks, or
+	 * never return, so it is done on a thread of its own and the beeper attached
+	 * once it is open. After AUDIO_TIMEOUT_MS the emulator gives up on sound for
+	 * this session and a line that opens later is closed again. The sample size
+	 * that worked is remembered so that the next start opens it straight away.
+	 */
+	private void startAudio() {
+		final ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
+		final int bits = cap.getAudioBits();
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Beeper b = new Beeper(BUZZ_FREQUENCY, ToneGenerator.SR_HALF_CD, BUZZ_VOLUME);
+				try {
+					b.start(bits);
+				} catch (LineUnavailableException e) {
+					audioState_.set(AUDIO_GIVEN_UP);
+					System.err.println("No sound: " + e.getMessage());
+					return;
+				}
+				if (audioState_.compareAndSet(AUDIO_OPENING, AUDIO_ATTACHED)) {
+					beeper_ = b;
+					int got = b.getFormat().getSampleSizeInBits();
+					if (got != bits) {
+						cap.setAudioBits(got);
+					}
+				} else {
+					b.close();
+				}
+			}
+		}, "Audio init");
+		t.setDaemon(true);
+		t.start();
+		Timer watchdog = new Timer(AUDIO_TIMEOUT_MS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (audioState_.compareAndSet(AUDIO_OPENING, AUDIO_GIVEN_UP)) {
+					System.err.println("No sound: the audio line did not open in " + AUDIO_TIMEOUT_MS + " ms.");
+				}
+			}
+		});
+		watchdog.setRepeats(false);
+		watchdog.start();
+	}
+
 	private void placeMe() {
     	ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
     	Point p = cap.getWindowPos();
@@ -420,6 +521,7 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
     	setLocation(p.x, p.y);
     }
 	public static void main(String[] args) {
+		mainNanos_ = System.nanoTime();
 		try {
 			if (!Platforms.isJavaVersionOK()) {
 				System.err.println("Cannot run on JRE version less than 1.8.");
@@ -430,11 +532,20 @@ public class Board extends UICommandSite<Board> implements IKeyboard, IBuzzer, I
 				System.setErr(new PrintStream(new File(logfileName)));
 				start();
 			} else {
-				// If the first parameter is "asm" then start in (dis)assembler mode.
+				// If the first parameter is "asm" then start in (dis)assembler mode, "trace" for the trace tool, "library" to index programs,
+				// "startup" to time the emulator start.
 				if (args[0].equals("asm")) {
 					AsmMain.run(Arrays.copyOfRange(args, 1, args.length));
+				} else if (args[0].equals("trace")) {
+					TraceMain.run(Arrays.copyOfRange(args, 1, args.length));
+				} else if (args[0].equals("tracediff")) {
+					TraceDiffMain.run(Arrays.copyOfRange(args, 1, args.length));
+				} else if (args[0].equals("library")) {
+					LibraryMain.run(Arrays.copyOfRange(args, 1, args.length));
+				} else if (args[0].equals("startup")) {
+					StartupMain.run(Arrays.copyOfRange(args, 1, args.length));
 				} else {
-					System.err.println("Unrecognized sub-command, has to be 'asm' if any.");
+					System.err.println("Unrecognized sub-command, has to be 'asm', 'trace', 'tracediff', 'library' or 'startup' if any.");
 				}
 			}
 		} catch (Exception e) {
@@ -27,13 +27,32 @@ package com.taibaisoft.chip8.chipmunk;
 import java.awt.Color;
 import java.awt.Point;
 import java.awt.event.KeyEvent;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
+/**
+ * The emulator settings, read from the user preferences once into memory.
+ * 
+ * Getters never touch the preferences. Setters change the value in memory,
+ * tell the listeners, and leave the write to a daemon thread that waits for
+ * WRITE_DELAY_MS without changes before writing them all at once, so that UI
+ * actions never wait on the disk. Pending changes are also written by flush(),
+ * which runs at exit.
+ */
 public class ConfigAndPrefs {
 	public static final String MP_LAST_PATH = "mp_last_path";
+	public static final String MP_LIBRARY_PATH = "mp_library_path";
 	public static final String MP_AUTO_RUN = "mp_auto_run";
+	public static final String MP_HOT_PATCH = "mp_hot_patch";
 	public static final String MP_PAUSE_ON_LOST_FOCUS = "mp_pause_on_lost_focus";
 	public static final String MP_MUTE = "mp_mute";
+	public static final String MP_AUDIO_BITS = "mp_audio_bits";
 	public static final String MP_SPEED = "mp_speed";
 	public static final String MP_SPEED_SELECTION = "mp_speed_sel";
 	
@@ -65,11 +84,57 @@ public class ConfigAndPrefs {
 		(byte)KeyEvent.VK_Z, (byte)KeyEvent.VK_X, (byte)KeyEvent.VK_C, (byte)KeyEvent.VK_V,	
 };
 
+	/* Every setting and its default, which also gives its type */
+	private static final Map<String, Object> DEFAULTS = new LinkedHashMap<String, Object>();
+	static {
+		DEFAULTS.put(MP_LAST_PATH, "");
+		DEFAULTS.put(MP_LIBRARY_PATH, "");
+		DEFAULTS.put(MP_AUTO_RUN, true);
+		DEFAULTS.put(MP_HOT_PATCH, true);
+		DEFAULTS.put(MP_PAUSE_ON_LOST_FOCUS, false);
+		DEFAULTS.put(MP_MUTE, false);
+		DEFAULTS.put(MP_AUDIO_BITS, 0);
+		DEFAULTS.put(MP_SPEED, 600);
+		DEFAULTS.put(MP_SPEED_SELECTION, 5);
+		DEFAULTS.put(MP_FORECOLOR, Color.LIGHT_GRAY.getRGB());
+		DEFAULTS.put(MP_FORECOLOR_SELECTION, 0);
+		DEFAULTS.put(MP_BACKCOLOR, Color.BLACK.getRGB());
+		DEFAULTS.put(MP_BACKCOLOR_SELECTION, 0);
+		DEFAULTS.put(MP_ASPECT_RATIO, 1.0f);
+		DEFAULTS.put(MP_ASPECT_RATIO_SELECTION, 0);
+		DEFAULTS.put(MP_WINDOW_SIZE, 360);
+		DEFAULTS.put(MP_WINDOW_SIZE_SELECTION, 0);
+		DEFAULTS.put(MP_ALWAYS_ON_TOP, false);
+		DEFAULTS.put(MP_DEFAULT_DEVELOPER_MODE, false);
+		DEFAULTS.put(MP_WINDOW_POS_X, 0);
+		DEFAULTS.put(MP_WINDOW_POS_Y, 0);
+		DEFAULTS.put(MP_KEY_MAPPINGS, DEFAULT_KEY_MAPPINGS);
+		DEFAULTS.put(MP_FIRST_TIME, true);
+	}
+	
+	/** Quiet time after the last change before changes are written. */
+	public static final long WRITE_DELAY_MS = 500;
+	
+	public interface Listener {
+		/**
+		 * Called on the thread that changed the setting, after the new value
+		 * can be read back.
+		 * @param key One of the MP_ names.
+		 */
+		void preferenceChanged(String key);
+	}
+	
 	private Preferences prefs = null;
+	private final Map<String, Object> values_ = new ConcurrentHashMap<String, Object>();
+	/* Changes not written yet, guarded by itself */
+	private final Map<String, Object> pending_ = new HashMap<String, Object>();
+	private long lastChange_ = 0;
+	private Thread writer_ = null;
+	private final CopyOnWriteArrayList<Listener> listeners_ = new CopyOnWriteArrayList<Listener>();
 	
 	private static ConfigAndPrefs me = null;
 	
-	public static ConfigAndPrefs getInstance() {
+	public static synchronized ConfigAndPrefs getInstance() {
 		if (me==null) {
 			me = new ConfigAndPrefs();
 		}
@@ -77,115 +142,259 @@ public class ConfigAndPrefs {
 	}
 	private ConfigAndPrefs() {
 		prefs = Preferences.userNodeForPackage(this.getClass());
+		for (Map.Entry<String, Object> e : DEFAULTS.entrySet()) {
+			String k = e.getKey();
+			Object d = e.getValue();
+			Object v;
+			if (d instanceof Boolean) {
+				v = prefs.getBoolean(k, (Boolean) d);
+			} else if (d instanceof Integer) {
+				v = prefs.getInt(k, (Integer) d);
+			} else if (d instanceof Float) {
+				v = prefs.getFloat(k, (Float) d);
+			} else if (d instanceof byte[]) {
+				v = prefs.getByteArray(k, (byte[]) d);
+			} else {
+				v = prefs.get(k, (String) d);
+			}
+			values_.put(k, v);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "Prefs flush"));
+	}
+	
+	public void addListener(Listener l) {
+		listeners_.add(l);
+	}
+	public void removeListener(Listener l) {
+		listeners_.remove(l);
+	}
+	
+	/**
+	 * Writes the pending changes now. Synchronized so that batches are written
+	 * in the order they were taken, and a flush at exit waits for the one the
+	 * writer thread may be in the middle of.
+	 */
+	public synchronized void flush() {
+		Map<String, Object> batch;
+		synchronized (pending_) {
+			if (pending_.isEmpty()) {
+				return;
+			}
+			batch = new HashMap<String, Object>(pending_);
+			pending_.clear();
+		}
+		for (Map.Entry<String, Object> e : batch.entrySet()) {
+			String k = e.getKey();
+			Object v = e.getValue();
+			if (v instanceof Boolean) {
+				prefs.putBoolean(k, (Boolean) v);
+			} else if (v instanceof Integer) {
+				prefs.putInt(k, (Integer) v);
+			} else if (v instanceof Float) {
+				prefs.putFloat(k, (Float) v);
+			} else if (v instanceof byte[]) {
+				prefs.putByteArray(k, (byte[]) v);
+			} else {
+				prefs.put(k, (String) v);
+			}
+		}
+		try {
+			prefs.flush();
+		} catch (BackingStoreException e) {
+			System.err.println("Cannot save preferences: " + e.getMessage());
+		}
+	}
+	
+	private void set(String key, Object value) {
+		synchronized (pending_) {
+			Object old = values_.put(key, value);
+			if (value instanceof byte[] ? Arrays.equals((byte[]) value, (byte[]) old) : value.equals(old)) {
+				return;
+			}
+			pending_.put(key, value);
+			lastChange_ = System.currentTimeMillis();
+			if (writer_ == null) {
+				writer_ = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						writeBehind();
+					}
+				}, "Prefs writer");
+				writer_.setDaemon(true);
+				writer_.start();
+			}
+			pending_.notifyAll();
+		}
+		for (Listener l : listeners_) {
+			l.preferenceChanged(key);
+		}
+	}
+	private void writeBehind() {
+		try {
+			while (true) {
+				synchronized (pending_) {
+					while (pending_.isEmpty()) {
+						pending_.wait();
+					}
+					long wait;
+					while ((wait = lastChange_ + WRITE_DELAY_MS - System.currentTimeMillis()) > 0) {
+						pending_.wait(wait);
+					}
+				}
+				flush();
+			}
+		} catch (InterruptedException e) {
+			flush();
+		}
+	}
+	private boolean bool(String key) {
+		return (Boolean) values_.get(key);
+	}
+	private int integer(String key) {
+		return (Integer) values_.get(key);
+	}
+	private String string(String key) {
+		return (String) values_.get(key);
 	}
 	
 	public void setLastVisitedPath(String path) {
-		prefs.put(MP_LAST_PATH, path);
+		set(MP_LAST_PATH, path);
 	}
 	public String getLastVisitedPath() {
-		return prefs.get(MP_LAST_PATH, "");
+		return string(MP_LAST_PATH);
+	}
+	public void setLibraryPath(String path) {
+		set(MP_LIBRARY_PATH, path);
+	}
+	public String getLibraryPath() {
+		return string(MP_LIBRARY_PATH);
 	}
 	public void setAutoRunOnLoad(boolean a) {
-		prefs.putBoolean(MP_AUTO_RUN, a);
+		set(MP_AUTO_RUN, a);
 	}
 	public boolean getAutoRunOnLoad() {
-		return prefs.getBoolean(MP_AUTO_RUN, true);
+		return bool(MP_AUTO_RUN);
+	}
+	public void setHotPatch(boolean h) {
+		set(MP_HOT_PATCH, h);
+	}
+	/**
+	 * If a watched source changes, true patches the running program keeping its 
+	 * state, false resets and runs it again.
+	 */
+	public boolean getHotPatch() {
+		return bool(MP_HOT_PATCH);
 	}
 	public void setDefaultDeveloperMode(boolean dev) {
-		prefs.putBoolean(MP_DEFAULT_DEVELOPER_MODE, dev);
+		set(MP_DEFAULT_DEVELOPER_MODE, dev);
 	}
 	public boolean getDeveloperMode() {
-		return prefs.getBoolean(MP_DEFAULT_DEVELOPER_MODE, false);
+		return bool(MP_DEFAULT_DEVELOPER_MODE);
 	}
 	public void setDefaultPauseOnLostFocus(boolean f) {
-		prefs.putBoolean(MP_PAUSE_ON_LOST_FOCUS, f);
+		set(MP_PAUSE_ON_LOST_FOCUS, f);
 	}
 	public boolean getPauseOnLostFocus() {
-		return prefs.getBoolean(MP_PAUSE_ON_LOST_FOCUS, false);
+		return bool(MP_PAUSE_ON_LOST_FOCUS);
 	}
 	public void setDefaultMute(boolean f) {
-		prefs.putBoolean(MP_MUTE, f);
+		set(MP_MUTE, f);
 	}
 	public boolean getMute() {
-		return prefs.getBoolean(MP_MUTE, false);
+		return bool(MP_MUTE);
+	}
+	public void setAudioBits(int bits) {
+		set(MP_AUDIO_BITS, bits);
+	}
+	/**
+	 * The sample size the audio line last opened with, tried first next time,
+	 * 0 if none yet.
+	 */
+	public int getAudioBits() {
+		return integer(MP_AUDIO_BITS);
 	}
 	public void setDefaultSpeed(int speed) {
-		prefs.putInt(MP_SPEED, speed);
+		set(MP_SPEED, speed);
 	}
 	public int getSpeed() {
-		return prefs.getInt(MP_SPEED, 600);
+		return integer(MP_SPEED);
 	}
 	public void setDefaultSpeedSelection(int speedSel) {
-		prefs.putInt(MP_SPEED_SELECTION, speedSel);
+		set(MP_SPEED_SELECTION, speedSel);
 	}
 	public int getSpeedSelection() {
-		return prefs.getInt(MP_SPEED_SELECTION, 5);
+		return integer(MP_SPEED_SELECTION);
 	}
 	public void setDefaultForeColor(Color color) {
-		prefs.putInt(MP_FORECOLOR, color.getRGB());
+		set(MP_FORECOLOR, color.getRGB());
 	}
 	public Color getForeColor() {
-		return new Color(prefs.getInt(MP_FORECOLOR, Color.LIGHT_GRAY.getRGB()));
+		return new Color(integer(MP_FORECOLOR));
 	}
 	public void setDefaultForeColorSelection(int index) {
-		prefs.putInt(MP_FORECOLOR_SELECTION, index);
+		set(MP_FORECOLOR_SELECTION, index);
 	}
 	public int getForeColorSelection() {
-		return prefs.getInt(MP_FORECOLOR_SELECTION, 0);
+		return integer(MP_FORECOLOR_SELECTION);
 	}
 	public void setDefaultBackColor(Color color) {
-		prefs.putInt(MP_BACKCOLOR, color.getRGB());
+		set(MP_BACKCOLOR, color.getRGB());
 	}
 	public Color getBackColor() {
-		return new Color(prefs.getInt(MP_BACKCOLOR, Color.BLACK.getRGB()));
+		return new Color(integer(MP_BACKCOLOR));
 	}
 	public void setDefaultBackColorSelection(int index) {
-		prefs.putInt(MP_BACKCOLOR_SELECTION, index);
+		set(MP_BACKCOLOR_SELECTION, index);
 	}
 	public int getBackColorSelection() {
-		return prefs.getInt(MP_BACKCOLOR_SELECTION, 0);
+		return integer(MP_BACKCOLOR_SELECTION);
 	}	
 	
 	public void setDefaultAspectRatio(float r) {
-		prefs.putFloat(MP_ASPECT_RATIO, r);
+		set(MP_ASPECT_RATIO, r);
 	}
 	public float getAspectRatio() {
-		return prefs.getFloat(MP_ASPECT_RATIO, 1.0f);
+		return (Float) values_.get(MP_ASPECT_RATIO);
 	}
 	
 	public void setDefaultAspectRatioSelection(int index) {
-		prefs.putInt(MP_ASPECT_RATIO_SELECTION, index);
+		set(MP_ASPECT_RATIO_SELECTION, index);
 	}
 	public int getAspectRatioSelection() {
-		return prefs.getInt(MP_ASPECT_RATIO_SELECTION, 0);
+		return integer(MP_ASPECT_RATIO_SELECTION);
 	}
 	public void setDefaultWindowSize(int size) {
 		// Height!
-		prefs.putInt(MP_WINDOW_SIZE, size);
+		set(MP_WINDOW_SIZE, size);
 	}
 	public int getWindowSize() {
 		// Height!
-		return prefs.getInt(MP_WINDOW_SIZE, 360);
+		return integer(MP_WINDOW_SIZE);
 	}
 	public void setDefaultWindowSizeSelection(int index) {
-		prefs.putInt(MP_WINDOW_SIZE_SELECTION, index);
+		set(MP_WINDOW_SIZE_SELECTION, index);
 	}
 	public int getWindowSizeSelection() {
-		return prefs.getInt(MP_WINDOW_SIZE_SELECTION, 0);
+		return integer(MP_WINDOW_SIZE_SELECTION);
 	}	
 	public void setDefaultAlwaysOnTop(boolean f) {
-		prefs.putBoolean(MP_ALWAYS_ON_TOP, f);
+		set(MP_ALWAYS_ON_TOP, f);
 	}
 	public boolean getAlwaysOnTop() {
-		return prefs.getBoolean(MP_ALWAYS_ON_TOP, false);
+		return bool(MP_ALWAYS_ON_TOP);
 	}
 	public void setDefaultWindowPos(Point p) {
-		prefs.putInt(MP_WINDOW_POS_X, p.x);
-		prefs.putInt(MP_WINDOW_POS_Y, p.y);
+		set(MP_WINDOW_POS_X, p.x);
+		set(MP_WINDOW_POS_Y, p.y);
 	}
 	public Point getWindowPos() {
-		int x = prefs.getInt(MP_WINDOW_POS_X, 0);
-		int y = prefs.getInt(MP_WINDOW_POS_Y, 0);
+		int x = integer(MP_WINDOW_POS_X);
+		int y = integer(MP_WINDOW_POS_Y);
 		return new Point(x,y);
 	}
 	
@@ -197,13 +406,13 @@ public class ConfigAndPrefs {
 		for (;i<len; ++i) {
 			a[i] = (byte)keyMappings[i];
 		}
-		prefs.putByteArray(MP_KEY_MAPPINGS, a);
+		set(MP_KEY_MAPPINGS, a);
 	}
 	public byte[] getDefaultKeyMappings() {
 		return DEFAULT_KEY_MAPPINGS;
 	}
 	public int[] getKeyMappings() {
-		byte[] a =  prefs.getByteArray(MP_KEY_MAPPINGS, DEFAULT_KEY_MAPPINGS);
+		byte[] a =  (byte[]) values_.get(MP_KEY_MAPPINGS);
 		int len = a.length;
 		int[] b = new int[len];
 		int i = 0;
@@ -218,8 +427,8 @@ public class ConfigAndPrefs {
 	 * @return
 	 */
 	public boolean isFirstTime() {
-		boolean ret = prefs.getBoolean(MP_FIRST_TIME, true);
-		prefs.putBoolean(MP_FIRST_TIME, false);
+		boolean ret = bool(MP_FIRST_TIME);
+		set(MP_FIRST_TIME, false);
 		return ret;
 	}
 	/*
@@ -46,12 +46,19 @@ public class GraphicsUnit extends JPanel implements IScreen {
 	@SuppressWarnings("unused")
 	private double delta = 0;
 	private Color fc = Color.LIGHT_GRAY;
+	private Runnable firstPaint_ = null;
 	public GraphicsUnit() {
 		//setPreferredSize(new Dimension(480, 360));
 		setBackground(Color.BLACK);	
 		setDoubleBuffered(true);
 		setOpaque(true);
 	}
+	/**
+	 * @param r Run on the EDT once the next frame is painted, used to time the startup.
+	 */
+	public void setFirstPaintHook(Runnable r) {
+		firstPaint_ = r;
+	}
 	public void setPixelColor(Color clr){
 		fc = clr;
 		repaint();
@@ -142,6 +149,11 @@ public class GraphicsUnit extends JPanel implements IScreen {
         		}
         	}
         }
+        if (firstPaint_ != null) {
+        	Runnable r = firstPaint_;
+        	firstPaint_ = null;
+        	r.run();
+        }
  	}
 
 }
\ No newline at end of file
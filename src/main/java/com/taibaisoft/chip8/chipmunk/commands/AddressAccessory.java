@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.chipmunk.commands;
+
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+class AddressAccessory extends JPanel implements PropertyChangeListener {
+	private static final long serialVersionUID = 1L;
+	private static final int PREFERRED_WIDTH = 125;
+	private static final int PREFERRED_HEIGHT = 100;
+	JTextField address = new JTextField(5);
+
+	public AddressAccessory(JFileChooser chooser) {
+		JLabel label = new JLabel("Base Addr (Hex)");
+		label.setVerticalAlignment(JLabel.CENTER);
+		label.setHorizontalAlignment(JLabel.LEFT);
+
+		address.setText("200");
+		chooser.addPropertyChangeListener(this);
+
+		setLayout(new FlowLayout());
+		add(label);
+		add(address);
+		setPreferredSize(new Dimension(PREFERRED_WIDTH, PREFERRED_HEIGHT));
+	}
+
+	public void propertyChange(PropertyChangeEvent changeEvent) {
+
+	}
+
+	public int getAddress() {
+		int i = 0x200;
+		try {
+			i = Integer.parseInt(address.getText(), 16);
+		} catch (Exception e) {
+			i = 0x200;
+		}
+		return i;
+	}
+}
@@ -51,9 +51,7 @@ public class CAlwaysOnTop extends UICommand<Board> {
 	@Override
 	public void action(Board obj) {
 		ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
-		boolean f = !cap.getAlwaysOnTop();
-		obj.setAlwaysOnTop(f);
-		cap.setDefaultAlwaysOnTop(f);
+		cap.setDefaultAlwaysOnTop(!cap.getAlwaysOnTop());
 	}
 
 }
@@ -60,8 +60,6 @@ public class CBackColorSelection extends UICommand<Board> {
 			Color bg = new Color((int)Long.parseLong(a, 16));
 			cap.setDefaultBackColor(bg);
 			cap.setDefaultBackColorSelection(index);
-
-			obj.getGraphicsUnit().setBackgroundColor(bg);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}	
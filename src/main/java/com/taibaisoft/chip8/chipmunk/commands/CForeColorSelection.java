@@ -59,7 +59,6 @@ public class CForeColorSelection extends UICommand<Board> {
 			Color fc = new Color((int)Long.parseLong(a, 16));
 			cap.setDefaultForeColor(fc);
 			cap.setDefaultForeColorSelection(index);
-			obj.getGraphicsUnit().setPixelColor(fc);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}	
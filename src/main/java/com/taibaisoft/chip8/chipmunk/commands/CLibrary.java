@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.chipmunk.commands;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.swing.JOptionPane;
+
+import com.taibaisoft.chip8.chipmunk.Board;
+import com.taibaisoft.chip8.chipmunk.ConfigAndPrefs;
+import com.taibaisoft.chip8.processor.Chip8;
+import com.taibaisoft.chip8.processor.RomDatabase;
+import com.taibaisoft.chip8.processor.RomLibrary;
+import com.taibaisoft.chip8.processor.RomSettings;
+import com.taibaisoft.framework.UICommand;
+
+public class CLibrary extends UICommand<Board> {
+	
+	private RomLibrary library_ = null;
+
+	@Override
+	public String getText() {
+		return "Library ...";
+	}
+
+	@Override
+	public String getID() {
+		return "EV_LIBRARY";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Browses the indexed CHIP8 and SCHIP programs.";
+	}
+
+	@Override
+	public void action(Board board) {
+		if (library_ == null) {
+			library_ = new RomLibrary(RomLibrary.getDefaultIndexPath());
+			library_.load();
+		}
+		LibraryDialog dlg = new LibraryDialog(board, "Program Library", library_);
+		RomLibrary.Entry e = dlg.showMe();
+		if (e == null) {
+			return;
+		}
+		ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
+		try {
+			Path p = Paths.get(e.path);
+			byte[] s = Files.readAllBytes(p);
+			cap.setLastVisitedPath(p.getParent().toString());
+			RomSettings rs = RomDatabase.getInstance().settingsFor(s, Chip8.DEFAULT_LOAD_ADDRESS);
+			board.setCurrentProgramPath(p.getFileName().toString());
+			board.setCurrentProgram(s, rs.loadAddress);
+			board.setCurrentSettings(rs);
+			board.getCPU().reset();
+			if (cap.getAutoRunOnLoad()) {
+				getOtherUICommand("EV_RUN").action(board);
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			alert(ex.getMessage(), JOptionPane.ERROR_MESSAGE);
+		}
+	}
+}
@@ -24,10 +24,6 @@
 
 package com.taibaisoft.chip8.chipmunk.commands;
 
-import java.awt.Dimension;
-import java.awt.FlowLayout;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -35,51 +31,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import javax.swing.JFileChooser;
-import javax.swing.JLabel;
 import javax.swing.JOptionPane;
-import javax.swing.JPanel;
-import javax.swing.JTextField;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import com.taibaisoft.chip8.chipmunk.Board;
 import com.taibaisoft.chip8.chipmunk.ConfigAndPrefs;
+import com.taibaisoft.chip8.processor.RomDatabase;
+import com.taibaisoft.chip8.processor.RomSettings;
 import com.taibaisoft.framework.UICommand;
 
-class AddressAccessory extends JPanel implements PropertyChangeListener {
-	private static final long serialVersionUID = 1L;
-	private static final int PREFERRED_WIDTH = 125;
-	private static final int PREFERRED_HEIGHT = 100;
-	JTextField address = new JTextField(5);
-
-	public AddressAccessory(JFileChooser chooser) {
-		JLabel label = new JLabel("Base Addr (Hex)");
-		label.setVerticalAlignment(JLabel.CENTER);
-		label.setHorizontalAlignment(JLabel.LEFT);
-
-		address.setText("200");
-		chooser.addPropertyChangeListener(this);
-
-		setLayout(new FlowLayout());
-		add(label);
-		add(address);
-		setPreferredSize(new Dimension(PREFERRED_WIDTH, PREFERRED_HEIGHT));
-	}
-
-	public void propertyChange(PropertyChangeEvent changeEvent) {
-
-	}
-
-	public int getAddress() {
-		int i = 0x200;
-		try {
-			i = Integer.parseInt(address.getText(), 16);
-		} catch (Exception e) {
-			i = 0x200;
-		}
-		return i;
-	}
-}
-
 public class CLoad extends UICommand<Board> {
 
 	@Override
@@ -141,8 +101,11 @@ public class CLoad extends UICommand<Board> {
 		    		Path p = Paths.get(f.getAbsolutePath());
 					s = Files.readAllBytes(p);
 			    	if (s!=null) {
+			    		// A known program brings its own load address
+			    		RomSettings rs = RomDatabase.getInstance().settingsFor(s, addressAcc.getAddress());
 			    		board.setCurrentProgramPath(p.getFileName().toString());
-						board.setCurrentProgram(s, addressAcc.getAddress());
+						board.setCurrentProgram(s, rs.loadAddress);
+						board.setCurrentSettings(rs);
 						board.getCPU().reset();
 						if (cap.getAutoRunOnLoad()) {
 							getOtherUICommand("EV_RUN").action(board);
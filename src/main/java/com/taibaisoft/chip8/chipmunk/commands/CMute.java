@@ -52,9 +52,7 @@ public class CMute extends UICommand<Board> {
 	@Override
 	public void action(Board obj) {
 		ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
-		boolean f = !cap.getMute();
-		cap.setDefaultMute(f);
-		obj.setMuted(f);
+		cap.setDefaultMute(!cap.getMute());
 	}
 
 }
@@ -50,9 +50,7 @@ public class CPauseOnLostFocus extends UICommand<Board> {
 	@Override
 	public void action(Board obj) {
 		ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
-		boolean f = !cap.getPauseOnLostFocus();
-		cap.setDefaultPauseOnLostFocus(f);
-		obj.setPauseOnLostFocus(f);
+		cap.setDefaultPauseOnLostFocus(!cap.getPauseOnLostFocus());
 	}
 
 }
@@ -27,8 +27,11 @@ package com.taibaisoft.chip8.chipmunk.commands;
 import javax.swing.JOptionPane;
 
 import com.taibaisoft.chip8.chipmunk.Board;
+import com.taibaisoft.chip8.chipmunk.ConfigAndPrefs;
 import com.taibaisoft.chip8.processor.Chip8;
 import com.taibaisoft.chip8.processor.Chip8.Mode;
+import com.taibaisoft.chip8.processor.RomDatabase;
+import com.taibaisoft.chip8.processor.RomSettings;
 import com.taibaisoft.framework.UICommand;
 
 public class CRun extends UICommand<Board> {
@@ -63,7 +66,19 @@ public class CRun extends UICommand<Board> {
 			}
 			
 			try {
-				chip.loadProgram(board.getCurrentProgram(), Mode.CHIP_8, board.getLoadingAddress());
+				Mode mode = Mode.CHIP_8;
+				byte[] prog = board.getCurrentProgram();
+				if (prog != null) {
+					RomSettings rs = board.getCurrentSettings();
+					if (rs == null) {
+						rs = RomDatabase.getInstance().settingsFor(prog, board.getLoadingAddress());
+						board.setCurrentSettings(rs);
+					}
+					mode = rs.mode;
+					chip.setQuirks(rs.quirks);
+					chip.setCpuFrequency(rs.speedOr(ConfigAndPrefs.getInstance().getSpeed()));
+				}
+				chip.loadProgram(prog, mode, board.getLoadingAddress());
 				chip.run();
 				if (chip.hasStartedRunning()) {
 					updateTextAndIcon("Reset", null);
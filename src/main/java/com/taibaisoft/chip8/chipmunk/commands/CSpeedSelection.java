@@ -66,7 +66,7 @@ public class CSpeedSelection extends UICommand<Board> {
 		ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
 		cap.setDefaultSpeed(freq);
 		cap.setDefaultSpeedSelection(index);
-		
+		// Board only hears of a change of the default, a program with a speed of its own may be running
 		obj.getCPU().setCpuFrequency(freq);
 	}
 
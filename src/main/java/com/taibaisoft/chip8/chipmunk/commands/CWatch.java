@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.chipmunk.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import com.taibaisoft.chip8.assemblers.AsmError;
+import com.taibaisoft.chip8.assemblers.AsmResult;
+import com.taibaisoft.chip8.assemblers.SourceWatcher;
+import com.taibaisoft.chip8.chipmunk.Board;
+import com.taibaisoft.chip8.chipmunk.ConfigAndPrefs;
+import com.taibaisoft.chip8.processor.Chip8;
+import com.taibaisoft.chip8.processor.RomSettings;
+import com.taibaisoft.framework.UICommand;
+
+/**
+ * Watches an assembly source, every time it or one of its includes is saved 
+ * it is assembled again and the new binary goes straight into the emulator,
+ * either patched into the running program or restarted, see CHotPatch.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class CWatch extends UICommand<Board> {
+	
+	private SourceWatcher watcher_ = null;
+	/* Binary last pushed into the emulator */
+	private byte[] loaded_ = null;
+
+	@Override
+	public String getText() {
+		return "Watch Source ...";
+	}
+
+	@Override
+	public String getID() {
+		return "EV_WATCH";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Assembles a source and reloads it whenever it changes.";
+	}
+
+	@Override
+	public void action(final Board board) {
+		if (watcher_ != null) {
+			watcher_.stop();
+			watcher_ = null;
+			updateTextAndIcon(getText(), null);
+			return;
+		}
+		ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
+		JFileChooser chooser = new JFileChooser(new File(cap.getLastVisitedPath()));
+		chooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+		chooser.setMultiSelectionEnabled(false);
+		chooser.setFileFilter(new FileNameExtensionFilter("CHIP-8 Assembly", "asm", "src"));
+		AddressAccessory addressAcc = new AddressAccessory(chooser);
+		chooser.setAccessory(addressAcc);
+		if (chooser.showOpenDialog(this.getContainer()) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		File f = chooser.getSelectedFile();
+		cap.setLastVisitedPath(f.getParentFile().getAbsolutePath());
+		
+		final Path source = f.toPath().toAbsolutePath();
+		final int address = addressAcc.getAddress();
+		watcher_ = new SourceWatcher(source, address, new SourceWatcher.Listener() {
+			@Override
+			public void assembled(final AsmResult result, final long millis) {
+				for (AsmError e : result.errors) {
+					System.err.println(e.toString());
+				}
+				if (result.binary == null || result.hasErrors()) {
+					return;
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						reload(board, source.getFileName().toString(), result.binary, address);
+						System.out.println(String.format("%s reloaded, %d bytes in %d ms.", 
+								source.getFileName(), result.binary.length, millis));
+					}
+				});
+			}
+			@Override
+			public void failed(IOException e) {
+				System.err.println("Cannot read " + source + " : " + e.getMessage());
+			}
+		});
+		try {
+			watcher_.start();
+			updateTextAndIcon("Stop Watching", null);
+		} catch (IOException e) {
+			watcher_ = null;
+			alert(e.getMessage(), JOptionPane.ERROR_MESSAGE);
+		}
+	}
+	
+	private void reload(Board board, String name, byte[] bin, int address) {
+		Chip8 chip = board.getCPU();
+		// Only patches what this watcher loaded, not a program loaded meanwhile
+		boolean sameProgram = chip.hasStartedRunning() && board.getCurrentProgram() == loaded_ 
+				&& board.getLoadingAddress() == address;
+		loaded_ = bin;
+		if (sameProgram && ConfigAndPrefs.getInstance().getHotPatch() && chip.patchProgram(bin)) {
+			// Keeps the settings the program is running with
+			RomSettings rs = board.getCurrentSettings();
+			board.setCurrentProgram(bin, address);
+			board.setCurrentSettings(rs);
+			return;
+		}
+		board.setCurrentProgramPath(name);
+		board.setCurrentProgram(bin, address);
+		if (chip.hasStartedRunning()) {
+			chip.reset();
+			board.getGraphicsUnit().clearScreen();
+		}
+		getOtherUICommand("EV_RUN").action(board);
+	}
+}
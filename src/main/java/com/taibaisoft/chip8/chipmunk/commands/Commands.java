@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.chipmunk.commands;
+
+import com.taibaisoft.chip8.chipmunk.Board;
+import com.taibaisoft.framework.UICommand;
+
+/**
+ * Creates the commands menu.cfg names with their constructors, so building
+ * the menu does not go through reflection. A command missing here is still
+ * created by reflection, see UICommandSite.createCommand().
+ * 
+ * @author jeffreybian
+ *
+ */
+public final class Commands {
+	public static final String PACKAGE = Commands.class.getPackage().getName();
+	
+	private Commands() {
+	}
+	
+	/**
+	 * @param className Fully qualified class name of the command.
+	 * @return A new command, null if the class is not one of this package's commands.
+	 */
+	public static UICommand<Board> create(String className) {
+		if (className == null || !className.startsWith(PACKAGE + ".")) {
+			return null;
+		}
+		switch (className.substring(PACKAGE.length() + 1)) {
+		case "CFile":					return new CFile();
+		case "CLoad":					return new CLoad();
+		case "CLibrary":				return new CLibrary();
+		case "CWatch":					return new CWatch();
+		case "CExit":					return new CExit();
+		case "CEmu":					return new CEmu();
+		case "CRun":					return new CRun();
+		case "CPause":					return new CPause();
+		case "CSpeed":					return new CSpeed();
+		case "CSpeedSelection":			return new CSpeedSelection();
+		case "CKeyMappings":			return new CKeyMappings();
+		case "CMute":					return new CMute();
+		case "CRunOnLoad":				return new CRunOnLoad();
+		case "CHotPatch":				return new CHotPatch();
+		case "CPauseOnLostFocus":		return new CPauseOnLostFocus();
+		case "CGraphics":				return new CGraphics();
+		case "CForeColor":				return new CForeColor();
+		case "CForeColorSelection":		return new CForeColorSelection();
+		case "CBackColor":				return new CBackColor();
+		case "CBackColorSelection":		return new CBackColorSelection();
+		case "CAspectRatio":			return new CAspectRatio();
+		case "CAspectRatioSelection":	return new CAspectRatioSelection();
+		case "CWindowSize":				return new CWindowSize();
+		case "CWindowSizeSelection":	return new CWindowSizeSelection();
+		case "CAlwaysOnTop":			return new CAlwaysOnTop();
+		case "CAbout":					return new CAbout();
+		default:						return null;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.chipmunk.commands;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+
+import com.taibaisoft.chip8.chipmunk.ConfigAndPrefs;
+import com.taibaisoft.chip8.processor.RomLibrary;
+import com.taibaisoft.chip8.processor.RomLibrary.Entry;
+import com.taibaisoft.chip8.processor.RomLibrary.ScanStats;
+
+/**
+ * Lists the indexed programs with their thumbnails. Scanning runs off the
+ * event dispatch thread, only the changed files are looked at.
+ * 
+ * @author jeffreybian
+ *
+ */
+@SuppressWarnings("serial")
+public class LibraryDialog extends JDialog implements ActionListener {
+	
+	private static final int THUMB_W = 128;
+	private static final int THUMB_H = 64;
+	
+	private final RomLibrary library_;
+	private final DefaultListModel<Entry> model_ = new DefaultListModel<Entry>();
+	private final JList<Entry> list_ = new JList<Entry>(model_);
+	private final JLabel status_ = new JLabel(" ");
+	private final JButton scan_ = new JButton("Scan Folder ...");
+	private final HashMap<String, ImageIcon> icons_ = new HashMap<String, ImageIcon>();
+	private Entry selected_ = null;
+
+	public LibraryDialog(JFrame parent, String title, RomLibrary library) {
+		super(parent, title, true);
+		library_ = library;
+		setupGUI(parent);
+		refresh();
+	}
+	
+	protected void setupGUI(JFrame parent) {
+		if (parent != null) {
+			Dimension parentSize = parent.getSize();
+			Point p = parent.getLocation();
+			setLocation(p.x + parentSize.width / 8, p.y + parentSize.height / 8);
+		}
+		list_.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list_.setCellRenderer(new DefaultListCellRenderer() {
+			@Override
+			public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+					boolean isSelected, boolean cellHasFocus) {
+				Entry e = (Entry)value;
+				JLabel lbl = (JLabel)super.getListCellRendererComponent(list, describe(e), index, isSelected, cellHasFocus);
+				lbl.setIcon(iconFor(e));
+				return lbl;
+			}
+		});
+		list_.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2 && list_.getSelectedValue() != null) {
+					choose();
+				}
+			}
+		});
+		JScrollPane scroll = new JScrollPane(list_);
+		scroll.setPreferredSize(new Dimension(520, 400));
+		getContentPane().add(scroll);
+		
+		JPanel buttonPane = new JPanel();
+		buttonPane.add(scan_);
+		scan_.addActionListener(this);
+		scan_.setActionCommand("Scan");
+		JButton button = new JButton("Load");
+		buttonPane.add(button);
+		button.addActionListener(this);
+		button.setActionCommand("Load");
+		button = new JButton("Close");
+		buttonPane.add(button);
+		button.addActionListener(this);
+		button.setActionCommand("Close");
+		
+		JPanel south = new JPanel(new BorderLayout());
+		south.add(status_, BorderLayout.NORTH);
+		south.add(buttonPane, BorderLayout.SOUTH);
+		getContentPane().add(south, BorderLayout.SOUTH);
+	}
+	
+	/**
+	 * Shows the dialog modally.
+	 * @return the entry to load, or null.
+	 */
+	public Entry showMe() {
+		setModalityType(ModalityType.APPLICATION_MODAL);
+		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		pack();
+		setVisible(true);
+		return selected_;
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		String cmd = e.getActionCommand();
+		if (cmd.compareTo("Load") == 0) {
+			if (list_.getSelectedValue() != null) {
+				choose();
+			}
+		} else if (cmd.compareTo("Close") == 0) {
+			setVisible(false);
+			dispose();
+		} else if (cmd.compareTo("Scan") == 0) {
+			ConfigAndPrefs cap = ConfigAndPrefs.getInstance();
+			String last = cap.getLibraryPath().length() > 0 ? cap.getLibraryPath() : cap.getLastVisitedPath();
+			JFileChooser chooser = new JFileChooser(new File(last));
+			chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+				File dir = chooser.getSelectedFile();
+				cap.setLibraryPath(dir.getAbsolutePath());
+				scan(Paths.get(dir.getAbsolutePath()));
+			}
+		}
+	}
+	
+	private void choose() {
+		selected_ = list_.getSelectedValue();
+		setVisible(false);
+		dispose();
+	}
+	
+	private void scan(final Path dir) {
+		scan_.setEnabled(false);
+		status_.setText("Scanning " + dir + " ...");
+		new SwingWorker<ScanStats, Void>() {
+			@Override
+			protected ScanStats doInBackground() throws Exception {
+				return library_.scan(Collections.singletonList(dir), Runtime.getRuntime().availableProcessors());
+			}
+			@Override
+			protected void done() {
+				scan_.setEnabled(true);
+				try {
+					ScanStats s = get();
+					status_.setText(String.format("%d programs found, %d indexed, %d unchanged, %d failed in %d ms.",
+							s.found, s.indexed, s.reused, s.failed, s.elapsedMillis));
+				} catch (Exception e) {
+					status_.setText("Scan failed: " + e.getMessage());
+				}
+				refresh();
+			}
+		}.execute();
+	}
+	
+	private void refresh() {
+		List<Entry> entries = library_.getEntries();
+		model_.clear();
+		for (Entry e : entries) {
+			model_.addElement(e);
+		}
+		if (entries.isEmpty()) {
+			status_.setText("The library is empty, scan a folder to fill it.");
+		}
+	}
+	
+	private static String describe(Entry e) {
+		StringBuilder sb = new StringBuilder("<html><b>").append(e.getFileName()).append("</b><br>");
+		sb.append(e.size).append(" bytes");
+		if (e.schipOpcodes > 0 || e.hiresIntercept) {
+			sb.append(", SCHIP");
+		}
+		if (e.quirkSensitivity.length() > 0) {
+			sb.append(", quirks: ").append(e.quirkSensitivity);
+		}
+		return sb.append("</html>").toString();
+	}
+	
+	private ImageIcon iconFor(Entry e) {
+		ImageIcon icon = icons_.get(e.path);
+		if (icon == null) {
+			BufferedImage img = new BufferedImage(THUMB_W, THUMB_H, BufferedImage.TYPE_INT_RGB);
+			if (e.thumbnailWidth > 0 && e.thumbnailHeight > 0) {
+				int fg = Color.LIGHT_GRAY.getRGB();
+				for (int y = 0; y < THUMB_H; ++y) {
+					for (int x = 0; x < THUMB_W; ++x) {
+						if (e.isPixelSet(x * e.thumbnailWidth / THUMB_W, y * e.thumbnailHeight / THUMB_H)) {
+							img.setRGB(x, y, fg);
+						}
+					}
+				}
+			}
+			icon = new ImageIcon(img);
+			icons_.put(e.path, icon);
+		}
+		return icon;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import static com.taibaisoft.chip8.processor.CheckpointRecorder.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only view over a checkpoint file written by CheckpointRecorder.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class CheckpointReader implements Closeable {
+	private final FileChannel channel_;
+	private final MappedByteBuffer buffer_;
+	private final int size_;
+	
+	public CheckpointReader(Path file) throws IOException {
+		channel_ = FileChannel.open(file, StandardOpenOption.READ);
+		long fileSize = channel_.size();
+		if (fileSize < HEADER_SIZE) {
+			channel_.close();
+			throw new IOException("Not a checkpoint file: " + file);
+		}
+		buffer_ = channel_.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		if (buffer_.getInt(H_MAGIC) != MAGIC || buffer_.getInt(H_VERSION) != VERSION
+				|| buffer_.getInt(H_RECORD_SIZE) != RECORD_SIZE) {
+			channel_.close();
+			throw new IOException("Not a checkpoint file or unsupported version: " + file);
+		}
+		// The count is only written on close, fall back to the file size for interrupted runs.
+		long count = buffer_.getLong(H_COUNT);
+		long present = (fileSize - HEADER_SIZE) / RECORD_SIZE;
+		size_ = (int)(count > 0 ? Math.min(count, present) : present);
+	}
+	
+	public int size() {
+		return size_;
+	}
+	public long getInterval() {
+		return buffer_.getLong(H_INTERVAL);
+	}
+	public long getProgramHash() {
+		return buffer_.getLong(H_PROGRAM);
+	}
+	public long getSeed() {
+		return buffer_.getLong(H_SEED);
+	}
+	private int offset(int index) {
+		return HEADER_SIZE + index * RECORD_SIZE;
+	}
+	public long getCycle(int index) {
+		return buffer_.getLong(offset(index) + R_CYCLE);
+	}
+	public long getChainHash(int index) {
+		return buffer_.getLong(offset(index) + R_CHAIN);
+	}
+	public long getRegistersHash(int index) {
+		return buffer_.getLong(offset(index) + R_REGS);
+	}
+	public long getMemoryHash(int index) {
+		return buffer_.getLong(offset(index) + R_MEMORY);
+	}
+	public long getGraphicsHash(int index) {
+		return buffer_.getLong(offset(index) + R_GRAPHICS);
+	}
+	
+	/**
+	 * Binary searches the first checkpoint where the two runs differ. Relies on the
+	 * chained hash: every checkpoint before the first divergence matches and every
+	 * checkpoint after it does not.
+	 * @param a
+	 * @param b
+	 * @return The index of the first divergent checkpoint, or -1 if all common checkpoints match.
+	 */
+	public static int firstDivergence(CheckpointReader a, CheckpointReader b) {
+		int lo = 0;
+		int hi = Math.min(a.size(), b.size());
+		int n = hi;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (a.getCycle(mid) == b.getCycle(mid) && a.getChainHash(mid) == b.getChainHash(mid)) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo < n ? lo : -1;
+	}
+	
+	/**
+	 * Appends a one line, human readable form of a checkpoint.
+	 * @param index
+	 * @param sb
+	 */
+	public void appendCheckpoint(int index, StringBuilder sb) {
+		int o = offset(index);
+		sb.append(buffer_.getLong(o + R_CYCLE)).append(' ');
+		TraceReader.appendHex(sb, buffer_.getShort(o + R_PC), 3).append(":       I=");
+		TraceReader.appendHex(sb, buffer_.getShort(o + R_I), 3).append(" V=");
+		for (int i = 0; i < 16; ++i) {
+			TraceReader.appendHex(sb, buffer_.get(o + R_V + i), 2);
+			if (i < 15) {
+				sb.append(' ');
+			}
+		}
+		sb.append(" DT=");
+		TraceReader.appendHex(sb, buffer_.get(o + R_DT), 2).append(" ST=");
+		TraceReader.appendHex(sb, buffer_.get(o + R_ST), 2).append(" SP=");
+		TraceReader.appendHex(sb, buffer_.get(o + R_SP), 2);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel_.close();
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes periodic state checkpoints of a run, used by the tracediff tool to
+ * find where two runs of the same program part ways without comparing every
+ * instruction.
+ * 
+ * Every checkpoint carries a chained hash, H(previous chained hash, state),
+ * so once two runs diverge their chained hashes never match again and the
+ * first divergent checkpoint can be found by binary search.
+ * 
+ * File layout (big endian):
+ * 
+ * Header, HEADER_SIZE bytes
+ *   0  int   MAGIC
+ *   4  int   VERSION
+ *   8  int   RECORD_SIZE
+ *   16 long  interval, in instructions
+ *   24 long  number of checkpoints
+ *   32 long  program hash
+ *   40 long  random seed
+ * 
+ * Checkpoint, RECORD_SIZE bytes, state AFTER <code>cycle</code> instructions
+ *   0  long  cycle
+ *   8  long  chained hash
+ *   16 long  register hash, see Chip8.hashRegisters()
+ *   24 long  memory hash
+ *   32 long  graphics hash
+ *   40 short PC
+ *   42 short I
+ *   44 byte  SP
+ *   45 byte  DT
+ *   46 byte  ST
+ *   47 byte  reserved
+ *   48 byte[16] V0-VF
+ * 
+ * @author jeffreybian
+ *
+ */
+public class CheckpointRecorder implements Closeable {
+	public static final int MAGIC = 0x4D38434B; // "M8CK"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int RECORD_SIZE = 64;
+	public static final long DEFAULT_INTERVAL = 10000;
+	
+	static final int H_MAGIC = 0;
+	static final int H_VERSION = 4;
+	static final int H_RECORD_SIZE = 8;
+	static final int H_INTERVAL = 16;
+	static final int H_COUNT = 24;
+	static final int H_PROGRAM = 32;
+	static final int H_SEED = 40;
+	
+	static final int R_CYCLE = 0;
+	static final int R_CHAIN = 8;
+	static final int R_REGS = 16;
+	static final int R_MEMORY = 24;
+	static final int R_GRAPHICS = 32;
+	static final int R_PC = 40;
+	static final int R_I = 42;
+	static final int R_SP = 44;
+	static final int R_DT = 45;
+	static final int R_ST = 46;
+	static final int R_V = 48;
+	
+	private final FileChannel channel_;
+	private final ByteBuffer record_ = ByteBuffer.allocate(RECORD_SIZE);
+	private final long interval_;
+	private long count_ = 0;
+	private long chain_ = Chip8.FNV_OFFSET;
+	
+	/**
+	 * @param file
+	 * @param interval Instructions between two checkpoints, only stored for reference.
+	 * @param program The program being run, hashed so that runs of different programs are not compared.
+	 * @param seed
+	 * @throws IOException
+	 */
+	public CheckpointRecorder(Path file, long interval, byte[] program, long seed) throws IOException {
+		interval_ = interval;
+		channel_ = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		long ph = Chip8.FNV_OFFSET;
+		for (byte b : program) {
+			ph = (ph ^ (b & 0xFF)) * Chip8.FNV_PRIME;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(H_MAGIC, MAGIC);
+		header.putInt(H_VERSION, VERSION);
+		header.putInt(H_RECORD_SIZE, RECORD_SIZE);
+		header.putLong(H_INTERVAL, interval_);
+		header.putLong(H_COUNT, 0);
+		header.putLong(H_PROGRAM, ph);
+		header.putLong(H_SEED, seed);
+		channel_.write(header, 0);
+		channel_.position(HEADER_SIZE);
+	}
+	
+	/**
+	 * Appends a checkpoint of the current state of <code>c</code>.
+	 * @param c
+	 * @throws IOException
+	 */
+	public void checkpoint(Chip8 c) throws IOException {
+		long regs = c.hashRegisters();
+		long mem = c.hashMemory();
+		long gfx = c.hashGraphics();
+		long h = chain_;
+		h = (h ^ regs) * Chip8.FNV_PRIME;
+		h = (h ^ mem) * Chip8.FNV_PRIME;
+		h = (h ^ gfx) * Chip8.FNV_PRIME;
+		chain_ = h;
+		
+		ByteBuffer r = record_;
+		r.clear();
+		r.putLong(R_CYCLE, c.cycles_);
+		r.putLong(R_CHAIN, h);
+		r.putLong(R_REGS, regs);
+		r.putLong(R_MEMORY, mem);
+		r.putLong(R_GRAPHICS, gfx);
+		r.putShort(R_PC, (short)c.getPC());
+		r.putShort(R_I, (short)c.I);
+		r.put(R_SP, (byte)c.getSP());
+		r.put(R_DT, (byte)c.delayTimer);
+		r.put(R_ST, (byte)c.soundTimer);
+		for (int i = 0; i < 16; ++i) {
+			r.put(R_V + i, c.v[i]);
+		}
+		while (r.hasRemaining()) {
+			channel_.write(r);
+		}
+		++count_;
+	}
+	
+	public long getCount() {
+		return count_;
+	}
+	@Override
+	public void close() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(8);
+		b.putLong(0, count_);
+		channel_.write(b, H_COUNT);
+		channel_.close();
+	}
+}
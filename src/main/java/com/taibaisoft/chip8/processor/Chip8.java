@@ -25,6 +25,7 @@
 package com.taibaisoft.chip8.processor;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import com.taibaisoft.chip8.platform.Util;
 import com.taibaisoft.framework.GenericCPU;
@@ -153,6 +154,30 @@ public class Chip8 extends GenericCPU {
 	
 	int V = CHIP_8_PIXELS_Y;
 	private int startAddress_ = DEFAULT_LOAD_ADDRESS;
+	/** Size of the loaded program, what a hot patch has to overwrite. */
+	private int programLength_ = 0;
+	/** Program waiting to be patched in between two instructions, null if none. */
+	private volatile byte[] pendingPatch_ = null;
+	/** Number of instructions fetched since the last reset. */
+	protected long cycles_ = 0;
+	/** Per instance generator, so that seeded (headless) runs are reproducible. */
+	protected Random rand_ = new Random();
+	/** Optional execution trace, null when tracing is off. */
+	TraceRecorder tracer_ = null;
+	
+	private Quirks quirks_ = Quirks.DEFAULT;
+	/** Handlers of the quirk dependent instructions, picked by setQuirks(). */
+	private AluOp[] aluOps_ = null;
+	private Op jumpOp_ = null;
+	private Op drawOp_ = null;
+	private Op storeOp_ = null;
+	private Op loadOp_ = null;
+	/**
+	 * Pre-decoded memory for runInstructions(): the opcode at each address, plus the
+	 * id of the pair starting there shifted left by 16, see Fusion. Null when fusion is off.
+	 */
+	private int[] decoded_ = null;
+	private Fusion fusion_ = null;
 	
 	public Chip8(IScreen g, IKeyboard k, IBuzzer b, IExceptionHandler h) {
 		renderer = g;
@@ -164,6 +189,7 @@ public class Chip8 extends GenericCPU {
 		}
 		registerTimer(0, 1000000000/DEFAULT_TIMER_HZ);
 		setRenderFrequency(DEFAULT_RENDER_HZ);
+		setQuirks(Quirks.DEFAULT);
 	}
 	public byte[] getMemory() {
 		return memory_;
@@ -174,6 +200,63 @@ public class Chip8 extends GenericCPU {
 	public int getUnitY() {
 		return V;
 	}
+	public long getCycleCount() {
+		return cycles_;
+	}
+	/**
+	 * Attaches a trace recorder, every instruction executed from now on will be
+	 * appended to it before it runs. Pass null to stop tracing.
+	 * @param t
+	 */
+	public void setTraceRecorder(TraceRecorder t) {
+		tracer_ = t;
+	}
+	public TraceRecorder getTraceRecorder() {
+		return tracer_;
+	}
+	/**
+	 * Selects the handlers matching the profile, once, so that running instructions
+	 * never tests a quirk. Kept across reset() and loadProgram().
+	 * @param q
+	 */
+	public void setQuirks(Quirks q) {
+		AluOp[] alu = new AluOp[16];
+		Arrays.fill(alu, ALU_NOP);
+		alu[0x0] = ALU_LD;
+		alu[0x1] = q.logicResetsVf ? ALU_OR_VF_RESET : ALU_OR;
+		alu[0x2] = q.logicResetsVf ? ALU_AND_VF_RESET : ALU_AND;
+		alu[0x3] = q.logicResetsVf ? ALU_XOR_VF_RESET : ALU_XOR;
+		alu[0x4] = ALU_ADD;
+		alu[0x5] = ALU_SUB;
+		alu[0x6] = q.shiftUsesVy ? ALU_SHR_VY : ALU_SHR;
+		alu[0x7] = ALU_SUBN;
+		alu[0xE] = q.shiftUsesVy ? ALU_SHL_VY : ALU_SHL;
+		aluOps_ = alu;
+		jumpOp_ = q.jumpUsesVx ? JP_VX : JP_V0;
+		drawOp_ = q.clipSprites ? DRW_CLIP : DRW_WRAP;
+		storeOp_ = q.loadStoreIncrementsI ? STORE_INC_I : STORE;
+		loadOp_ = q.loadStoreIncrementsI ? LOAD_INC_I : LOAD;
+		quirks_ = q;
+	}
+	public Quirks getQuirks() {
+		return quirks_;
+	}
+	/**
+	 * Lets runInstructions() run the pairs picked by Fusion in one dispatch. The
+	 * results are the same either way, oneCycle() never fuses.
+	 * @param on
+	 */
+	public void setFusion(boolean on) {
+		fusion_ = on ? Fusion.getInstance() : null;
+		decoded_ = on ? new int[MEMSIZE] : null;
+		predecode(0, MEMSIZE);
+	}
+	public boolean isFusionOn() {
+		return decoded_ != null;
+	}
+	public void setRandomSeed(long seed) {
+		rand_.setSeed(seed);
+	}
 	public boolean loadProgram(byte[] prog) {
 		return loadProgram(prog, Mode.CHIP_8, DEFAULT_LOAD_ADDRESS);
 	}	
@@ -196,6 +279,9 @@ public class Chip8 extends GenericCPU {
 				System.arraycopy(prog, 0, memory_, startAddress_, prog.length);
 				pc=startAddress_;
 			}
+			programLength_ = prog.length;
+			pendingPatch_ = null;
+			predecode(0, MEMSIZE);
 			r = true;
 		} else {
 			r = false;
@@ -203,6 +289,33 @@ public class Chip8 extends GenericCPU {
 		return r;
 	}
 
+	/**
+	 * Replaces the loaded program with prog at the same address, keeping the
+	 * registers, stack, timers and screen. While running, the new code goes in
+	 * between two instructions on the CPU thread.
+	 * @param prog
+	 * @return false if no program is loaded or prog does not fit.
+	 */
+	public boolean patchProgram(byte[] prog) {
+		if (memory_ == null || prog == null || startAddress_ + prog.length > MEMSIZE) {
+			return false;
+		}
+		if (isRunning()) {
+			pendingPatch_ = prog;
+		} else {
+			applyPatch(prog);
+		}
+		return true;
+	}
+	private void applyPatch(byte[] prog) {
+		synchronized (memory_) {
+			Arrays.fill(memory_, startAddress_, startAddress_ + programLength_, (byte)0);
+			System.arraycopy(prog, 0, memory_, startAddress_, prog.length);
+		}
+		programLength_ = prog.length;
+		predecode(0, MEMSIZE);
+	}
+
 	/**
 	 * The overall reset procedure, calls
 	 * sub resets for each components.
@@ -260,6 +373,37 @@ public class Chip8 extends GenericCPU {
 			cy = (cy+1) % V;
 		}
 	}
+	/**
+	 * Same as blitSprite() except that only the origin wraps around, the pixels
+	 * falling off the right or bottom edge are dropped.
+	 */
+	private void blitSpriteClipped(int sx, int sy, int memStart, int memEnd) {
+		int inc = 1;
+		if (memEnd-memStart==32) {
+			// Draws 16x16 sprites.
+			inc = 2;
+		}
+		int x0 = sx % H;
+		int cy = sy % V;
+		v[0xF] = 0;
+		for (int j = memStart; j < memEnd && cy < V; j+=inc) {
+			for (int q = inc-1;q>=0;q--) {
+				for (int k = 0; k < 8; ++k) {
+					int x = x0 + k + q*8;
+					if (x >= H) {
+						break;
+					}
+					int cindex = x + (cy*H);
+					int pixel = ((Util.b2i(memory_[j+q]) >>> (7-k)) & 0x1) ^ (graphicsBuffer_[cindex] & 0x1);
+					if (v[0xF] ==0 && pixel == 0 && (graphicsBuffer_[cindex] & 0x1)==0x1) {
+						v[0xF] = 1;
+					}
+					graphicsBuffer_[cindex] = pixel;
+				}
+			}
+			cy++;
+		}
+	}
 	/**
 	 * This routine is called at cpuFrequency.
 	 * @param delta
@@ -268,6 +412,11 @@ public class Chip8 extends GenericCPU {
 	 */
 	@Override
 	public void oneCycle() throws Exception{
+		byte[] patch = pendingPatch_;
+		if (patch != null) {
+			pendingPatch_ = null;
+			applyPatch(patch);
+		}
 		// Fetch and run an opcode at PC, 16 bit, Big endian
 		if (pc<MEMSIZE-2) {
 			int opcode = ((memory_[pc] & 0xFF) << 8) | (memory_[pc + 1] & 0xFF); 
@@ -277,11 +426,153 @@ public class Chip8 extends GenericCPU {
 				V = CHIP_8_HIRES_PIXELS_Y;
 				opcode = 0x12C0;
 			}
+			if (tracer_ != null) {
+				tracer_.record(this, opcode);
+			}
+			++cycles_;
 			runOpcode(opcode);
 		} else {
 			throw new Exception("Reached the end of program.");
 		}
 	}
+	/**
+	 * Runs up to max instructions back to back, a pre-decoded pair in one dispatch.
+	 * A pair never runs past max, its first instruction then runs alone. Same as
+	 * calling oneCycle() max times when fusion is off or the execution is traced.
+	 * @param max
+	 * @return max, the number of instructions run.
+	 * @throws Exception
+	 */
+	public int runInstructions(int max) throws Exception {
+		final int[] decoded = decoded_;
+		if (decoded == null || tracer_ != null || memory_ == null) {
+			for (int i = 0; i < max; ++i) {
+				oneCycle();
+			}
+			return max;
+		}
+		int done = 0;
+		while (done < max) {
+			int p = pc;
+			if (pendingPatch_ != null || p >= MEMSIZE - 2 || p == startAddress_) {
+				oneCycle();
+				++done;
+				continue;
+			}
+			int d = decoded[p];
+			if (d > 0xFFFF && done + 1 < max) {
+				done += runPair(d >>> 16, p, d & 0xFFFF, decoded[p + 2] & 0xFFFF);
+			} else {
+				++cycles_;
+				runOpcode(d & 0xFFFF);
+				++done;
+			}
+		}
+		return done;
+	}
+	/**
+	 * Runs the pair at p as two oneCycle() calls would. PC and the cycle count are
+	 * up to date before the second instruction touches memory, so that a fault
+	 * leaves the same state.
+	 * @return The number of instructions run, 1 if the first one skipped the second.
+	 */
+	private int runPair(int id, int p, int op1, int op2) throws ExitException {
+		int x1 = (op1 & 0x0F00) >>> 8;
+		int x2 = (op2 & 0x0F00) >>> 8;
+		boolean skip = false;
+		switch (id) {
+		case Fusion.SE_JP: // SE Vx, NN; JP NNN
+			skip = (v[x1] & 0xFF) == (op1 & 0xFF);
+			break;
+		case Fusion.SNE_JP: // SNE Vx, NN; JP NNN
+			skip = (v[x1] & 0xFF) != (op1 & 0xFF);
+			break;
+		case Fusion.SE_V_JP: // SE Vx, Vy; JP NNN
+			skip = v[x1] == v[(op1 & 0x00F0) >>> 4];
+			break;
+		case Fusion.SNE_V_JP: // SNE Vx, Vy; JP NNN
+			skip = v[x1] != v[(op1 & 0x00F0) >>> 4];
+			break;
+		case Fusion.LD_DT_SE: // LD Vx, DT; SE Vy, NN
+			v[x1] = (byte)delayTimer;
+			pc = (v[x2] & 0xFF) == (op2 & 0xFF) ? p + 6 : p + 4;
+			cycles_ += 2;
+			return 2;
+		case Fusion.LD_DT_SNE: // LD Vx, DT; SNE Vy, NN
+			v[x1] = (byte)delayTimer;
+			pc = (v[x2] & 0xFF) != (op2 & 0xFF) ? p + 6 : p + 4;
+			cycles_ += 2;
+			return 2;
+		case Fusion.ADD_SE: // ADD Vx, NN; SE Vy, NN
+		case Fusion.ADD_SNE: { // ADD Vx, NN; SNE Vy, NN
+			int r = (v[x1] & 0xFF) + (op1 & 0xFF);
+			if (r > 0xFF) {
+				v[0xF] = 0x1;
+			}
+			v[x1] = (byte) r;
+			boolean eq = (v[x2] & 0xFF) == (op2 & 0xFF);
+			pc = eq == (id == Fusion.ADD_SE) ? p + 6 : p + 4;
+			cycles_ += 2;
+			return 2;
+		}
+		case Fusion.LD_I_ADD_I: // LD I, NNN; ADD I, Vx
+			I = ((op1 & 0x0FFF) + (v[x2] & 0xFF)) & 0x0FFF;
+			pc = p + 4;
+			cycles_ += 2;
+			return 2;
+		case Fusion.ADD_I_LOAD: // ADD I, Vx; LD Vx, [I]
+			I = (I + (v[x1] & 0xFF)) & 0x0FFF;
+			pc = p + 2;
+			cycles_ += 2;
+			loadOp_.run(this, op2);
+			pc += 2;
+			return 2;
+		case Fusion.LD_I_DRW: // LD I, NNN; DRW Vx, Vy, N
+			I = op1 & 0x0FFF;
+			pc = p + 2;
+			cycles_ += 2;
+			drawOp_.run(this, op2);
+			pc += 2;
+			return 2;
+		default:
+			++cycles_;
+			runOpcode(op1);
+			return 1;
+		}
+		// The skips followed by a jump
+		if (skip) {
+			pc = p + 4;
+			++cycles_;
+			return 1;
+		}
+		pc = op2 & 0x0FFF;
+		cycles_ += 2;
+		return 2;
+	}
+	/**
+	 * Decodes again the instructions and pairs overlapping memory [from, to), after
+	 * it changed. Pairs touching the start address are left alone for the hires intercept.
+	 */
+	void predecode(int from, int to) {
+		final int[] decoded = decoded_;
+		if (decoded == null) {
+			return;
+		}
+		if (memory_ == null) {
+			Arrays.fill(decoded, 0);
+			return;
+		}
+		int end = Math.min(to, MEMSIZE - 1);
+		for (int a = Math.max(from - 3, 0); a < end; ++a) {
+			int op1 = ((memory_[a] & 0xFF) << 8) | (memory_[a + 1] & 0xFF);
+			int id = 0;
+			if (a < MEMSIZE - 4 && a != startAddress_ && a + 2 != startAddress_) {
+				int op2 = ((memory_[a + 2] & 0xFF) << 8) | (memory_[a + 3] & 0xFF);
+				id = fusion_.detect(op1, op2);
+			}
+			decoded[a] = (id << 16) | op1;
+		}
+	}
 	/**
 	 * 
 	 */
@@ -330,6 +621,8 @@ public class Chip8 extends GenericCPU {
 		soundTimer = 0;
 		delayTimer = 0;
 		startAddress_ = 0;
+		cycles_ = 0;
+		predecode(0, MEMSIZE);
 	}	
 	private void resetTimers() {
 		prevTimerTick = 0;
@@ -469,77 +762,7 @@ public class Chip8 extends GenericCPU {
 		case 0x8000: {
 			int indx = (opcode & 0x0F00) >>> 8;
 			int indy = (opcode & 0x00F0) >>> 4;
-			switch ((opcode & 0x000F)) {
-			case 0: // LD Vx, Vy - VX to the value of VY.
-				v[indx] = v[indy];
-				break;
-			case 1: // OR Vx, Vy - Sets VX to VX or VY.
-				v[indx] = (byte) (v[indx] | v[indy]);
-				break;
-			case 2: // AND Vx, Vy - Sets VX to VX and VY.
-				v[indx] = (byte) (v[indx] & v[indy]);
-				break;
-			case 3: // XOR Vx, Vy - Sets VX to VX xor VY.
-				v[indx] = (byte) (v[indx] ^ v[indy]);
-				break;
-			case 4: // ADD Vx, Vy - Adds VY to VX. VF is set to 1 when there's a carry,
-					// and to 0 when there isn't.
-			{
-				int s = Util.b2i(v[indx]) + Util.b2i(v[indy]);
-				if (s > 0xFF) {
-					v[0xF] = 0x1;
-				} else {
-					v[0xF] = 0x0;
-				}
-				v[indx] = (byte) s;
-			}
-				break;
-			case 5: // SUB Vx, Vy - VY is subtracted from VX. VF is set to 0 when
-					// there's a borrow, and 1 when there isn't.
-			{
-				int s = 0;
-				int s1 = Util.b2i(v[indx]);
-				int s2 = Util.b2i(v[indy]); 
-				if ( s1>= s2) {
-					s = s1 - s2;
-					v[0xF] = 0x1;
-				} else {
-					s = 0x100+s1 - s2;
-					v[0xF] = 0x0;
-				}
-				v[indx] = (byte) s;
-			}
-				break;
-			case 6: // SHR Vx {,Vy} - 8XY6 Shifts VX right by one. VF is set to the value of
-					// the least significant bit of VX before the shift.[2]
-				v[0xF] = (byte)(Util.b2i(v[indx])%2);
-				v[indx] = (byte) (Util.b2i(v[indx])/2);
-				break;
-			case 7: // SUBN Vx, Vy - Sets VX to VY minus VX. VF is set to 0 when there's
-					// a borrow, and 1 when there isn't.
-			{
-				int s = 0;
-				int s1 = Util.b2i(v[indy]);
-				int s2 = Util.b2i(v[indx]);
-				if ( s1 >= s2) {
-					s = s1-s2;
-					v[0xF] = 0x1;
-				} else {
-					s = 0x100+s1-s2;
-					v[0xF] = 0x0;
-				}
-				v[indx] = (byte) s;
-			}
-				break;
-			case 0xE: // SHL Vx {, Vy} - 8XYE Shifts VX left by one. VF is set to the value of
-						// the most significant bit of VX before the shift.[2]
-			{
-				v[0xF] = (byte)( (Util.b2i(v[indx]) >>> 7) & 0x1 );
-
-				v[indx] = (byte) (Util.b2i(v[indx]) << 1);
-			}
-				break;
-			}
+			aluOps_[opcode & 0x000F].run(this, indx, indy);
 		}
 			pc += 2;
 			break;
@@ -558,36 +781,23 @@ public class Chip8 extends GenericCPU {
 			I = (opcode & 0x0FFF);
 			pc += 2;
 			break;
-		case 0xB000: // JP V0, NNN - BNNN Jumps to the address NNN plus V0.
-			pc = (opcode & 0x0FFF) + Util.b2i(v[0]);
+		case 0xB000: // JP V0, NNN - BNNN Jumps to the address NNN plus V0 (or BXNN, see Quirks).
+			jumpOp_.run(this, opcode);
 			break;
 		case 0xC000: // RND Vx, NNN - CXNN Sets VX to a random number and NN.
 		{
 			int indx = (opcode & 0x0F00) >>> 8;
-			v[indx] = (byte) (Util.genInt(0, 256) & (opcode & 0x00FF));
+			v[indx] = (byte) (rand_.nextInt(256) & (opcode & 0x00FF));
 		}
 			
 			pc += 2;
 			break;
 		case 0xD000: // DRW Vx, Vy, N - DXYN Sprites stored in memory at location in index
 						// register (I), maximum 8bits wide. Wraps around the
-						// screen. If when drawn, clears a pixel, register VF is
+						// screen (or clipped, see Quirks). If when drawn, clears a pixel, register VF is
 						// set to 1 otherwise it is zero. All drawing is XOR
 						// drawing (e.g. it toggles the screen pixels)
-		{
-			int indx = (opcode & 0x0F00) >>> 8;
-			int indy = (opcode & 0x00F0) >>> 4;
-			
-			int n = (opcode & 0x000F);
-			if (n>0) {
-				blitSprite(Util.b2i(v[indx]), Util.b2i(v[indy]), I, I+n);
-			} else { // n==0
-				// [S-CHIP] draws 16x16 sprites
-				if (isExtendedScreen) {
-					blitSprite(Util.b2i(v[indx]), Util.b2i(v[indy]), I, I+32);
-				}
-			}
-		}
+			drawOp_.run(this, opcode);
 			pc += 2;
 			break;
 		case 0xE000: {  
@@ -667,21 +877,15 @@ public class Chip8 extends GenericCPU {
 				memory_[I + 1] = (byte) ((n % 10) & 0xff);
 				n /= 10;
 				memory_[I] = (byte) ((n % 10) & 0xff);
+				predecode(I, I + 3);
 			}
 				break;
 			case 0x55: // LD [I], Vx - The interpreter copies the values of registers V0
 						// through Vx into memory, starting at the address in I.
-			{
-				for (int j = 0; j <= indx; ++j) {
-					memory_[I + j] = v[j];
-				}
-			}
+				storeOp_.run(this, opcode);
 				break;
-			case 0x65: { // LD Vx, [I] - Read registers V0 through Vx from memory starting at location I. 
-				for (int j = 0; j <= indx; ++j) {
-					v[j] = memory_[I + j];
-				}
-			}
+			case 0x65: // LD Vx, [I] - Read registers V0 through Vx from memory starting at location I. 
+				loadOp_.run(this, opcode);
 				break;
 			case 0x75: { // [S-CHIP] LD R, Vx - Stores V0..VX in RPL user flags (X <= 7), Maybe could be skipped?
 				for (int j = 0; j <= indx; ++j) {
@@ -702,6 +906,50 @@ public class Chip8 extends GenericCPU {
 			break;
 		}
 	}
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	static final long FNV_PRIME = 0x100000001b3L;
+	/**
+	 * FNV-1a over everything that is not memory or graphics: PC, I, SP, the call stack,
+	 * V0-VF, timers, RPL flags and the key wait state.
+	 */
+	long hashRegisters() {
+		long h = FNV_OFFSET;
+		h = (h ^ pc) * FNV_PRIME;
+		h = (h ^ I) * FNV_PRIME;
+		h = (h ^ sp) * FNV_PRIME;
+		for (int i = 0; i < sp && i < callStack.length; ++i) {
+			h = (h ^ callStack[i]) * FNV_PRIME;
+		}
+		for (int i = 0; i < 16; ++i) {
+			h = (h ^ (v[i] & 0xFF)) * FNV_PRIME;
+		}
+		h = (h ^ delayTimer) * FNV_PRIME;
+		h = (h ^ soundTimer) * FNV_PRIME;
+		for (int i = 0; i < rplFlags.length; ++i) {
+			h = (h ^ (rplFlags[i] & 0xFF)) * FNV_PRIME;
+		}
+		h = (h ^ (awaitingKey_ ? 1 : 0)) * FNV_PRIME;
+		return h;
+	}
+	long hashMemory() {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < memory_.length; ++i) {
+			h = (h ^ (memory_[i] & 0xFF)) * FNV_PRIME;
+		}
+		return h;
+	}
+	/** Graphics memory plus the current resolution. */
+	long hashGraphics() {
+		long h = FNV_OFFSET;
+		h = (h ^ H) * FNV_PRIME;
+		h = (h ^ V) * FNV_PRIME;
+		h = (h ^ (isExtendedScreen ? 1 : 0)) * FNV_PRIME;
+		final int[] g = graphicsBuffer_;
+		for (int i = 0; i < g.length; ++i) {
+			h = (h ^ g[i]) * FNV_PRIME;
+		}
+		return h;
+	}
 	@Override
 	public void timerCallback(int timerId) {
 		// Ignoring timerId 
@@ -719,4 +967,231 @@ public class Chip8 extends GenericCPU {
 			renderer.draw(graphicsBuffer_, delta, H, V);
 	}
 
+	/**
+	 * Quirk dependent instruction handlers. They are stateless and shared by all
+	 * instances, setQuirks() only decides which ones an instance points to.
+	 */
+	interface AluOp {
+		void run(Chip8 c, int x, int y);
+	}
+	interface Op {
+		void run(Chip8 c, int opcode);
+	}
+	
+	static final AluOp ALU_NOP = new AluOp() {
+		@Override
+		public void run(Chip8 c, int x, int y) {
+		}
+	};
+	static final AluOp ALU_LD = new AluOp() { // LD Vx, Vy - VX to the value of VY.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[x] = c.v[y];
+		}
+	};
+	static final AluOp ALU_OR = new AluOp() { // OR Vx, Vy - Sets VX to VX or VY.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[x] = (byte) (c.v[x] | c.v[y]);
+		}
+	};
+	static final AluOp ALU_OR_VF_RESET = new AluOp() {
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[x] = (byte) (c.v[x] | c.v[y]);
+			c.v[0xF] = 0;
+		}
+	};
+	static final AluOp ALU_AND = new AluOp() { // AND Vx, Vy - Sets VX to VX and VY.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[x] = (byte) (c.v[x] & c.v[y]);
+		}
+	};
+	static final AluOp ALU_AND_VF_RESET = new AluOp() {
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[x] = (byte) (c.v[x] & c.v[y]);
+			c.v[0xF] = 0;
+		}
+	};
+	static final AluOp ALU_XOR = new AluOp() { // XOR Vx, Vy - Sets VX to VX xor VY.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[x] = (byte) (c.v[x] ^ c.v[y]);
+		}
+	};
+	static final AluOp ALU_XOR_VF_RESET = new AluOp() {
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[x] = (byte) (c.v[x] ^ c.v[y]);
+			c.v[0xF] = 0;
+		}
+	};
+	static final AluOp ALU_ADD = new AluOp() {
+		// ADD Vx, Vy - Adds VY to VX. VF is set to 1 when there's a carry,
+		// and to 0 when there isn't.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			int s = Util.b2i(c.v[x]) + Util.b2i(c.v[y]);
+			if (s > 0xFF) {
+				c.v[0xF] = 0x1;
+			} else {
+				c.v[0xF] = 0x0;
+			}
+			c.v[x] = (byte) s;
+		}
+	};
+	static final AluOp ALU_SUB = new AluOp() {
+		// SUB Vx, Vy - VY is subtracted from VX. VF is set to 0 when
+		// there's a borrow, and 1 when there isn't.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			int s = 0;
+			int s1 = Util.b2i(c.v[x]);
+			int s2 = Util.b2i(c.v[y]); 
+			if ( s1>= s2) {
+				s = s1 - s2;
+				c.v[0xF] = 0x1;
+			} else {
+				s = 0x100+s1 - s2;
+				c.v[0xF] = 0x0;
+			}
+			c.v[x] = (byte) s;
+		}
+	};
+	static final AluOp ALU_SUBN = new AluOp() {
+		// SUBN Vx, Vy - Sets VX to VY minus VX. VF is set to 0 when there's
+		// a borrow, and 1 when there isn't.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			int s = 0;
+			int s1 = Util.b2i(c.v[y]);
+			int s2 = Util.b2i(c.v[x]);
+			if ( s1 >= s2) {
+				s = s1-s2;
+				c.v[0xF] = 0x1;
+			} else {
+				s = 0x100+s1-s2;
+				c.v[0xF] = 0x0;
+			}
+			c.v[x] = (byte) s;
+		}
+	};
+	static final AluOp ALU_SHR = new AluOp() {
+		// SHR Vx {,Vy} - 8XY6 Shifts VX right by one. VF is set to the value of
+		// the least significant bit of VX before the shift.[2]
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[0xF] = (byte)(Util.b2i(c.v[x])%2);
+			c.v[x] = (byte) (Util.b2i(c.v[x])/2);
+		}
+	};
+	static final AluOp ALU_SHR_VY = new AluOp() {
+		// SHR Vx, Vy - 8XY6 Sets VX to VY shifted right by one, VF to the bit shifted out.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			int s = Util.b2i(c.v[y]);
+			c.v[x] = (byte) (s >>> 1);
+			c.v[0xF] = (byte) (s & 0x1);
+		}
+	};
+	static final AluOp ALU_SHL = new AluOp() {
+		// SHL Vx {, Vy} - 8XYE Shifts VX left by one. VF is set to the value of
+		// the most significant bit of VX before the shift.[2]
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			c.v[0xF] = (byte)( (Util.b2i(c.v[x]) >>> 7) & 0x1 );
+			c.v[x] = (byte) (Util.b2i(c.v[x]) << 1);
+		}
+	};
+	static final AluOp ALU_SHL_VY = new AluOp() {
+		// SHL Vx, Vy - 8XYE Sets VX to VY shifted left by one, VF to the bit shifted out.
+		@Override
+		public void run(Chip8 c, int x, int y) {
+			int s = Util.b2i(c.v[y]);
+			c.v[x] = (byte) (s << 1);
+			c.v[0xF] = (byte) ((s >>> 7) & 0x1);
+		}
+	};
+	static final Op JP_V0 = new Op() { // BNNN Jumps to the address NNN plus V0.
+		@Override
+		public void run(Chip8 c, int opcode) {
+			c.pc = (opcode & 0x0FFF) + Util.b2i(c.v[0]);
+		}
+	};
+	static final Op JP_VX = new Op() { // BXNN Jumps to the address XNN plus VX.
+		@Override
+		public void run(Chip8 c, int opcode) {
+			c.pc = (opcode & 0x0FFF) + Util.b2i(c.v[(opcode & 0x0F00) >>> 8]);
+		}
+	};
+	static final Op DRW_WRAP = new Op() {
+		@Override
+		public void run(Chip8 c, int opcode) {
+			int n = (opcode & 0x000F);
+			int x = Util.b2i(c.v[(opcode & 0x0F00) >>> 8]);
+			int y = Util.b2i(c.v[(opcode & 0x00F0) >>> 4]);
+			if (n>0) {
+				c.blitSprite(x, y, c.I, c.I+n);
+			} else if (c.isExtendedScreen) {
+				// [S-CHIP] draws 16x16 sprites
+				c.blitSprite(x, y, c.I, c.I+32);
+			}
+		}
+	};
+	static final Op DRW_CLIP = new Op() {
+		@Override
+		public void run(Chip8 c, int opcode) {
+			int n = (opcode & 0x000F);
+			int x = Util.b2i(c.v[(opcode & 0x0F00) >>> 8]);
+			int y = Util.b2i(c.v[(opcode & 0x00F0) >>> 4]);
+			if (n>0) {
+				c.blitSpriteClipped(x, y, c.I, c.I+n);
+			} else if (c.isExtendedScreen) {
+				c.blitSpriteClipped(x, y, c.I, c.I+32);
+			}
+		}
+	};
+	static final Op STORE = new Op() { // FX55 LD [I], Vx
+		@Override
+		public void run(Chip8 c, int opcode) {
+			int indx = (opcode & 0x0F00) >>> 8;
+			for (int j = 0; j <= indx; ++j) {
+				c.memory_[c.I + j] = c.v[j];
+			}
+			c.predecode(c.I, c.I + indx + 1);
+		}
+	};
+	static final Op STORE_INC_I = new Op() {
+		@Override
+		public void run(Chip8 c, int opcode) {
+			int indx = (opcode & 0x0F00) >>> 8;
+			for (int j = 0; j <= indx; ++j) {
+				c.memory_[c.I + j] = c.v[j];
+			}
+			c.predecode(c.I, c.I + indx + 1);
+			c.I = (c.I + indx + 1) & 0x0FFF;
+		}
+	};
+	static final Op LOAD = new Op() { // FX65 LD Vx, [I]
+		@Override
+		public void run(Chip8 c, int opcode) {
+			int indx = (opcode & 0x0F00) >>> 8;
+			for (int j = 0; j <= indx; ++j) {
+				c.v[j] = c.memory_[c.I + j];
+			}
+		}
+	};
+	static final Op LOAD_INC_I = new Op() {
+		@Override
+		public void run(Chip8 c, int opcode) {
+			int indx = (opcode & 0x0F00) >>> 8;
+			for (int j = 0; j <= indx; ++j) {
+				c.v[j] = c.memory_[c.I + j];
+			}
+			c.I = (c.I + indx + 1) & 0x0FFF;
+		}
+	};
+
 }
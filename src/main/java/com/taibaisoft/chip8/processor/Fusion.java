@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.taibaisoft.framework.Resources;
+
+/**
+ * Picks the superinstructions Chip8.runInstructions() runs: pairs of adjacent
+ * instructions executed in one dispatch. Only pairs with a handler qualify, of
+ * those the ones the opcode profile counts most often are used.
+ * 
+ * The profile is the CSV "asm --stats" writes, only its pair rows are read.
+ * A copy in ~/.mochi8 replaces the bundled one.
+ * 
+ * @author jeffreybian
+ *
+ */
+final class Fusion {
+	public static final String PROFILE_NAME = "opcode-profile.csv";
+	/** At most this many pairs are fused. */
+	static final int MAX_PAIRS = 8;
+	/** Pairs counted less often than this, per mille of all pairs, are left alone. */
+	static final int MIN_PER_MILLE = 1;
+
+	/* Pair ids, the index in HANDLED plus one. 0 means no pair. */
+	static final int SE_JP = 1;
+	static final int SNE_JP = 2;
+	static final int SE_V_JP = 3;
+	static final int SNE_V_JP = 4;
+	static final int LD_DT_SE = 5;
+	static final int LD_DT_SNE = 6;
+	static final int ADD_SE = 7;
+	static final int ADD_SNE = 8;
+	static final int LD_I_ADD_I = 9;
+	static final int ADD_I_LOAD = 10;
+	static final int LD_I_DRW = 11;
+	/** The pairs Chip8 has a handler for, as opcode patterns in the profile. */
+	static final String[][] HANDLED = {
+		{"3XNN", "1NNN"},
+		{"4XNN", "1NNN"},
+		{"5XY0", "1NNN"},
+		{"9XY0", "1NNN"},
+		{"FX07", "3XNN"},
+		{"FX07", "4XNN"},
+		{"7XNN", "3XNN"},
+		{"7XNN", "4XNN"},
+		{"ANNN", "FX1E"},
+		{"FX1E", "FX65"},
+		{"ANNN", "DXYN"},
+	};
+	
+	private static Fusion instance_ = null;
+	
+	private final long[] counts_ = new long[HANDLED.length];
+	private long total_ = 0;
+	/* The picked pairs, most frequent first. */
+	private int[] ids_ = new int[0];
+	private int[] mask1_ = new int[0];
+	private int[] value1_ = new int[0];
+	private int[] mask2_ = new int[0];
+	private int[] value2_ = new int[0];
+	
+	public static synchronized Fusion getInstance() {
+		if (instance_ == null) {
+			instance_ = new Fusion();
+			Path user = getUserProfilePath();
+			if (Files.isRegularFile(user)) {
+				try {
+					instance_.load(Files.newInputStream(user), user.toString());
+				} catch (IOException e) {
+					System.err.println("Cannot read " + user + ": " + e.getMessage());
+				}
+			} else {
+				InputStream is = Resources.getInstance().open(PROFILE_NAME);
+				if (is != null) {
+					instance_.load(is, PROFILE_NAME);
+				}
+			}
+			instance_.pick();
+		}
+		return instance_;
+	}
+	public static Path getUserProfilePath() {
+		return Paths.get(System.getProperty("user.home"), ".mochi8", PROFILE_NAME);
+	}
+	
+	/**
+	 * Adds the pair counts read from a stream, the dynamic count where there is one,
+	 * the static count otherwise.
+	 * @param is Closed after reading.
+	 * @param source Name used in error messages.
+	 */
+	void load(InputStream is, String source) {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")))) {
+			String line;
+			int n = 0;
+			while ((line = reader.readLine()) != null) {
+				++n;
+				String[] f = line.trim().split(",");
+				if (f.length != 5 || !f[0].equals("pair")) {
+					continue;
+				}
+				try {
+					long s = Long.parseLong(f[3]);
+					long d = Long.parseLong(f[4]);
+					add(f[1], f[2], d > 0 ? d : s);
+				} catch (NumberFormatException e) {
+					System.err.println(source + ":" + n + ": Not a count: " + line);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot read " + source + ": " + e.getMessage());
+		}
+	}
+	private void add(String first, String second, long count) {
+		total_ += count;
+		for (int i = 0; i < HANDLED.length; ++i) {
+			if (HANDLED[i][0].equals(first) && HANDLED[i][1].equals(second)) {
+				counts_[i] += count;
+			}
+		}
+	}
+	/**
+	 * Keeps the MAX_PAIRS most frequent handled pairs above MIN_PER_MILLE.
+	 */
+	void pick() {
+		List<Integer> picked = new ArrayList<Integer>();
+		for (int i = 0; i < HANDLED.length; ++i) {
+			if (counts_[i] > 0 && counts_[i] * 1000 >= total_ * MIN_PER_MILLE) {
+				picked.add(i);
+			}
+		}
+		Collections.sort(picked, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(counts_[b], counts_[a]);
+			}
+		});
+		int n = Math.min(picked.size(), MAX_PAIRS);
+		ids_ = new int[n];
+		mask1_ = new int[n];
+		value1_ = new int[n];
+		mask2_ = new int[n];
+		value2_ = new int[n];
+		for (int j = 0; j < n; ++j) {
+			int i = picked.get(j);
+			ids_[j] = i + 1;
+			mask1_[j] = mask(HANDLED[i][0]);
+			value1_[j] = value(HANDLED[i][0]);
+			mask2_[j] = mask(HANDLED[i][1]);
+			value2_[j] = value(HANDLED[i][1]);
+		}
+	}
+	
+	/**
+	 * @param op1 
+	 * @param op2 The instruction right after op1.
+	 * @return The id of the pair, 0 if the two are not fused.
+	 */
+	int detect(int op1, int op2) {
+		for (int j = 0; j < ids_.length; ++j) {
+			if ((op1 & mask1_[j]) == value1_[j] && (op2 & mask2_[j]) == value2_[j]) {
+				return ids_[j];
+			}
+		}
+		return 0;
+	}
+	/**
+	 * @return The fused pairs, e.g. "3XNN 1NNN", most frequent first.
+	 */
+	public String[] getPairs() {
+		String[] r = new String[ids_.length];
+		for (int j = 0; j < r.length; ++j) {
+			String[] p = HANDLED[ids_[j] - 1];
+			r[j] = p[0] + " " + p[1];
+		}
+		return r;
+	}
+	
+	/* The X, Y and N digits of a pattern are operands, the others must match. */
+	private static int mask(String pattern) {
+		int m = 0;
+		for (int i = 0; i < 4; ++i) {
+			m = (m << 4) | (isOperand(pattern.charAt(i)) ? 0 : 0xF);
+		}
+		return m;
+	}
+	private static int value(String pattern) {
+		int v = 0;
+		for (int i = 0; i < 4; ++i) {
+			char c = pattern.charAt(i);
+			v = (v << 4) | (isOperand(c) ? 0 : Character.digit(c, 16));
+		}
+		return v;
+	}
+	private static boolean isOperand(char c) {
+		return c == 'X' || c == 'Y' || c == 'N';
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.awt.Color;
+import java.awt.Dimension;
+
+import com.taibaisoft.chip8.processor.Chip8.Mode;
+
+/**
+ * Drives a Chip8 without any window, clock or sound device: instructions are
+ * stepped as fast as possible and the 60Hz timers are ticked every
+ * <code>cyclesPerFrame</code> instructions, so a run only depends on the
+ * program, the random seed and the keyboard state, never on wall-clock time.
+ * Superinstruction fusion is on, see Chip8.setFusion().
+ * 
+ * @author jeffreybian
+ *
+ */
+public class HeadlessRunner implements IScreen, IKeyboard, IBuzzer {
+	public static final int DEFAULT_CYCLES_PER_FRAME = Chip8.DEFAULT_CPU_HZ / Chip8.DEFAULT_TIMER_HZ;
+	
+	private final Chip8 chip_;
+	private byte[] keys_ = new byte[16];
+	private IBuzzer buzzer_ = null;
+	private int[] frame_ = null;
+	private int frameW_ = Chip8.CHIP_8_PIXELS_X;
+	private int frameH_ = Chip8.CHIP_8_PIXELS_Y;
+	private int cyclesPerFrame_ = DEFAULT_CYCLES_PER_FRAME;
+	private int sinceTimer_ = 0;
+	private boolean halted_ = false;
+	
+	public HeadlessRunner() {
+		chip_ = new Chip8(this, this, this, null);
+		chip_.setFusion(true);
+	}
+	public Chip8 getCPU() {
+		return chip_;
+	}
+	/**
+	 * Resets the CPU and loads a program.
+	 * @param prog
+	 * @param m
+	 * @param start
+	 * @param seed Seed for RND.
+	 */
+	public void load(byte[] prog, Mode m, int start, long seed) {
+		chip_.reset();
+		chip_.loadProgram(prog, m, start);
+		chip_.setRandomSeed(seed);
+		sinceTimer_ = 0;
+		halted_ = false;
+	}
+	public void setCyclesPerFrame(int n) {
+		cyclesPerFrame_ = n > 0 ? n : DEFAULT_CYCLES_PER_FRAME;
+	}
+	public int getCyclesPerFrame() {
+		return cyclesPerFrame_;
+	}
+	/**
+	 * Forwards sound timer activity, e.g. to an offline renderer. Muted if null.
+	 * @param b
+	 */
+	public void setBuzzer(IBuzzer b) {
+		buzzer_ = b;
+	}
+	/**
+	 * @return true once the program executed EXIT (00FD).
+	 */
+	public boolean isHalted() {
+		return halted_;
+	}
+	
+	/**
+	 * Runs at most <code>n</code> instructions.
+	 * @param n
+	 * @return The number of instructions actually run, less than n when the program exits.
+	 * @throws Exception Any fault raised by the CPU, e.g. running off the end of memory.
+	 */
+	public long runCycles(long n) throws Exception {
+		long done = 0;
+		long start = chip_.getCycleCount();
+		try {
+			while (done < n && !halted_) {
+				// Batches end at the timer tick, so that no fused pair straddles it
+				int k = chip_.runInstructions((int)Math.min(n - done, cyclesPerFrame_ - sinceTimer_));
+				done += k;
+				sinceTimer_ += k;
+				if (sinceTimer_ >= cyclesPerFrame_) {
+					sinceTimer_ = 0;
+					chip_.timerCallback(0);
+				}
+			}
+		} catch (ExitException e) {
+			// EXIT counts as run, without advancing the timer
+			long k = chip_.getCycleCount() - start - done;
+			halted_ = true;
+			done += k;
+			sinceTimer_ += k - 1;
+		}
+		return done;
+	}
+	
+	/**
+	 * Runs whole frames and updates the captured frame buffer at the end.
+	 * @param frames
+	 * @return The number of instructions run.
+	 * @throws Exception
+	 */
+	public long runFrames(int frames) throws Exception {
+		long done = runCycles((long)frames * cyclesPerFrame_ - sinceTimer_);
+		chip_.blitGraphics(0);
+		return done;
+	}
+	
+	/**
+	 * @return The live graphics memory as of the last runFrames() call, see getFrameWidth()/getFrameHeight() for its logical size.
+	 */
+	public int[] getFrame() {
+		return frame_;
+	}
+	public int getFrameWidth() {
+		return frameW_;
+	}
+	public int getFrameHeight() {
+		return frameH_;
+	}
+	public void setKeyboardState(byte[] keys) {
+		keys_ = keys;
+	}
+	@Override
+	public byte[] getKeyboardState() {
+		return keys_;
+	}
+	@Override
+	public void buzz() {
+		if (buzzer_ != null) {
+			buzzer_.buzz();
+		}
+	}
+	@Override
+	public void draw(int[] data, double deltaTime, int w, int h) {
+		frame_ = data;
+		frameW_ = w;
+		frameH_ = h;
+	}
+	@Override
+	public void setPixelColor(Color clr) {
+	}
+	@Override
+	public void setBackgroundColor(Color clr) {
+	}
+	@Override
+	public void setPhysicalSize(Dimension dim) {
+	}
+	@Override
+	public Dimension getPhysicalSize() {
+		return new Dimension(frameW_, frameH_);
+	}
+	@Override
+	public void clearScreen() {
+	}
+}
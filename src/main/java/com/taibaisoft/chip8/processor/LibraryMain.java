@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.taibaisoft.chip8.platform.Arg;
+import com.taibaisoft.chip8.platform.ArgDef;
+import com.taibaisoft.chip8.platform.CmdArgs;
+import com.taibaisoft.chip8.platform.Util;
+
+/**
+ * Command line front end to the program library:
+ * 
+ *   library dir [dir ...] [--index file] [--jobs N] [--list]
+ * 
+ * The index is shared with the emulator's Library dialog.
+ */
+public class LibraryMain {
+
+	final static String IDX = "index";
+	final static String JOB = "jobs";
+	final static String LST = "list";
+	final static String HLP = "help";
+
+	static ArgDef[] argDefArray = new ArgDef[]{
+			new ArgDef(IDX, "i", "The index file, default to " + RomLibrary.getDefaultIndexPath() + ".", 0, 1),
+			new ArgDef(JOB, "j", "Number of indexing threads, default to the number of processors.", 0, 1),
+			new ArgDef(LST, "l", "Print the indexed programs.", 0, 0),
+			new ArgDef(HLP, "h", "Print this quick help message.", 0, 0),
+	};
+
+	public static void run(String[] args) {
+		CmdArgs cmdArgs = new CmdArgs(argDefArray, args);
+
+		int i = 0;
+		Arg arg;
+		List<Path> roots = new ArrayList<Path>();
+		Path index = RomLibrary.getDefaultIndexPath();
+		int jobs = Runtime.getRuntime().availableProcessors();
+		boolean list = false;
+		boolean showHelp = false;
+
+		try {
+			while ((arg = cmdArgs.getNext(i)) != null) {
+				i = arg.nextIndex;
+				switch (arg.argName) {
+				case IDX:
+					index = Paths.get(arg.argVal);
+					break;
+				case JOB:
+					jobs = Integer.parseInt(arg.argVal);
+					break;
+				case LST:
+					list = true;
+					break;
+				case HLP:
+					showHelp = true;
+					break;
+				default:
+					roots.add(Paths.get(arg.argVal));
+					break;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Wrong number format: " + e.getMessage());
+			System.exit(1);
+		}
+
+		System.out.println(Util.getVersionString("Library Tool"));
+
+		if (showHelp || (roots.isEmpty() && !list)) {
+			StringBuilder sb = new StringBuilder("Usage: library <options> dir [dir ...]" + Util.NEW_LINE);
+			for (ArgDef def : argDefArray) {
+				String s = String.format("  --%s, -%s  %s", def.name, def.alias, def.desc);
+				sb.append(s).append(Util.NEW_LINE);
+			}
+			System.out.println(sb.toString());
+			System.exit(0);
+		}
+		String error = cmdArgs.getLastError();
+		if (error.length() > 0) {
+			System.err.println(error);
+			System.exit(1);
+		}
+
+		RomLibrary library = new RomLibrary(index);
+		library.load();
+		try {
+			if (!roots.isEmpty()) {
+				RomLibrary.ScanStats s = library.scan(roots, jobs);
+				System.out.println(String.format("%d programs found, %d indexed, %d unchanged, %d failed, %d removed in %d ms.",
+						s.found, s.indexed, s.reused, s.failed, s.removed, s.elapsedMillis));
+			}
+			if (list) {
+				for (RomLibrary.Entry e : library.getEntries()) {
+					System.out.println(String.format("%s %5d %-6s %-20s %s", e.sha1, e.size,
+							e.schipOpcodes > 0 || e.hiresIntercept ? "SCHIP" : "CHIP-8",
+							e.quirkSensitivity.length() > 0 ? e.quirkSensitivity : "-", e.path));
+				}
+			}
+		} catch (IOException e) {
+			System.err.print("Cannot access file, reason : ");
+			System.err.println(e.getMessage());
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted.");
+		}
+	}
+}
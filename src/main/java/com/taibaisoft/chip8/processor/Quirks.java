@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+/**
+ * A set of behaviours real CHIP-8 interpreters disagree on. Chip8 turns a
+ * profile into specialized opcode handlers when it is set, so the quirks
+ * are never tested while instructions run.
+ * 
+ * @author jeffreybian
+ *
+ */
+public final class Quirks {
+	public static final String SHIFT = "shift";
+	public static final String MEMORY = "memory";
+	public static final String JUMP = "jump";
+	public static final String CLIP = "clip";
+	public static final String VF_RESET = "vfreset";
+	
+	/** What Mochi8 always did: shifts VX, I untouched, BNNN, sprites wrap, VF kept. */
+	public static final Quirks DEFAULT = new Quirks("default", false, false, false, false, false);
+	/** The original COSMAC VIP interpreter. */
+	public static final Quirks CHIP_8 = new Quirks("chip8", true, true, false, true, true);
+	/** SCHIP 1.1 on the HP48. */
+	public static final Quirks SCHIP = new Quirks("schip", false, false, true, true, false);
+	
+	private static final Quirks[] PRESETS = { DEFAULT, CHIP_8, SCHIP };
+	
+	private final String name_;
+	/** 8XY6/8XYE shift VY into VX, instead of shifting VX in place. */
+	public final boolean shiftUsesVy;
+	/** FX55/FX65 leave I at I + X + 1. */
+	public final boolean loadStoreIncrementsI;
+	/** BNNN is BXNN, jumping to XNN + VX. */
+	public final boolean jumpUsesVx;
+	/** Sprites are clipped at the screen edges instead of wrapping around. */
+	public final boolean clipSprites;
+	/** 8XY1/8XY2/8XY3 reset VF to 0. */
+	public final boolean logicResetsVf;
+	
+	public Quirks(String name, boolean shiftVy, boolean incI, boolean jumpVx, boolean clip, boolean vfReset) {
+		name_ = name;
+		shiftUsesVy = shiftVy;
+		loadStoreIncrementsI = incI;
+		jumpUsesVx = jumpVx;
+		clipSprites = clip;
+		logicResetsVf = vfReset;
+	}
+	
+	public String getName() {
+		return name_;
+	}
+	
+	/**
+	 * @param spec Either a preset name (default, chip8, schip) or a comma separated list
+	 * of the quirks to turn on, e.g. "shift,jump", among shift, memory, jump, clip, vfreset.
+	 * @return The profile.
+	 * @throws IllegalArgumentException If spec names an unknown quirk.
+	 */
+	public static Quirks parse(String spec) {
+		String s = spec.trim();
+		for (Quirks q : PRESETS) {
+			if (q.name_.equalsIgnoreCase(s)) {
+				return q;
+			}
+		}
+		boolean shift = false, mem = false, jump = false, clip = false, vf = false;
+		for (String k : s.split(",")) {
+			k = k.trim();
+			if (k.equalsIgnoreCase(SHIFT)) {
+				shift = true;
+			} else if (k.equalsIgnoreCase(MEMORY)) {
+				mem = true;
+			} else if (k.equalsIgnoreCase(JUMP)) {
+				jump = true;
+			} else if (k.equalsIgnoreCase(CLIP)) {
+				clip = true;
+			} else if (k.equalsIgnoreCase(VF_RESET)) {
+				vf = true;
+			} else if (k.length() > 0) {
+				throw new IllegalArgumentException("Unknown quirk: " + k);
+			}
+		}
+		Quirks q = new Quirks(s, shift, mem, jump, clip, vf);
+		// Gives the preset name back if it is one in disguise
+		for (Quirks p : PRESETS) {
+			if (p.equals(q)) {
+				return p;
+			}
+		}
+		return q;
+	}
+	
+	/**
+	 * @return The canonical spec, parse(toSpec()) gives an equal profile.
+	 */
+	public String toSpec() {
+		StringBuilder sb = new StringBuilder();
+		if (shiftUsesVy) sb.append(SHIFT).append(',');
+		if (loadStoreIncrementsI) sb.append(MEMORY).append(',');
+		if (jumpUsesVx) sb.append(JUMP).append(',');
+		if (clipSprites) sb.append(CLIP).append(',');
+		if (logicResetsVf) sb.append(VF_RESET).append(',');
+		if (sb.length() > 0) {
+			sb.setLength(sb.length() - 1);
+		}
+		return sb.toString();
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Quirks)) {
+			return false;
+		}
+		Quirks q = (Quirks)o;
+		return shiftUsesVy == q.shiftUsesVy && loadStoreIncrementsI == q.loadStoreIncrementsI
+				&& jumpUsesVx == q.jumpUsesVx && clipSprites == q.clipSprites && logicResetsVf == q.logicResetsVf;
+	}
+	@Override
+	public int hashCode() {
+		return (shiftUsesVy ? 1 : 0) | (loadStoreIncrementsI ? 2 : 0) | (jumpUsesVx ? 4 : 0)
+				| (clipSprites ? 8 : 0) | (logicResetsVf ? 16 : 0);
+	}
+	@Override
+	public String toString() {
+		return name_;
+	}
+}
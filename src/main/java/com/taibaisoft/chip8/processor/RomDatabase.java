@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import com.taibaisoft.chip8.processor.Chip8.Mode;
+import com.taibaisoft.framework.Resources;
+
+/**
+ * Per program settings, keyed by the SHA-1 of the program bytes. The bundled
+ * romdb.cfg is read first, then ~/.mochi8/romdb.cfg whose entries win.
+ * Both are read once, lookups are a hash map access.
+ * 
+ * One entry per line, fields separated by white spaces, '-' for unspecified:
+ * 
+ *   sha1 speed mode quirks base name
+ * 
+ * e.g.
+ * 
+ *   0123456789abcdef0123456789abcdef01234567 1000 schip schip 200 Some Game
+ * 
+ * @author jeffreybian
+ *
+ */
+public class RomDatabase {
+	public static final String DB_NAME = "romdb.cfg";
+	
+	private static RomDatabase instance_ = null;
+	
+	private final HashMap<String, RomSettings> entries_ = new HashMap<String, RomSettings>();
+	
+	public static synchronized RomDatabase getInstance() {
+		if (instance_ == null) {
+			instance_ = new RomDatabase();
+			InputStream is = Resources.getInstance().open(DB_NAME);
+			if (is != null) {
+				instance_.load(is, DB_NAME);
+			}
+			Path user = getUserDatabasePath();
+			if (Files.isRegularFile(user)) {
+				try {
+					instance_.load(Files.newInputStream(user), user.toString());
+				} catch (IOException e) {
+					System.err.println("Cannot read " + user + ": " + e.getMessage());
+				}
+			}
+		}
+		return instance_;
+	}
+	public static Path getUserDatabasePath() {
+		return Paths.get(System.getProperty("user.home"), ".mochi8", DB_NAME);
+	}
+	
+	/**
+	 * Adds the entries read from a stream, replacing existing ones with the same hash.
+	 * Malformed lines are reported to stderr and skipped.
+	 * @param is Closed after reading.
+	 * @param source Name used in error messages.
+	 */
+	public void load(InputStream is, String source) {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")))) {
+			String line;
+			int n = 0;
+			while ((line = reader.readLine()) != null) {
+				++n;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					parseLine(line);
+				} catch (IllegalArgumentException e) {
+					System.err.println(source + ":" + n + ": " + e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot read " + source + ": " + e.getMessage());
+		}
+	}
+	
+	private void parseLine(String line) {
+		String[] f = line.split("\\s+", 6);
+		if (f.length < 5) {
+			throw new IllegalArgumentException("Expecting: sha1 speed mode quirks base [name]");
+		}
+		String hash = f[0].toLowerCase();
+		if (hash.length() != 40) {
+			throw new IllegalArgumentException("Not a SHA-1: " + f[0]);
+		}
+		int speed = f[1].equals("-") ? RomSettings.SPEED_UNSPECIFIED : Integer.parseInt(f[1]);
+		Mode mode = Mode.CHIP_8;
+		if (f[2].equalsIgnoreCase("schip")) {
+			mode = Mode.SCHIP;
+		} else if (!f[2].equals("-") && !f[2].equalsIgnoreCase("chip8")) {
+			throw new IllegalArgumentException("Unknown mode: " + f[2]);
+		}
+		Quirks quirks = f[3].equals("-") ? Quirks.DEFAULT : Quirks.parse(f[3]);
+		int base = f[4].equals("-") ? RomSettings.BASE_UNSPECIFIED : Integer.parseInt(f[4], 16);
+		String name = f.length > 5 ? f[5] : "";
+		entries_.put(hash, new RomSettings(name, speed, mode, quirks, base, true));
+	}
+	
+	public int size() {
+		return entries_.size();
+	}
+	
+	/**
+	 * @param prog
+	 * @return The database entry for the program, null if unknown. Its load address 
+	 * may be RomSettings.BASE_UNSPECIFIED.
+	 */
+	public RomSettings lookup(byte[] prog) {
+		return entries_.get(sha1(prog));
+	}
+	
+	/**
+	 * @param prog
+	 * @param defaultBase Load address used if the program is unknown or its entry does not give one.
+	 * @return The database entry, or settings guessed from a static scan for unknown programs.
+	 */
+	public RomSettings settingsFor(byte[] prog, int defaultBase) {
+		RomSettings s = lookup(prog);
+		if (s != null && s.loadAddress == RomSettings.BASE_UNSPECIFIED) {
+			s = new RomSettings(s.name, s.speed, s.mode, s.quirks, defaultBase, true);
+		} else if (s == null) {
+			Mode m = RomScanner.usesSchip(prog) ? Mode.SCHIP : Mode.CHIP_8;
+			s = new RomSettings("", RomSettings.SPEED_UNSPECIFIED, m, Quirks.DEFAULT, defaultBase, false);
+		}
+		return s;
+	}
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	public static String sha1(byte[] data) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JRE has to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+		return hex(md.digest(data));
+	}
+	static String hex(byte[] d) {
+		char[] c = new char[d.length * 2];
+		for (int i = 0; i < d.length; ++i) {
+			c[i * 2] = HEX[(d[i] >>> 4) & 0xF];
+			c[i * 2 + 1] = HEX[d[i] & 0xF];
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A persistent index of the programs found under some directories. For every
+ * program it keeps the SHA-1, a static scan report and a thumbnail of the
+ * screen after a short headless run.
+ * 
+ * Scanning only reads and runs the files whose modification time or size
+ * changed since the last scan, the others are reused from the index file, so
+ * re-scanning an unchanged library costs one directory walk.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class RomLibrary {
+	public static final int MAGIC = 0x4D384C42; // "M8LB"
+	public static final int VERSION = 1;
+	public static final String INDEX_NAME = "library.idx";
+	/** Frames run headless before the thumbnail is taken, 5 seconds. */
+	public static final int THUMBNAIL_FRAMES = 300;
+	public static final int MAX_PROGRAM_SIZE = Chip8.MEMSIZE - Chip8.DEFAULT_LOAD_ADDRESS;
+	/** Same as the Load dialog. Files without extension are taken too, as in the classic game packs. */
+	public static final String[] EXTENSIONS = { "ch8", "c8", "c48", "ch48", "sc", "c8x" };
+	
+	public static class Entry {
+		public final String path;
+		public final long modified;
+		public final long size;
+		public final String sha1;
+		public final int schipOpcodes;
+		public final boolean hiresIntercept;
+		public final int codeSize;
+		/** See RomScanner.Report.quirkSensitivity() */
+		public final String quirkSensitivity;
+		public final int thumbnailWidth;
+		public final int thumbnailHeight;
+		/** One bit per pixel, row after row, most significant bit first. */
+		public final byte[] thumbnail;
+		
+		Entry(String path, long modified, long size, String sha1, int schipOpcodes, boolean hiresIntercept,
+				int codeSize, String quirkSensitivity, int thumbnailWidth, int thumbnailHeight, byte[] thumbnail) {
+			this.path = path;
+			this.modified = modified;
+			this.size = size;
+			this.sha1 = sha1;
+			this.schipOpcodes = schipOpcodes;
+			this.hiresIntercept = hiresIntercept;
+			this.codeSize = codeSize;
+			this.quirkSensitivity = quirkSensitivity;
+			this.thumbnailWidth = thumbnailWidth;
+			this.thumbnailHeight = thumbnailHeight;
+			this.thumbnail = thumbnail;
+		}
+		public boolean isPixelSet(int x, int y) {
+			int bit = y * thumbnailWidth + x;
+			return (thumbnail[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+		}
+		public String getFileName() {
+			return Paths.get(path).getFileName().toString();
+		}
+	}
+	
+	/**
+	 * What a scan did.
+	 */
+	public static class ScanStats {
+		public int found = 0;
+		public int reused = 0;
+		public int indexed = 0;
+		public int failed = 0;
+		public int removed = 0;
+		public long elapsedMillis = 0;
+	}
+	
+	private final Path indexFile_;
+	/** By absolute path, so that listing comes out sorted. Only touched by load() and scan(), which hold the lock. */
+	private final TreeMap<String, Entry> entries_ = new TreeMap<String, Entry>();
+	/** What getEntries() gives, replaced as a whole once a load or scan is done. */
+	private volatile List<Entry> snapshot_ = Collections.emptyList();
+	
+	public RomLibrary(Path indexFile) {
+		indexFile_ = indexFile;
+	}
+	public static Path getDefaultIndexPath() {
+		return Paths.get(System.getProperty("user.home"), ".mochi8", INDEX_NAME);
+	}
+	/**
+	 * Never waits for a scan in progress, the entries are the ones of the last
+	 * load or scan done.
+	 * @return An immutable list, sorted by path.
+	 */
+	public List<Entry> getEntries() {
+		return snapshot_;
+	}
+	public int size() {
+		return snapshot_.size();
+	}
+	private void publish() {
+		snapshot_ = Collections.unmodifiableList(new ArrayList<Entry>(entries_.values()));
+	}
+	
+	/**
+	 * Reads the index file if there is one. A corrupted or outdated index is
+	 * dropped, the next scan rebuilds it.
+	 */
+	public synchronized void load() {
+		entries_.clear();
+		try {
+			read();
+		} finally {
+			publish();
+		}
+	}
+	private void read() {
+		if (!Files.isRegularFile(indexFile_)) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile_), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+			int n = in.readInt();
+			for (int i = 0; i < n; ++i) {
+				String path = in.readUTF();
+				long modified = in.readLong();
+				long size = in.readLong();
+				String sha1 = in.readUTF();
+				int schip = in.readInt();
+				boolean hires = in.readBoolean();
+				int codeSize = in.readInt();
+				String quirks = in.readUTF();
+				int w = in.readUnsignedShort();
+				int h = in.readUnsignedShort();
+				byte[] thumb = new byte[(w * h + 7) / 8];
+				in.readFully(thumb);
+				entries_.put(path, new Entry(path, modified, size, sha1, schip, hires, codeSize, quirks, w, h, thumb));
+			}
+		} catch (IOException e) {
+			System.err.println("Dropping unreadable library index " + indexFile_ + ": " + e.getMessage());
+			entries_.clear();
+		}
+	}
+	
+	/**
+	 * Writes the index to a temporary file first, then moves it over the old one.
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		Path dir = indexFile_.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, INDEX_NAME, ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries_.size());
+			for (Entry e : entries_.values()) {
+				out.writeUTF(e.path);
+				out.writeLong(e.modified);
+				out.writeLong(e.size);
+				out.writeUTF(e.sha1);
+				out.writeInt(e.schipOpcodes);
+				out.writeBoolean(e.hiresIntercept);
+				out.writeInt(e.codeSize);
+				out.writeUTF(e.quirkSensitivity);
+				out.writeShort(e.thumbnailWidth);
+				out.writeShort(e.thumbnailHeight);
+				out.write(e.thumbnail);
+			}
+		}
+		Files.move(tmp, indexFile_, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Walks the given directories, indexes new or changed programs on a pool of
+	 * <code>threads</code> threads, forgets the ones that disappeared, and saves
+	 * the index if anything changed. Scans of the same library run one at a time.
+	 * @param roots
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public synchronized ScanStats scan(List<Path> roots, int threads) throws IOException, InterruptedException {
+		try {
+			return scanLocked(roots, threads);
+		} finally {
+			publish();
+		}
+	}
+	private ScanStats scanLocked(List<Path> roots, int threads) throws IOException, InterruptedException {
+		final ScanStats stats = new ScanStats();
+		long t0 = System.nanoTime();
+		final List<Path> changed = new ArrayList<Path>();
+		final Set<String> seen = new HashSet<String>();
+		
+		for (Path root : roots) {
+			Files.walkFileTree(root.toAbsolutePath().normalize(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile() && isCandidate(file, attrs.size())) {
+						String key = file.toString();
+						seen.add(key);
+						stats.found++;
+						Entry e = entries_.get(key);
+						if (e != null && e.size == attrs.size() && e.modified == attrs.lastModifiedTime().toMillis()) {
+							stats.reused++;
+						} else {
+							changed.add(file);
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		
+		if (!changed.isEmpty()) {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+			try {
+				List<Future<Entry>> results = new ArrayList<Future<Entry>>(changed.size());
+				for (final Path file : changed) {
+					results.add(pool.submit(new Callable<Entry>() {
+						@Override
+						public Entry call() throws Exception {
+							return index(file);
+						}
+					}));
+				}
+				for (int i = 0; i < results.size(); ++i) {
+					try {
+						Entry e = results.get(i).get();
+						entries_.put(e.path, e);
+						stats.indexed++;
+					} catch (ExecutionException e) {
+						String key = changed.get(i).toString();
+						entries_.remove(key);
+						seen.remove(key);
+						stats.failed++;
+						System.err.println("Cannot index " + key + ": " + e.getCause());
+					}
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		
+		// Forgets what is gone from the scanned directories
+		for (Iterator<Map.Entry<String, Entry>> it = entries_.entrySet().iterator(); it.hasNext();) {
+			String key = it.next().getKey();
+			if (!seen.contains(key)) {
+				Path p = Paths.get(key);
+				for (Path root : roots) {
+					if (p.startsWith(root.toAbsolutePath().normalize())) {
+						it.remove();
+						stats.removed++;
+						break;
+					}
+				}
+			}
+		}
+		if (stats.indexed > 0 || stats.removed > 0 || stats.failed > 0 || !Files.exists(indexFile_)) {
+			save();
+		}
+		stats.elapsedMillis = (System.nanoTime() - t0) / 1000000;
+		return stats;
+	}
+	
+	/**
+	 * @return Whether the file looks like a program, by its size and extension. Files without one are taken too.
+	 */
+	public static boolean isCandidate(Path file, long size) {
+		if (size <= 0 || size > MAX_PROGRAM_SIZE) {
+			return false;
+		}
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0) {
+			return true;
+		}
+		String ext = name.substring(dot + 1);
+		for (String e : EXTENSIONS) {
+			if (e.equalsIgnoreCase(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Reads, hashes, scans and runs one program. Runs on the pool.
+	 */
+	static Entry index(Path file) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		byte[] prog = Files.readAllBytes(file);
+		RomScanner.Report report = RomScanner.analyze(prog);
+		RomSettings rs = RomDatabase.getInstance().settingsFor(prog, Chip8.DEFAULT_LOAD_ADDRESS);
+		
+		HeadlessRunner runner = new HeadlessRunner();
+		runner.getCPU().setQuirks(rs.quirks);
+		runner.setCyclesPerFrame(rs.speedOr(Chip8.DEFAULT_CPU_HZ) / Chip8.DEFAULT_TIMER_HZ);
+		runner.load(prog, rs.mode, rs.loadAddress, 0);
+		try {
+			runner.runFrames(THUMBNAIL_FRAMES);
+		} catch (Exception e) {
+			// Whatever is on the screen when it crashed is still a fine thumbnail.
+			runner.getCPU().blitGraphics(0);
+		}
+		int w = runner.getFrameWidth();
+		int h = runner.getFrameHeight();
+		int[] frame = runner.getFrame();
+		byte[] thumb = new byte[(w * h + 7) / 8];
+		if (frame != null) {
+			for (int i = 0; i < w * h && i < frame.length; ++i) {
+				if ((frame[i] & 0x1) != 0) {
+					thumb[i >>> 3] |= 0x80 >>> (i & 7);
+				}
+			}
+		}
+		return new Entry(file.toString(), attrs.lastModifiedTime().toMillis(), attrs.size(), RomDatabase.sha1(prog),
+				report.schipOpcodes, report.hiresIntercept, report.codeSize, report.quirkSensitivity(), w, h, thumb);
+	}
+}
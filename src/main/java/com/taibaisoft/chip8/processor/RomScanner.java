@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+/**
+ * Cheap static checks over a raw program image.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class RomScanner {
+	
+	/**
+	 * Looks for instructions only SCHIP has (SCR, SCL, SCD, EXT, LOW, HIGH, LD HF,
+	 * LD R). Only even offsets are checked, as programs are loaded at an even address
+	 * and a data byte pair rarely forms one of these.
+	 * @param prog The program, as loaded at its base address.
+	 * @return true if the program looks like an SCHIP one.
+	 */
+	public static boolean usesSchip(byte[] prog) {
+		int len = prog.length - 1;
+		for (int i = 0; i < len; i += 2) {
+			if (isSchipOpcode(((prog[i] & 0xFF) << 8) | (prog[i + 1] & 0xFF))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Results of analyze().
+	 */
+	public static class Report {
+		/** Number of S-CHIP only instructions found. */
+		public int schipOpcodes = 0;
+		/** Starts with JP 260, the CHIP-8 64x64 hi-res intercept. */
+		public boolean hiresIntercept = false;
+		/** Program length without the trailing zero padding. */
+		public int codeSize = 0;
+		/** Quirks the program contains instructions for, so it may behave differently depending on the profile. */
+		public boolean shift = false;
+		public boolean memory = false;
+		public boolean jump = false;
+		public boolean vfReset = false;
+		
+		public boolean usesSchip() {
+			return schipOpcodes > 0;
+		}
+		/**
+		 * @return The quirks that may matter, in the Quirks.parse() list format.
+		 * Clipping is left out as about every program draws.
+		 */
+		public String quirkSensitivity() {
+			StringBuilder sb = new StringBuilder();
+			if (shift) sb.append(Quirks.SHIFT).append(',');
+			if (memory) sb.append(Quirks.MEMORY).append(',');
+			if (jump) sb.append(Quirks.JUMP).append(',');
+			if (vfReset) sb.append(Quirks.VF_RESET).append(',');
+			if (sb.length() > 0) {
+				sb.setLength(sb.length() - 1);
+			}
+			return sb.toString();
+		}
+	}
+	
+	/**
+	 * One linear pass over the even offsets, same caveats as usesSchip().
+	 * @param prog
+	 * @return
+	 */
+	public static Report analyze(byte[] prog) {
+		Report r = new Report();
+		int size = prog.length;
+		while (size > 0 && prog[size - 1] == 0) {
+			--size;
+		}
+		r.codeSize = size;
+		if (prog.length >= 2 && (prog[0] & 0xFF) == 0x12 && (prog[1] & 0xFF) == 0x60) {
+			r.hiresIntercept = true;
+		}
+		int len = size - 1;
+		for (int i = 0; i < len; i += 2) {
+			int opcode = ((prog[i] & 0xFF) << 8) | (prog[i + 1] & 0xFF);
+			if (isSchipOpcode(opcode)) {
+				r.schipOpcodes++;
+			}
+			switch (opcode & 0xF000) {
+			case 0x8000: {
+				int n = opcode & 0x000F;
+				boolean distinct = ((opcode >>> 8) & 0xF) != ((opcode >>> 4) & 0xF);
+				if ((n == 0x6 || n == 0xE) && distinct) {
+					r.shift = true;
+				} else if (n >= 0x1 && n <= 0x3) {
+					r.vfReset = true;
+				}
+			}
+				break;
+			case 0xB000:
+				r.jump = true;
+				break;
+			case 0xF000: {
+				int low = opcode & 0x00FF;
+				if (low == 0x55 || low == 0x65) {
+					r.memory = true;
+				}
+			}
+				break;
+			}
+		}
+		return r;
+	}
+	
+	public static boolean isSchipOpcode(int opcode) {
+		switch (opcode & 0xF000) {
+		case 0x0000:
+			return (opcode & 0xFFF0) == 0x00C0 || (opcode >= 0x00FB && opcode <= 0x00FF);
+		case 0xF000: {
+			int low = opcode & 0x00FF;
+			return low == 0x30 || low == 0x75 || low == 0x85;
+		}
+		default:
+			return false;
+		}
+	}
+}
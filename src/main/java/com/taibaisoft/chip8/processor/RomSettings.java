@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import com.taibaisoft.chip8.processor.Chip8.Mode;
+
+/**
+ * How a particular program wants to be run. Immutable.
+ * 
+ * @author jeffreybian
+ *
+ */
+public final class RomSettings {
+	/** Speed not known, the emulator keeps its current one. */
+	public static final int SPEED_UNSPECIFIED = 0;
+	/** Load address not known, the one the user picked is used. */
+	public static final int BASE_UNSPECIFIED = -1;
+	
+	public final String name;
+	/** Instructions per second, or SPEED_UNSPECIFIED. */
+	public final int speed;
+	public final Mode mode;
+	public final Quirks quirks;
+	/** Load address, or BASE_UNSPECIFIED. */
+	public final int loadAddress;
+	/** true if the settings come from the database, false if guessed by a scan. */
+	public final boolean known;
+	
+	public RomSettings(String name, int speed, Mode mode, Quirks quirks, int loadAddress, boolean known) {
+		this.name = name;
+		this.speed = speed;
+		this.mode = mode;
+		this.quirks = quirks;
+		this.loadAddress = loadAddress;
+		this.known = known;
+	}
+	
+	/**
+	 * @param defaultSpeed
+	 * @return The speed to run at, defaultSpeed if not specified.
+	 */
+	public int speedOr(int defaultSpeed) {
+		return speed == SPEED_UNSPECIFIED ? defaultSpeed : speed;
+	}
+}
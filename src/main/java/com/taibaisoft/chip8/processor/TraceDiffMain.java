@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.taibaisoft.chip8.platform.Arg;
+import com.taibaisoft.chip8.platform.ArgDef;
+import com.taibaisoft.chip8.platform.CmdArgs;
+import com.taibaisoft.chip8.platform.Util;
+import com.taibaisoft.chip8.processor.Chip8.Mode;
+
+/**
+ * Command line front end to find the first divergence between two runs of the
+ * same program, e.g. one per emulator build:
+ * 
+ *   tracediff record rom --out file [--interval N] [--cycles N] [--base addr] [--schip] [--seed N] [--quirks q] [--trace file] [--wav file]
+ *   tracediff file1 file2 [--trace file1 --trace file2] [--context N]
+ * 
+ * Checkpoints narrow the divergence down to one interval in O(log n), the
+ * optional instruction traces then pin it down to the exact cycle. --wav also
+ * renders the sound of the run and prints its hash.
+ */
+public class TraceDiffMain {
+
+	final static String OUT = "out";
+	final static String ITV = "interval";
+	final static String CYC = "cycles";
+	final static String ORG = "base";
+	final static String SCH = "schip";
+	final static String SED = "seed";
+	final static String QRK = "quirks";
+	final static String TRC = "trace";
+	final static String WAV = "wav";
+	final static String CTX = "context";
+	final static String HLP = "help";
+
+	static ArgDef[] argDefArray = new ArgDef[]{
+			new ArgDef(OUT, "o", "record: the checkpoint file to write.", 0, 1),
+			new ArgDef(ITV, "i", "record: instructions between checkpoints, default " + CheckpointRecorder.DEFAULT_INTERVAL + ".", 0, 1),
+			new ArgDef(CYC, "n", "record: number of instructions to run, default 1000000.", 0, 1),
+			new ArgDef(ORG, "b", "record: base loading address, default to 200 (hex).", 0, 1),
+			new ArgDef(SCH, "s", "record: run in SCHIP mode.", 0, 0),
+			new ArgDef(SED, "r", "record: random seed, default 0.", 0, 1),
+			new ArgDef(QRK, "q", "record: quirk profile, default, chip8, schip or a list of shift,memory,jump,clip,vfreset.", 0, 1),
+			new ArgDef(TRC, "t", "record: also write an instruction trace. compare: the trace of each run, given twice.", 0, 1),
+			new ArgDef(WAV, "w", "record: also render the sound to a WAV file, timed by instructions run.", 0, 1),
+			new ArgDef(CTX, "k", "compare: records of context printed before a divergence, default 8.", 0, 1),
+			new ArgDef(HLP, "h", "Print this quick help message.", 0, 0),
+	};
+
+	public static void run(String[] args) {
+		CmdArgs cmdArgs = new CmdArgs(argDefArray, args);
+
+		int i = 0;
+		Arg arg;
+		List<String> free = new ArrayList<String>();
+		List<String> traces = new ArrayList<String>();
+		String wav = null;
+		String output = "";
+		long interval = CheckpointRecorder.DEFAULT_INTERVAL;
+		long cycles = 1000000;
+		int startAddress = Chip8.DEFAULT_LOAD_ADDRESS;
+		Mode mode = Mode.CHIP_8;
+		long seed = 0;
+		Quirks quirks = Quirks.DEFAULT;
+		int context = 8;
+		boolean showHelp = false;
+
+		try {
+			while ((arg = cmdArgs.getNext(i)) != null) {
+				i = arg.nextIndex;
+				switch (arg.argName) {
+				case OUT:
+					output = arg.argVal;
+					break;
+				case ITV:
+					interval = Long.parseLong(arg.argVal);
+					break;
+				case CYC:
+					cycles = Long.parseLong(arg.argVal);
+					break;
+				case ORG:
+					startAddress = Integer.parseInt(arg.argVal, 16);
+					break;
+				case SCH:
+					mode = Mode.SCHIP;
+					break;
+				case SED:
+					seed = Long.parseLong(arg.argVal);
+					break;
+				case QRK:
+					quirks = Quirks.parse(arg.argVal);
+					break;
+				case TRC:
+					traces.add(arg.argVal);
+					break;
+				case WAV:
+					wav = arg.argVal;
+					break;
+				case CTX:
+					context = Integer.parseInt(arg.argVal);
+					break;
+				case HLP:
+					showHelp = true;
+					break;
+				default:
+					free.add(arg.argVal);
+					break;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Wrong number format: " + e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+		System.out.println(Util.getVersionString("Trace Diff Tool"));
+
+		if (showHelp || free.isEmpty()) {
+			StringBuilder sb = new StringBuilder("Usage: tracediff record <options> rom | tracediff <options> file1 file2" + Util.NEW_LINE);
+			for (ArgDef def : argDefArray) {
+				String s = String.format("  --%s, -%s  %s", def.name, def.alias, def.desc);
+				sb.append(s).append(Util.NEW_LINE);
+			}
+			System.out.println(sb.toString());
+			System.exit(0);
+		}
+		String error = cmdArgs.getLastError();
+		if (error.length() > 0) {
+			System.err.println(error);
+			System.exit(1);
+		}
+
+		try {
+			if (free.get(0).equals("record") && free.size() == 2) {
+				if (output.length() == 0) {
+					throw new Exception("A checkpoint file has to be given with --" + OUT + ".");
+				}
+				if (interval <= 0) {
+					throw new Exception("The checkpoint interval must be positive.");
+				}
+				record(free.get(1), output, interval, cycles, startAddress, mode, seed, quirks,
+						traces.isEmpty() ? null : traces.get(0), wav);
+			} else if (free.size() == 2) {
+				if (traces.size() != 0 && traces.size() != 2) {
+					throw new Exception("Either no trace or one trace per run has to be given.");
+				}
+				compare(free.get(0), free.get(1), traces, context);
+			} else {
+				throw new Exception("Wrong number of files.");
+			}
+		} catch (IOException e) {
+			System.err.print("Cannot access file, reason : ");
+			System.err.println(e.getMessage());
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	static void record(String rom, String output, long interval, long cycles, int startAddress, Mode mode,
+			long seed, Quirks quirks, String trace, String wav) throws Exception {
+		byte[] prog = Files.readAllBytes(Paths.get(rom));
+		HeadlessRunner runner = new HeadlessRunner();
+		runner.getCPU().setQuirks(quirks);
+		runner.load(prog, mode, startAddress, seed);
+		Chip8 chip = runner.getCPU();
+		TraceRecorder tracer = null;
+		if (trace != null) {
+			tracer = new TraceRecorder(Paths.get(trace), Math.min(cycles + 1, TraceRecorder.MAX_CAPACITY));
+			chip.setTraceRecorder(tracer);
+		}
+		WavRecorder sound = null;
+		if (wav != null) {
+			sound = new WavRecorder(Paths.get(wav), chip, runner.getCyclesPerFrame(), WavRecorder.DEFAULT_SAMPLE_RATE);
+			runner.setBuzzer(sound);
+		}
+		Exception fault = null;
+		long t0 = System.nanoTime();
+		try (CheckpointRecorder rec = new CheckpointRecorder(Paths.get(output), interval, prog, seed)) {
+			rec.checkpoint(chip);
+			long done = 0;
+			while (done < cycles && !runner.isHalted()) {
+				try {
+					done += runner.runCycles(Math.min(interval, cycles - done));
+				} catch (Exception e) {
+					fault = e;
+				}
+				rec.checkpoint(chip);
+				if (fault != null) {
+					break;
+				}
+			}
+			long t1 = System.nanoTime();
+			System.out.println(chip.getCycleCount() + " instructions run in " + (t1 - t0) / 1000000 + " ms, "
+					+ rec.getCount() + " checkpoints written to [" + output + "].");
+		} finally {
+			if (tracer != null) {
+				chip.setTraceRecorder(null);
+				tracer.close();
+			}
+			if (sound != null) {
+				runner.setBuzzer(null);
+				sound.close();
+			}
+		}
+		if (sound != null) {
+			System.out.println(String.format("%.2f s of audio, %.2f s of sound written to [%s], sha1 %s.",
+					(double) sound.getSampleCount() / sound.getSampleRate(),
+					(double) sound.getSoundSampleCount() / sound.getSampleRate(), wav, sound.getHash()));
+		}
+		if (runner.isHalted()) {
+			System.out.println("Program exited.");
+		}
+		if (fault != null) {
+			System.out.println("Program stopped: " + (fault.getMessage() == null ? fault.toString() : fault.getMessage()));
+		}
+	}
+
+	static void compare(String a, String b, List<String> traces, int context) throws IOException {
+		try (CheckpointReader ca = new CheckpointReader(Paths.get(a));
+			 CheckpointReader cb = new CheckpointReader(Paths.get(b))) {
+			if (ca.getProgramHash() != cb.getProgramHash()) {
+				System.out.println("Warning: the two runs are of different programs.");
+			}
+			if (ca.getSeed() != cb.getSeed()) {
+				System.out.println("Warning: the two runs use different random seeds.");
+			}
+			if (ca.getInterval() != cb.getInterval()) {
+				System.out.println("Warning: the two runs use different checkpoint intervals.");
+			}
+			int k = CheckpointReader.firstDivergence(ca, cb);
+			if (k < 0) {
+				int n = Math.min(ca.size(), cb.size());
+				System.out.println(n + " checkpoints compared" + (n > 0 ? " up to cycle " + ca.getCycle(n - 1) : "")
+						+ ", no divergence.");
+				if (ca.size() != cb.size()) {
+					System.out.println("Run lengths differ: " + ca.size() + " vs " + cb.size() + " checkpoints.");
+				}
+				return;
+			}
+			long lo = k > 0 ? ca.getCycle(k - 1) : 0;
+			long hi = Math.max(ca.getCycle(k), cb.getCycle(k));
+			StringBuilder sb = new StringBuilder();
+			sb.append("Runs diverge between cycle ").append(lo).append(" and ").append(hi).append(", in:");
+			if (ca.getCycle(k) != cb.getCycle(k)) {
+				sb.append(" length (one run stopped)");
+			}
+			if (ca.getRegistersHash(k) != cb.getRegistersHash(k)) {
+				sb.append(" registers");
+			}
+			if (ca.getMemoryHash(k) != cb.getMemoryHash(k)) {
+				sb.append(" memory");
+			}
+			if (ca.getGraphicsHash(k) != cb.getGraphicsHash(k)) {
+				sb.append(" framebuffer");
+			}
+			sb.append(Util.NEW_LINE);
+			appendCheckpoints(sb, ca, a, k);
+			appendCheckpoints(sb, cb, b, k);
+			System.out.println(sb.toString());
+
+			if (traces.size() == 2) {
+				locate(traces.get(0), traces.get(1), lo, hi, context);
+			}
+		}
+	}
+
+	private static void appendCheckpoints(StringBuilder sb, CheckpointReader r, String name, int k) {
+		sb.append('[').append(name).append(']').append(Util.NEW_LINE);
+		if (k > 0) {
+			sb.append("  ");
+			r.appendCheckpoint(k - 1, sb);
+			sb.append(Util.NEW_LINE);
+		}
+		sb.append("> ");
+		r.appendCheckpoint(k, sb);
+		sb.append(Util.NEW_LINE);
+	}
+
+	/**
+	 * Scans the instruction traces of the divergent interval only.
+	 */
+	private static void locate(String a, String b, long lo, long hi, int context) throws IOException {
+		try (TraceReader ra = new TraceReader(Paths.get(a));
+			 TraceReader rb = new TraceReader(Paths.get(b))) {
+			if (ra.size() == 0 || rb.size() == 0 || ra.getCycle(0) > lo || rb.getCycle(0) > lo) {
+				System.out.println("The traces do not cover cycle " + lo + ", cannot narrow down further.");
+				return;
+			}
+			int ia = ra.indexOfCycle(lo);
+			int ib = rb.indexOfCycle(lo);
+			int n = Math.min(ra.size() - ia, rb.size() - ib);
+			for (int k = 0; k < n && ra.getCycle(ia + k) <= hi; ++k) {
+				if (!ra.sameRecord(ia + k, rb, ib + k)) {
+					System.out.println("First divergence at cycle " + ra.getCycle(ia + k) + ":");
+					TraceMain.printContext(ra, a, Math.max(0, ia + k - context), ia + k);
+					TraceMain.printContext(rb, b, Math.max(0, ib + k - context), ib + k);
+					return;
+				}
+			}
+			System.out.println("Registers match up to cycle " + hi
+					+ ", the divergence is in memory or framebuffer contents only.");
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.taibaisoft.chip8.platform.Arg;
+import com.taibaisoft.chip8.platform.ArgDef;
+import com.taibaisoft.chip8.platform.CmdArgs;
+import com.taibaisoft.chip8.platform.Util;
+import com.taibaisoft.chip8.processor.Chip8.Mode;
+
+/**
+ * Command line front end for execution traces:
+ * 
+ *   trace record rom --out file [--cycles N] [--capacity N] [--base addr] [--schip] [--seed N] [--quirks q]
+ *   trace dump file [--from C] [--until C] [--pc lo[-hi]] [--op value[/mask]] [--out file]
+ *   trace diff file1 file2 [--context N]
+ */
+public class TraceMain {
+
+	final static String OUT = "out";
+	final static String CYC = "cycles";
+	final static String CAP = "capacity";
+	final static String ORG = "base";
+	final static String SCH = "schip";
+	final static String SED = "seed";
+	final static String QRK = "quirks";
+	final static String FRM = "from";
+	final static String UNT = "until";
+	final static String PCR = "pc";
+	final static String OPC = "op";
+	final static String CTX = "context";
+	final static String HLP = "help";
+
+	static ArgDef[] argDefArray = new ArgDef[]{
+			new ArgDef(OUT, "o", "Output file. The trace file for record, text file for dump (default stdout).", 0, 1),
+			new ArgDef(CYC, "n", "record: number of instructions to run, default 1000000.", 0, 1),
+			new ArgDef(CAP, "c", "record: ring capacity in records, default " + TraceRecorder.DEFAULT_CAPACITY + ".", 0, 1),
+			new ArgDef(ORG, "b", "record: base loading address, default to 200 (hex).", 0, 1),
+			new ArgDef(SCH, "s", "record: run in SCHIP mode.", 0, 0),
+			new ArgDef(SED, "r", "record: random seed, default 0.", 0, 1),
+			new ArgDef(QRK, "q", "record: quirk profile, default, chip8, schip or a list of shift,memory,jump,clip,vfreset.", 0, 1),
+			new ArgDef(FRM, "f", "dump: first cycle to print.", 0, 1),
+			new ArgDef(UNT, "u", "dump: last cycle to print.", 0, 1),
+			new ArgDef(PCR, "p", "dump: only print PCs within lo[-hi] (hex).", 0, 1),
+			new ArgDef(OPC, "x", "dump: only print opcodes matching value[/mask] (hex).", 0, 1),
+			new ArgDef(CTX, "k", "diff: records of context printed before a divergence, default 8.", 0, 1),
+			new ArgDef(HLP, "h", "Print this quick help message.", 0, 0),
+	};
+
+	public static void run(String[] args) {
+		CmdArgs cmdArgs = new CmdArgs(argDefArray, args);
+
+		int i = 0;
+		Arg arg;
+		List<String> free = new ArrayList<String>();
+		String output = "stdout";
+		long cycles = 1000000;
+		long capacity = TraceRecorder.DEFAULT_CAPACITY;
+		int startAddress = Chip8.DEFAULT_LOAD_ADDRESS;
+		Mode mode = Mode.CHIP_8;
+		long seed = 0;
+		Quirks quirks = Quirks.DEFAULT;
+		long from = 0;
+		long until = Long.MAX_VALUE;
+		int pcLo = 0;
+		int pcHi = 0xFFFF;
+		int opValue = 0;
+		int opMask = 0;
+		int context = 8;
+		boolean showHelp = false;
+
+		try {
+			while ((arg = cmdArgs.getNext(i)) != null) {
+				i = arg.nextIndex;
+				switch (arg.argName) {
+				case OUT:
+					output = arg.argVal;
+					break;
+				case CYC:
+					cycles = Long.parseLong(arg.argVal);
+					break;
+				case CAP:
+					capacity = Long.parseLong(arg.argVal);
+					break;
+				case ORG:
+					startAddress = Integer.parseInt(arg.argVal, 16);
+					break;
+				case SCH:
+					mode = Mode.SCHIP;
+					break;
+				case SED:
+					seed = Long.parseLong(arg.argVal);
+					break;
+				case QRK:
+					quirks = Quirks.parse(arg.argVal);
+					break;
+				case FRM:
+					from = Long.parseLong(arg.argVal);
+					break;
+				case UNT:
+					until = Long.parseLong(arg.argVal);
+					break;
+				case PCR: {
+					String[] r = arg.argVal.split("-");
+					pcLo = Integer.parseInt(r[0], 16);
+					pcHi = r.length > 1 ? Integer.parseInt(r[1], 16) : pcLo;
+				}
+					break;
+				case OPC: {
+					String[] r = arg.argVal.split("/");
+					opValue = Integer.parseInt(r[0], 16);
+					opMask = r.length > 1 ? Integer.parseInt(r[1], 16) : 0xFFFF;
+				}
+					break;
+				case CTX:
+					context = Integer.parseInt(arg.argVal);
+					break;
+				case HLP:
+					showHelp = true;
+					break;
+				default:
+					free.add(arg.argVal);
+					break;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Wrong number format: " + e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+		System.out.println(Util.getVersionString("Trace Tool"));
+
+		if (showHelp || free.isEmpty()) {
+			StringBuilder sb = new StringBuilder("Usage: trace record|dump|diff <options> files" + Util.NEW_LINE);
+			for (ArgDef def : argDefArray) {
+				String s = String.format("  --%s, -%s  %s", def.name, def.alias, def.desc);
+				sb.append(s).append(Util.NEW_LINE);
+			}
+			System.out.println(sb.toString());
+			System.exit(0);
+		}
+		String error = cmdArgs.getLastError();
+		if (error.length() > 0) {
+			System.err.println(error);
+			System.exit(1);
+		}
+
+		String action = free.get(0);
+		try {
+			if (action.equals("record") && free.size() == 2) {
+				if (output.equals("stdout")) {
+					throw new Exception("A trace file has to be given with --" + OUT + ".");
+				}
+				record(free.get(1), output, cycles, capacity, startAddress, mode, seed, quirks);
+			} else if (action.equals("dump") && free.size() == 2) {
+				dump(free.get(1), output, from, until, pcLo, pcHi, opValue, opMask);
+			} else if (action.equals("diff") && free.size() == 3) {
+				diff(free.get(1), free.get(2), context);
+			} else {
+				throw new Exception("Unrecognized trace action or wrong number of files: " + action);
+			}
+		} catch (IOException e) {
+			System.err.print("Cannot access file, reason : ");
+			System.err.println(e.getMessage());
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	static void record(String rom, String output, long cycles, long capacity, int startAddress, Mode mode, long seed,
+			Quirks quirks)
+			throws Exception {
+		byte[] prog = Files.readAllBytes(Paths.get(rom));
+		HeadlessRunner runner = new HeadlessRunner();
+		runner.getCPU().setQuirks(quirks);
+		runner.load(prog, mode, startAddress, seed);
+		try (TraceRecorder rec = new TraceRecorder(Paths.get(output), capacity)) {
+			runner.getCPU().setTraceRecorder(rec);
+			long t0 = System.nanoTime();
+			long done = 0;
+			Exception fault = null;
+			try {
+				done = runner.runCycles(cycles);
+			} catch (Exception e) {
+				// The trace up to the fault is what we are after.
+				done = runner.getCPU().getCycleCount();
+				fault = e;
+			}
+			long t1 = System.nanoTime();
+			System.out.println(done + " instructions traced in " + (t1 - t0) / 1000000 + " ms, "
+					+ Math.min(done, capacity) + " records kept in [" + output + "].");
+			if (runner.isHalted()) {
+				System.out.println("Program exited.");
+			}
+			if (fault != null) {
+				System.out.println("Program stopped: " + (fault.getMessage() == null ? fault.toString() : fault.getMessage()));
+			}
+		}
+	}
+
+	static void dump(String input, String output, long from, long until, int pcLo, int pcHi, int opValue, int opMask)
+			throws IOException {
+		try (TraceReader r = new TraceReader(Paths.get(input));
+			 Writer w = openWriter(output)) {
+			StringBuilder sb = new StringBuilder(128);
+			int n = r.size();
+			for (int i = r.indexOfCycle(from); i < n; ++i) {
+				if (r.getCycle(i) > until) {
+					break;
+				}
+				int pc = r.getPC(i);
+				if (pc < pcLo || pc > pcHi || (r.getOpcode(i) & opMask) != opValue) {
+					continue;
+				}
+				sb.setLength(0);
+				r.appendRecord(i, sb);
+				sb.append(Util.NEW_LINE);
+				w.append(sb);
+			}
+		}
+	}
+
+	/**
+	 * Reports the first record, aligned by cycle, where the two traces disagree.
+	 */
+	static void diff(String a, String b, int context) throws IOException {
+		try (TraceReader ra = new TraceReader(Paths.get(a));
+			 TraceReader rb = new TraceReader(Paths.get(b))) {
+			if (ra.size() == 0 || rb.size() == 0) {
+				System.out.println("Nothing to compare, at least one trace is empty.");
+				return;
+			}
+			// The rings may have dropped different amounts of history
+			long start = Math.max(ra.getCycle(0), rb.getCycle(0));
+			int ia = ra.indexOfCycle(start);
+			int ib = rb.indexOfCycle(start);
+			int n = Math.min(ra.size() - ia, rb.size() - ib);
+			for (int k = 0; k < n; ++k) {
+				if (!ra.sameRecord(ia + k, rb, ib + k)) {
+					System.out.println("First divergence at cycle " + ra.getCycle(ia + k) + ":");
+					printContext(ra, a, Math.max(ia, ia + k - context), ia + k);
+					printContext(rb, b, Math.max(ib, ib + k - context), ib + k);
+					return;
+				}
+			}
+			System.out.println(n + " records compared from cycle " + start + ", no divergence.");
+			if (ra.size() - ia != rb.size() - ib) {
+				System.out.println("Trace lengths differ: " + (ra.size() - ia) + " vs " + (rb.size() - ib) + " records.");
+			}
+		}
+	}
+
+	static void printContext(TraceReader r, String name, int first, int last) {
+		StringBuilder sb = new StringBuilder("[" + name + "]" + Util.NEW_LINE);
+		for (int i = first; i <= last; ++i) {
+			sb.append(i == last ? "> " : "  ");
+			r.appendRecord(i, sb);
+			sb.append(Util.NEW_LINE);
+		}
+		System.out.println(sb.toString());
+	}
+
+	private static Writer openWriter(String output) throws IOException {
+		if (output.equalsIgnoreCase("stdout")) {
+			return new BufferedWriter(new OutputStreamWriter(System.out, Charset.forName("ASCII")) {
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			}, 1 << 16);
+		}
+		return Files.newBufferedWriter(Paths.get(output), Charset.forName("ASCII"));
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import static com.taibaisoft.chip8.processor.TraceRecorder.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only view over a trace file written by TraceRecorder.
+ * Records are indexed from 0 (the oldest one still in the ring) to size()-1.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class TraceReader implements Closeable {
+	private final FileChannel channel_;
+	private final MappedByteBuffer buffer_;
+	private final long capacity_;
+	private final long written_;
+	private final int size_;
+	private final int first_;
+	
+	public TraceReader(Path file) throws IOException {
+		channel_ = FileChannel.open(file, StandardOpenOption.READ);
+		long fileSize = channel_.size();
+		if (fileSize < HEADER_SIZE) {
+			channel_.close();
+			throw new IOException("Not a trace file: " + file);
+		}
+		buffer_ = channel_.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		if (buffer_.getInt(H_MAGIC) != MAGIC || buffer_.getInt(H_VERSION) != VERSION
+				|| buffer_.getInt(H_RECORD_SIZE) != RECORD_SIZE) {
+			channel_.close();
+			throw new IOException("Not a trace file or unsupported version: " + file);
+		}
+		capacity_ = buffer_.getLong(H_CAPACITY);
+		written_ = buffer_.getLong(H_WRITTEN);
+		if (capacity_ <= 0 || HEADER_SIZE + capacity_ * RECORD_SIZE > fileSize) {
+			channel_.close();
+			throw new IOException("Truncated trace file: " + file);
+		}
+		size_ = (int)Math.min(written_, capacity_);
+		first_ = (int)(written_ > capacity_ ? written_ % capacity_ : 0);
+	}
+	
+	/**
+	 * @return Number of records available.
+	 */
+	public int size() {
+		return size_;
+	}
+	public long getWrittenCount() {
+		return written_;
+	}
+	public long getCapacity() {
+		return capacity_;
+	}
+	private int offset(int index) {
+		long slot = first_ + (long)index;
+		if (slot >= capacity_) {
+			slot -= capacity_;
+		}
+		return (int)(HEADER_SIZE + slot * RECORD_SIZE);
+	}
+	public long getCycle(int index) {
+		return buffer_.getLong(offset(index) + R_CYCLE);
+	}
+	public int getPC(int index) {
+		return buffer_.getShort(offset(index) + R_PC) & 0xFFFF;
+	}
+	public int getOpcode(int index) {
+		return buffer_.getShort(offset(index) + R_OPCODE) & 0xFFFF;
+	}
+	public int getI(int index) {
+		return buffer_.getShort(offset(index) + R_I) & 0xFFFF;
+	}
+	public int getSP(int index) {
+		return buffer_.get(offset(index) + R_SP) & 0xFF;
+	}
+	public int getFlags(int index) {
+		return buffer_.get(offset(index) + R_FLAGS) & 0xFF;
+	}
+	public int getV(int index, int reg) {
+		return buffer_.get(offset(index) + R_V + reg) & 0xFF;
+	}
+	public int getDT(int index) {
+		return buffer_.get(offset(index) + R_DT) & 0xFF;
+	}
+	public int getST(int index) {
+		return buffer_.get(offset(index) + R_ST) & 0xFF;
+	}
+	
+	/**
+	 * Cycles are strictly increasing within a trace, so this is a binary search.
+	 * @param cycle
+	 * @return Index of the first record whose cycle is &gt;= <code>cycle</code>, size() if none.
+	 */
+	public int indexOfCycle(long cycle) {
+		int lo = 0;
+		int hi = size_;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getCycle(mid) < cycle) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Compares the architectural state of two records, cycle number included.
+	 * @return true if both records are byte-identical.
+	 */
+	public boolean sameRecord(int index, TraceReader other, int otherIndex) {
+		int a = offset(index);
+		int b = other.offset(otherIndex);
+		for (int i = 0; i < RECORD_SIZE; ++i) {
+			if (buffer_.get(a + i) != other.buffer_.get(b + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Appends a one line, human readable form of a record. Avoids String.format
+	 * as dumps easily run into millions of lines.
+	 * @param index
+	 * @param sb
+	 */
+	public void appendRecord(int index, StringBuilder sb) {
+		int o = offset(index);
+		sb.append(buffer_.getLong(o + R_CYCLE)).append(' ');
+		appendHex(sb, buffer_.getShort(o + R_PC), 3).append(": ");
+		appendHex(sb, buffer_.getShort(o + R_OPCODE), 4).append("  I=");
+		appendHex(sb, buffer_.getShort(o + R_I), 3).append(" V=");
+		for (int i = 0; i < 16; ++i) {
+			appendHex(sb, buffer_.get(o + R_V + i), 2);
+			if (i < 15) {
+				sb.append(' ');
+			}
+		}
+		sb.append(" DT=");
+		appendHex(sb, buffer_.get(o + R_DT), 2).append(" ST=");
+		appendHex(sb, buffer_.get(o + R_ST), 2).append(" SP=");
+		appendHex(sb, buffer_.get(o + R_SP), 2);
+		int flags = buffer_.get(o + R_FLAGS);
+		if ((flags & FLAG_EXTENDED) != 0) {
+			sb.append(" EXT");
+		}
+		if ((flags & FLAG_HIRES) != 0) {
+			sb.append(" HIRES");
+		}
+		if ((flags & FLAG_AWAITING_KEY) != 0) {
+			sb.append(" KEY");
+		}
+	}
+	
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	static StringBuilder appendHex(StringBuilder sb, int value, int digits) {
+		for (int i = digits - 1; i >= 0; --i) {
+			sb.append(HEX[(value >>> (i * 4)) & 0xF]);
+		}
+		return sb;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel_.close();
+	}
+}
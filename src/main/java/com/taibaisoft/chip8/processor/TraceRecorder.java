@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends one fixed-width record per executed instruction to a memory-mapped
+ * file. The file is a ring: once <code>capacity</code> records have been
+ * written the oldest ones are overwritten, so long runs keep the most recent
+ * history only.
+ * 
+ * File layout (big endian):
+ * 
+ * Header, HEADER_SIZE bytes
+ *   0  int   MAGIC
+ *   4  int   VERSION
+ *   8  int   RECORD_SIZE
+ *   16 long  capacity, in records
+ *   24 long  total number of records ever written
+ * 
+ * Record, RECORD_SIZE bytes, state BEFORE the instruction runs
+ *   0  long  cycle
+ *   8  short PC
+ *   10 short opcode
+ *   12 short I
+ *   14 byte  SP
+ *   15 byte  flags, see FLAG_*
+ *   16 byte[16] V0-VF
+ *   32 byte  DT
+ *   33 byte  ST
+ * 
+ * record() is called from the CPU loop so it must not allocate.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class TraceRecorder implements Closeable {
+	public static final int MAGIC = 0x4D385452; // "M8TR"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int RECORD_SIZE = 40;
+	public static final long MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+	public static final long DEFAULT_CAPACITY = 1 << 20;
+	
+	static final int H_MAGIC = 0;
+	static final int H_VERSION = 4;
+	static final int H_RECORD_SIZE = 8;
+	static final int H_CAPACITY = 16;
+	static final int H_WRITTEN = 24;
+	
+	static final int R_CYCLE = 0;
+	static final int R_PC = 8;
+	static final int R_OPCODE = 10;
+	static final int R_I = 12;
+	static final int R_SP = 14;
+	static final int R_FLAGS = 15;
+	static final int R_V = 16;
+	static final int R_DT = 32;
+	static final int R_ST = 33;
+	
+	public static final int FLAG_EXTENDED = 0x01;
+	public static final int FLAG_HIRES = 0x02;
+	public static final int FLAG_AWAITING_KEY = 0x04;
+	
+	private final FileChannel channel_;
+	private final MappedByteBuffer buffer_;
+	private final long capacity_;
+	private long written_ = 0;
+	private int position_ = HEADER_SIZE;
+	private final int end_;
+	
+	/**
+	 * Creates (or truncates) a trace file able to hold <code>capacity</code> records.
+	 * @param file
+	 * @param capacity Number of records kept before wrapping around.
+	 * @throws IOException
+	 */
+	public TraceRecorder(Path file, long capacity) throws IOException {
+		if (capacity <= 0 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Trace capacity must be within [1, " + MAX_CAPACITY + "].");
+		}
+		capacity_ = capacity;
+		end_ = (int)(HEADER_SIZE + capacity * RECORD_SIZE);
+		channel_ = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer_ = channel_.map(FileChannel.MapMode.READ_WRITE, 0, end_);
+		buffer_.putInt(H_MAGIC, MAGIC);
+		buffer_.putInt(H_VERSION, VERSION);
+		buffer_.putInt(H_RECORD_SIZE, RECORD_SIZE);
+		buffer_.putLong(H_CAPACITY, capacity_);
+		buffer_.putLong(H_WRITTEN, 0);
+	}
+	
+	/**
+	 * Appends the state of <code>c</code> right before <code>opcode</code> runs.
+	 * @param c
+	 * @param opcode
+	 */
+	void record(Chip8 c, int opcode) {
+		final MappedByteBuffer b = buffer_;
+		final int p = position_;
+		int flags = 0;
+		if (c.isExtendedScreen) {
+			flags |= FLAG_EXTENDED;
+		} else if (c.V == Chip8.CHIP_8_HIRES_PIXELS_Y) {
+			flags |= FLAG_HIRES;
+		}
+		if (c.awaitingKey_) {
+			flags |= FLAG_AWAITING_KEY;
+		}
+		b.putLong(p + R_CYCLE, c.cycles_);
+		b.putShort(p + R_PC, (short)c.getPC());
+		b.putShort(p + R_OPCODE, (short)opcode);
+		b.putShort(p + R_I, (short)c.I);
+		b.put(p + R_SP, (byte)c.getSP());
+		b.put(p + R_FLAGS, (byte)flags);
+		final byte[] v = c.v;
+		for (int i = 0; i < 16; ++i) {
+			b.put(p + R_V + i, v[i]);
+		}
+		b.put(p + R_DT, (byte)c.delayTimer);
+		b.put(p + R_ST, (byte)c.soundTimer);
+		
+		position_ = p + RECORD_SIZE == end_ ? HEADER_SIZE : p + RECORD_SIZE;
+		// Keeps the header current, so a trace of a crashed run is still readable.
+		b.putLong(H_WRITTEN, ++written_);
+	}
+	
+	public long getWrittenCount() {
+		return written_;
+	}
+	public long getCapacity() {
+		return capacity_;
+	}
+	public void flush() {
+		buffer_.force();
+	}
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel_.close();
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.chip8.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.taibaisoft.framework.Wavetable;
+import com.taibaisoft.framework.Tone.ToneType;
+
+/**
+ * A buzzer for headless runs that renders the sound timer into a WAV file,
+ * timed by the instructions run rather than by the wall clock, so a run
+ * gives the same samples however fast it goes.
+ * 
+ * Every buzz() is a timer tick with the sound timer on, and sounds the frame
+ * of cyclesPerFrame instructions that the tick closes. The rest is silence.
+ * The samples, 16 bit signed mono, are SHA-1 hashed as they are written so
+ * the sound of a run can be checked against a known good one.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class WavRecorder implements IBuzzer, Closeable {
+	public static final int DEFAULT_SAMPLE_RATE = 22050;
+	public static final double DEFAULT_FREQUENCY = 341;
+	public static final int HEADER_SIZE = 44;
+	private static final int GAIN = Wavetable.UNITY / 4;
+	private static final int BUFFER_SAMPLES = 32768;
+	
+	private final FileChannel channel_;
+	private final ByteBuffer buffer_ = ByteBuffer.allocate(BUFFER_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+	private final int[] mix_ = new int[BUFFER_SAMPLES];
+	private final MessageDigest digest_;
+	private final Chip8 chip_;
+	private final long cyclesPerSecond_;
+	private final int cyclesPerFrame_;
+	private final int sampleRate_;
+	private final Wavetable wave_;
+	private double frequency_ = DEFAULT_FREQUENCY;
+	private int phase_ = 0;
+	/** Samples written so far. */
+	private long samples_ = 0;
+	private long soundSamples_ = 0;
+	private String hash_ = null;
+	
+	/**
+	 * @param file
+	 * @param chip The CPU whose instruction count times the sound, see Chip8.getCycleCount().
+	 * @param cyclesPerFrame Instructions between two timer ticks.
+	 * @param sampleRate
+	 * @throws IOException
+	 */
+	public WavRecorder(Path file, Chip8 chip, int cyclesPerFrame, int sampleRate) throws IOException {
+		if (cyclesPerFrame <= 0 || sampleRate <= 0) {
+			throw new IllegalArgumentException("Instructions per frame and sample rate must be positive.");
+		}
+		try {
+			digest_ = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JRE has to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+		chip_ = chip;
+		cyclesPerFrame_ = cyclesPerFrame;
+		cyclesPerSecond_ = (long) cyclesPerFrame * Chip8.DEFAULT_TIMER_HZ;
+		sampleRate_ = sampleRate;
+		wave_ = Wavetable.get(ToneType.SQUARE, sampleRate);
+		channel_ = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		// Sizes are filled in by close()
+		channel_.write(header(0), 0);
+		channel_.position(HEADER_SIZE);
+	}
+	
+	public void setFrequency(double f) {
+		frequency_ = f;
+	}
+	public double getFrequency() {
+		return frequency_;
+	}
+	public int getSampleRate() {
+		return sampleRate_;
+	}
+	/**
+	 * @return Samples written so far.
+	 */
+	public long getSampleCount() {
+		return samples_;
+	}
+	/**
+	 * @return Samples written so far with the buzzer on.
+	 */
+	public long getSoundSampleCount() {
+		return soundSamples_;
+	}
+	/**
+	 * @return The SHA-1 of the samples in hex, null until closed.
+	 */
+	public String getHash() {
+		return hash_;
+	}
+	
+	@Override
+	public void buzz() {
+		long end = chip_.getCycleCount();
+		long from = sampleAt(end - cyclesPerFrame_);
+		long to = sampleAt(end);
+		try {
+			render(from, false);
+			render(to, true);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Pads with silence up to the current instruction count, then finishes the
+	 * file and the hash.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (hash_ != null) {
+			return;
+		}
+		try {
+			render(sampleAt(chip_.getCycleCount()), false);
+			flush();
+			channel_.write(header(samples_ * 2), 0);
+		} finally {
+			channel_.close();
+		}
+		hash_ = RomDatabase.hex(digest_.digest());
+	}
+	
+	private long sampleAt(long cycle) {
+		return Math.max(0, cycle) * sampleRate_ / cyclesPerSecond_;
+	}
+	
+	/**
+	 * Writes samples up to, not including, sample <code>to</code>.
+	 */
+	private void render(long to, boolean sound) throws IOException {
+		while (samples_ < to) {
+			int at = buffer_.position() / 2;
+			int n = (int) Math.min(to - samples_, BUFFER_SAMPLES - at);
+			if (sound) {
+				phase_ = wave_.mix(mix_, 0, n, frequency_, phase_, GAIN);
+				for (int i = 0; i < n; ++i) {
+					buffer_.putShort((short) mix_[i]);
+					mix_[i] = 0;
+				}
+				soundSamples_ += n;
+			} else {
+				for (int i = 0; i < n; ++i) {
+					buffer_.putShort((short) 0);
+				}
+			}
+			samples_ += n;
+			if (!buffer_.hasRemaining()) {
+				flush();
+			}
+		}
+	}
+	
+	private void flush() throws IOException {
+		digest_.update(buffer_.array(), 0, buffer_.position());
+		buffer_.flip();
+		while (buffer_.hasRemaining()) {
+			channel_.write(buffer_);
+		}
+		buffer_.clear();
+	}
+	
+	private ByteBuffer header(long dataSize) {
+		ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(0x46464952); // "RIFF"
+		h.putInt((int) Math.min(0xFFFFFFFFL, dataSize + HEADER_SIZE - 8));
+		h.putInt(0x45564157); // "WAVE"
+		h.putInt(0x20746D66); // "fmt "
+		h.putInt(16);
+		h.putShort((short) 1); // PCM
+		h.putShort((short) 1); // mono
+		h.putInt(sampleRate_);
+		h.putInt(sampleRate_ * 2);
+		h.putShort((short) 2);
+		h.putShort((short) 16);
+		h.putInt(0x61746164); // "data"
+		h.putInt((int) Math.min(0xFFFFFFFFL, dataSize));
+		h.flip();
+		return h;
+	}
+}
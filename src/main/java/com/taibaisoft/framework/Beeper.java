@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.framework;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import com.taibaisoft.framework.Tone.ToneType;
+
+/**
+ * A continuous, band-limited square wave on one SourceDataLine, switched on and
+ * off by a gate.
+ * 
+ * The line is owned by a daemon thread of its own that keeps it fed with small
+ * buffers, silence while the gate is closed, so the tone starts and stops
+ * without reopening anything and its phase carries on from buffer to buffer.
+ * Writes block once LATENCY_MS of audio is queued, which paces the thread and
+ * bounds the delay between opening the gate and hearing it.
+ * 
+ * soundFor() and setFrequency() only store a value, they are safe to call from
+ * the emulation thread at any rate.
+ * 
+ * @author jeffreybian
+ *
+ */
+public class Beeper implements Runnable {
+	/** Audio queued in the line at most. */
+	public static final int LATENCY_MS = 20;
+	/** Length of the buffers written to the line. */
+	public static final int CHUNK_MS = 5;
+	/* Linear fade in and out, in samples, so that the gate does not click */
+	private static final int RAMP = 64;
+	
+	private final int sampleRate_;
+	private final Wavetable wave_;
+	private volatile double frequency_;
+	private final int amplitude_;
+	/** System.nanoTime() the gate closes at. */
+	private volatile long until_ = 0;
+	private volatile boolean running_ = false;
+	private Thread thread_ = null;
+	private SourceDataLine line_ = null;
+	private AudioFormat format_ = null;
+	
+	/**
+	 * @param frequency In Hz.
+	 * @param sampleRate 
+	 * @param volume 0 to 1, of the full scale.
+	 */
+	public Beeper(double frequency, int sampleRate, double volume) {
+		frequency_ = frequency;
+		sampleRate_ = sampleRate;
+		wave_ = Wavetable.get(ToneType.SQUARE, sampleRate);
+		amplitude_ = (int) (Math.max(0, Math.min(1, volume)) * Short.MAX_VALUE);
+	}
+	
+	/**
+	 * Opens the default line and starts feeding it. 16-bit samples are used
+	 * where the line takes them, 8-bit otherwise.
+	 * @throws LineUnavailableException No line plays either format.
+	 */
+	public void start() throws LineUnavailableException {
+		start(0);
+	}
+	/**
+	 * Same as start(), trying the given sample size first, e.g. the one that
+	 * worked last time, so that a known good line is opened in one go.
+	 * @param preferredBits 16, 8 or 0 for no preference.
+	 * @throws LineUnavailableException No line plays either format.
+	 */
+	public synchronized void start(int preferredBits) throws LineUnavailableException {
+		if (running_) {
+			return;
+		}
+		LineUnavailableException failure = null;
+		int[] order = preferredBits == 8 ? new int[] {8, 16} : new int[] {16, 8};
+		for (int bits : order) {
+			AudioFormat fmt = new AudioFormat(sampleRate_, bits, 1, true, false);
+			try {
+				SourceDataLine line = AudioSystem.getSourceDataLine(fmt);
+				line.open(fmt, bytesFor(fmt, LATENCY_MS));
+				line_ = line;
+				format_ = fmt;
+				break;
+			} catch (LineUnavailableException | IllegalArgumentException e) {
+				failure = e instanceof LineUnavailableException ? (LineUnavailableException) e 
+						: new LineUnavailableException(e.getMessage());
+			}
+		}
+		if (line_ == null) {
+			throw failure;
+		}
+		line_.start();
+		running_ = true;
+		thread_ = new Thread(this, "Beeper");
+		thread_.setDaemon(true);
+		thread_.start();
+	}
+	/**
+	 * Stops the thread and closes the line.
+	 */
+	public synchronized void close() {
+		running_ = false;
+		if (thread_ != null) {
+			try {
+				thread_.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread_ = null;
+		}
+		if (line_ != null) {
+			line_.stop();
+			line_.close();
+			line_ = null;
+		}
+	}
+	public boolean isRunning() {
+		return running_;
+	}
+	/**
+	 * @return The format the line was opened with, null until start() succeeded.
+	 */
+	public AudioFormat getFormat() {
+		return format_;
+	}
+	
+	/**
+	 * Keeps the tone on for the given time from now, or until a later deadline
+	 * already set. Never blocks.
+	 * @param nanos
+	 */
+	public void soundFor(long nanos) {
+		long t = System.nanoTime() + nanos;
+		if (t - until_ > 0) {
+			until_ = t;
+		}
+	}
+	/**
+	 * Changes the pitch from the next buffer on, keeping the phase.
+	 * @param frequency In Hz.
+	 */
+	public void setFrequency(double frequency) {
+		frequency_ = frequency;
+	}
+	public double getFrequency() {
+		return frequency_;
+	}
+	/**
+	 * Closes the gate now.
+	 */
+	public void silence() {
+		until_ = System.nanoTime();
+	}
+	
+	@Override
+	public void run() {
+		final SourceDataLine line = line_;
+		final int bytesPerSample = format_.getSampleSizeInBits() / 8;
+		final int samples = sampleRate_ * CHUNK_MS / 1000;
+		final byte[] buf = new byte[samples * bytesPerSample];
+		final int[] mix = new int[samples];
+		int phase = 0;
+		int level = 0;
+		while (running_) {
+			boolean on = until_ - System.nanoTime() > 0;
+			int target = on ? amplitude_ : 0;
+			Arrays.fill(mix, 0);
+			phase = wave_.mix(mix, 0, samples, frequency_, phase, Wavetable.UNITY);
+			for (int i = 0; i < samples; ++i) {
+				if (level < target) {
+					level = Math.min(target, level + amplitude_ / RAMP + 1);
+				} else if (level > target) {
+					level = Math.max(target, level - amplitude_ / RAMP - 1);
+				}
+				int s = (mix[i] * level) >> 15;
+				if (bytesPerSample == 2) {
+					buf[2 * i] = (byte) s;
+					buf[2 * i + 1] = (byte) (s >> 8);
+				} else {
+					buf[i] = (byte) (s >> 8);
+				}
+			}
+			line.write(buf, 0, buf.length);
+		}
+	}
+	
+	private static int bytesFor(AudioFormat fmt, int millis) {
+		return (int) fmt.getSampleRate() * millis / 1000 * fmt.getFrameSize();
+	}
+}
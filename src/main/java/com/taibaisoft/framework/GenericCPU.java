@@ -128,17 +128,21 @@ public abstract class GenericCPU {
 	public void stop() {
 		running = false;
 		paused = false;
-		// Wait for termination
-		if ( loopThread!=null ) {
-			while (loopThread.isAlive()) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		// Wait for termination, returns as soon as the loop sees the flag
+		if ( loopThread!=null && loopThread!=Thread.currentThread() ) {
+			try {
+				loopThread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
 		}	
 	}
+	public int getPC() {
+		return pc;
+	}
+	public int getSP() {
+		return sp;
+	}
 	public boolean hasStartedRunning() {
 		return running;
 	} 
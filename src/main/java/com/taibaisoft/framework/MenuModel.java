@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.framework;
+
+import java.awt.AWTKeyStroke;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.KeyStroke;
+
+/**
+ * A menu configuration, see UICommandSite.setupMenu(), parsed into entries
+ * once. Models are immutable, and the ones read from resources are cached,
+ * so building a menu again never reads nor parses the configuration again.
+ * 
+ * @author jeffreybian
+ *
+ */
+public final class MenuModel {
+	public static final char ITEM = 'i';
+	public static final char SUBMENU = '+';
+	public static final char END = '-';
+	public static final char RADIO = 'r';
+	public static final char CHECK = 'c';
+	public static final char SEPARATOR = 's';
+	
+	public static final class Entry {
+		/** One of ITEM, SUBMENU, END, RADIO, CHECK or SEPARATOR. */
+		public final char type;
+		/** Fully qualified class name of the command, null for END and SEPARATOR. */
+		public final String command;
+		/** The simple class name as written in the configuration. */
+		public final String commandName;
+		/** -1 for none. */
+		public final int mnemonic;
+		/** null for none. */
+		public final KeyStroke accelerator;
+		/** Index of the entry in the configuration, for error messages. */
+		public final int line;
+		
+		Entry(char type, String command, String commandName, int mnemonic, KeyStroke accelerator, int line) {
+			this.type = type;
+			this.command = command;
+			this.commandName = commandName;
+			this.mnemonic = mnemonic;
+			this.accelerator = accelerator;
+			this.line = line;
+		}
+	}
+	
+	private static final Map<String, MenuModel> cache_ = new HashMap<String, MenuModel>();
+	
+	private final List<Entry> entries_;
+	
+	private MenuModel(List<Entry> entries) {
+		entries_ = Collections.unmodifiableList(entries);
+	}
+	
+	public List<Entry> getEntries() {
+		return entries_;
+	}
+	
+	/**
+	 * @param name Resource name, see Resources.open().
+	 * @return The parsed model, shared by every caller, or null if the resource cannot be read.
+	 */
+	public static synchronized MenuModel get(String name) {
+		MenuModel m = cache_.get(name);
+		if (m == null) {
+			try {
+				InputStream p = Resources.getInstance().open(name);
+				if (p == null) {
+					return null;
+				}
+				StringBuilder out = new StringBuilder();
+				try (BufferedReader bf = new BufferedReader(new InputStreamReader(p))) {
+					String line;
+					while ((line = bf.readLine()) != null) {
+						out.append(line);
+					}
+				}
+				m = parse(out.toString());
+				cache_.put(name, m);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		return m;
+	}
+	
+	/**
+	 * @param config The whole configuration, in the format of UICommandSite.setupMenu().
+	 * @return The model.
+	 */
+	public static MenuModel parse(String config) {
+		List<Entry> entries = new ArrayList<Entry>();
+		String[] lines = config.split(";");
+		String defaultPackagePrefix = "";
+		for (int cursor = 0; cursor < lines.length; ++cursor) {
+			String cl = lines[cursor].trim();
+			if (cl.length() == 0) {
+				continue;
+			}
+			char ct = cl.charAt(0);	// Line type
+			String[] items = cl.split(",");
+			
+			if (ct == '#') { // For comments
+				continue;
+			}
+			if (ct == 'p') { // "p" to setup default package prefix.
+				if (items.length > 1) {
+					defaultPackagePrefix = items[1].trim();
+				} else {
+					System.err.println("Missing default package names.");
+				}
+				continue;
+			}
+			
+			int mnemonic = -1;
+			if (items.length > 2) {
+				String i2 = items[2].trim();
+				if (i2.length() > 0) {
+					mnemonic = AWTKeyStroke.getAWTKeyStroke(i2.charAt(0)).getKeyCode();
+				}
+			}
+			String name = null;
+			String cls = null;
+			if (items.length > 1) {
+				name = items[1].trim();
+				cls = defaultPackagePrefix + "." + name;
+			}
+			KeyStroke accelerator = null;
+			if (items.length > 3 && items[3].trim().length() > 0) {
+				accelerator = KeyStroke.getKeyStroke(items[3]);
+			}
+			entries.add(new Entry(ct, cls, name, mnemonic, accelerator, cursor));
+		}
+		return new MenuModel(entries);
+	}
+}
@@ -61,46 +61,24 @@ public class Tone {
 		return buffer_;
 	}
 	
+	/**
+	 * Fills the buffer with whole cycles of the tone, 8-bit signed samples, so
+	 * that a clip of it loops without a click.
+	 */
 	protected void generateBuffer_() {
 		if (frequency_==0) {
-			buffer_ = new byte[2 * sampleRate_ * length_ / 2000];
+			buffer_ = new byte[sampleRate_ * length_ / 1000];
 		} else {
-			int wavelengths = (int)frequency_ * length_ / 2000;
-			int framesPerWaveLen = (int)(sampleRate_/frequency_);
-			int halfLen = framesPerWaveLen * wavelengths;
-			buffer_ = new byte[2 * halfLen];
-			for (int i = 0; i < halfLen; i++) {
-				double rad = ((double) (i%framesPerWaveLen) / ((double) framesPerWaveLen))
-						* (2*Math.PI);
-				buffer_[i * 2] = shapeValue(rad);
-				buffer_[i * 2 + 1] = buffer_[i * 2];
+			long cycles = Math.max(1, Math.round(frequency_ * length_ / 1000));
+			int n = (int) Math.round(cycles * sampleRate_ / frequency_);
+			int[] mix = new int[n];
+			Wavetable.get(type_, sampleRate_).mix(mix, 0, n, frequency_, 0, Wavetable.UNITY);
+			buffer_ = new byte[n];
+			for (int i = 0; i < n; i++) {
+				buffer_[i] = (byte) (mix[i] >> 8);
 			}
 		}
 	}
-	private byte shapeValue(double rad) {
-		byte v = 0;
-		int  max = 127;
-		
-		if (type_==ToneType.SINE) {
-			v = (new Integer((int) Math.round(Math.sin(rad) * max)))
-				.byteValue();
-		} else if (type_==ToneType.SQUARE) {
-			if (rad<Math.PI) {
-				v = (byte)max;
-			} else {
-				v = 0;
-			}
-		} else if (type_==ToneType.TRIANGLE) {
-			byte x = new Integer((int) Math.round(max * rad/Math.PI)).byteValue();
-			if (rad>=0 && rad<Math.PI) {
-				v = x;
-			} else if (rad>Math.PI && v<2*Math.PI) {
-				v = (byte) (max - x);
-			}
-			
-		}
-		return v;
-	}
 	public static void main(String[] args) {
 		
 
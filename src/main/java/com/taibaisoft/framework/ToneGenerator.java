@@ -24,14 +24,11 @@
 
 package com.taibaisoft.framework;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
 import javax.sound.sampled.Line;
@@ -92,9 +89,16 @@ public class ToneGenerator {
 	public Clip generateAudioClipFromTones(List<Tone> tones) {
 		Clip clip = null;
 		try {
-			ByteArrayOutputStream bo = new ByteArrayOutputStream();
+			int len = 0;
 			for (Tone t : tones) {
-				bo.write(t.getBuffer());
+				len += t.getBuffer().length;
+			}
+			byte[] bb = new byte[len];
+			len = 0;
+			for (Tone t : tones) {
+				byte[] b = t.getBuffer();
+				System.arraycopy(b, 0, bb, len, b.length);
+				len += b.length;
 			}
 			
 			clip = AudioSystem.getClip();
@@ -112,11 +116,7 @@ public class ToneGenerator {
 			if (!foundMatch) {
 				format = supportedFormats_.firstElement();
 			}
-		
-			byte[] bb = bo.toByteArray();
-			AudioInputStream ais = new AudioInputStream(
-					new ByteArrayInputStream(bb), format, bb.length);
-			clip.open(ais);
+			clip.open(format, bb, 0, bb.length);
 		} catch (Exception e) {
 			e.printStackTrace();
 			clip = null;
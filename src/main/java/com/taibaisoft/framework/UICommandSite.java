@@ -24,13 +24,8 @@
 
 package com.taibaisoft.framework;
 
-import java.awt.AWTKeyStroke;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -43,7 +38,6 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JRadioButtonMenuItem;
-import javax.swing.KeyStroke;
 import javax.swing.event.MenuEvent;
 import javax.swing.event.MenuListener;
 
@@ -67,6 +61,22 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 	
 	List<String> configCmdNames = new ArrayList<String>();
 	
+	/* A built menu item or radio group and the command it shows */
+	private class Binding {
+		final UICommand<T> cmd;
+		final char type;
+		final JMenuItem item;
+		final JRadioButtonMenuItem[] radios;
+		Binding(UICommand<T> cmd, char type, JMenuItem item, JRadioButtonMenuItem[] radios) {
+			this.cmd = cmd;
+			this.type = type;
+			this.item = item;
+			this.radios = radios;
+		}
+	}
+	private final List<Binding> bindings_ = new ArrayList<Binding>();
+	private MenuModel menuModel_ = null;
+	
 	private static final long serialVersionUID = 1L;
 	public UICommandSite() {
 		super();
@@ -77,27 +87,20 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 	
 	/**
 	 * Subclasses should call this method to setup its menu from menu.cfg.
-	 * This will reload the whole menu, resetting it to initial state.
+	 * This will reset the whole menu to its initial state. The menu is built 
+	 * the first time only, later calls bring the text, check marks, radio 
+	 * selections and visibility of its items back in line with their commands.
 	 */
 	protected void reloadMenu() {
-		try {
-			InputStream p = Resources.getInstance().open("menu.cfg");
-			if(p!=null) {
-				BufferedReader bf = new BufferedReader(
-						new InputStreamReader(p)
-				);
-		        StringBuilder out = new StringBuilder();
-		        String line;
-		        while ((line = bf.readLine()) != null) {
-		            out.append(line);
-		        }
-				setupMenu(out.toString());
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		MenuModel m = MenuModel.get("menu.cfg");
+		if (m == null) {
+			return;
+		}
+		if (m == menuModel_ && getJMenuBar() != null) {
+			refreshMenu();
+		} else {
+			setupMenu(m);
 		}
-		
-		
 	}
 	/**
 	 * Core method for dynamic menu generation. Config is the whole config string.
@@ -120,6 +123,13 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 	 * @param config
 	 */
 	protected void setupMenu(String config) {
+		setupMenu(MenuModel.parse(config));
+	}
+	/**
+	 * Builds the menu bar from scratch, creating every command.
+	 * @param model
+	 */
+	protected void setupMenu(MenuModel model) {
 		JMenuBar menuBar = getJMenuBar();
 		s_counter = 0;
 		if (menuBar==null) {
@@ -127,50 +137,16 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 		} else {
 			menuBar.removeAll();
 		}
+		cmds.clear();
+		bindings_.clear();
 		
-		String[] lines = config.split(";");
-		int len = lines.length;
-		int cursor = 0;
 		Stack<JMenu> menuStack = new Stack<JMenu>();
-		String defaultPackagePrefix = "";
-		for (;cursor<len;++cursor) {
-			if (lines==null) continue;
-			String cl = lines[cursor].trim();
-			
-			if (cl.length()==0) continue;
-			
-			char ct = cl.charAt(0);	// Line type
-
+		for (MenuModel.Entry e : model.getEntries()) {
+			char ct = e.type;
+			int mnemonic = e.mnemonic;
 			UICommand<T> cmd = null;
-			int mnemonic = -1;
-			
-			String[] items = cl.split(",");
-			
-			if (ct=='#') { // For comments
-				continue; 
-			}
-			
-			if (ct=='p') { // "p" to setup default package prefix.
-				if (items.length>1) {
-					defaultPackagePrefix = items[1].trim();
-				} else {
-					System.err.println("Missing default package names.");
-				}
-				continue;
-			}
-
-			if (items.length>2) {
-				String i2=items[2].trim();
-				if (i2.length()>0) {
-					mnemonic = AWTKeyStroke.getAWTKeyStroke(i2.charAt(0)).getKeyCode();
-				}
-			} 
-			if (items.length>1) {
-				String clsName = items[1].trim();
-				cmd = instantiateClass(
-						defaultPackagePrefix + "." + clsName, 
-						com.taibaisoft.framework.UICommand.class
-						);
+			if (e.command!=null) {
+				cmd = createCommand(e);
 				if (cmd!=null) {
 					cmd.setUICommandSite(this);
 					cmd.setContainer(this);
@@ -198,53 +174,39 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 					}
 					menuStack.push(mnu);
 					mnu.setVisible(cmd.isVisible());
+					bindings_.add(new Binding(cmd, ct, mnu, null));
 				} else {
-					System.err.println("Error loading the menu at line " + cursor);
+					System.err.println("Error loading the menu at line " + e.line);
 				}
 			} else if (ct=='-') {
 				menuStack.pop();
+			} else if (ct=='s') {
+				menuStack.peek().addSeparator();
+			} else if (cmd==null) {
+				System.err.println("Cannot create command object for line " + e.line);
 			} else {
 				JMenuItem mi = null;
-				if (ct=='i') {
-					if (cmd==null) {
-						System.err.println("Cannot create command object for line " + cursor);
-					}
-					if (mnemonic==-1) {
+				if (ct=='i' || ct=='c') {
+					if (ct=='c') {
+						mi = new JCheckBoxMenuItem(cmd.getText());
+						mi.setSelected(cmd.isSelected());
+					} else if (mnemonic==-1) {
 						mi = new JMenuItem(cmd.getText());
 					} else {
 						mi = new JMenuItem(cmd.getText(), mnemonic);
 					}
-					mi.getAccessibleContext().setAccessibleDescription(cmd.getDescription());
-					mi.setActionCommand(cmd.getID());
-					cmd.setRelatedMenuItem(mi);
-					mi.addActionListener(this);
-					menuStack.peek().add(mi);
-					if ( items.length>3 ) {
-						String i3 = items[3].trim();
-						if (i3.length()>0) {
-							mi.setAccelerator(KeyStroke.getKeyStroke(items[3]));
-						}
+					if (ct=='i') {
+						mi.getAccessibleContext().setAccessibleDescription(cmd.getDescription());
 					}
-					mi.setVisible(cmd.isVisible());
-				} else if (ct=='s'){
-					menuStack.peek().addSeparator();
-				} else if (ct=='c') { 
-					if (cmd==null) {
-						System.err.println("Cannot create command object for line " + cursor);
-					}
-					mi = new JCheckBoxMenuItem(cmd.getText());
-					mi.setSelected(cmd.isSelected());
 					mi.setActionCommand(cmd.getID());
 					cmd.setRelatedMenuItem(mi);
 					mi.addActionListener(this);
 					menuStack.peek().add(mi);
-					if ( items.length>3 ) {
-						String i3 = items[3].trim();
-						if (i3.length()>0) {
-							mi.setAccelerator(KeyStroke.getKeyStroke(items[3]));
-						}
+					if (e.accelerator!=null) {
+						mi.setAccelerator(e.accelerator);
 					}
 					mi.setVisible(cmd.isVisible());
+					bindings_.add(new Binding(cmd, ct, mi, null));
 				} else if (ct=='r') {
 					// Generates radio group!
 					if (cmd.getID()!=null && cmd.getText()!=null) {
@@ -254,6 +216,7 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 						if ((nn=allIds.length)==allTexts.length) {
 							cmd.setAllIDs(allIds);
 							ButtonGroup bg = new ButtonGroup();
+							JRadioButtonMenuItem[] radios = new JRadioButtonMenuItem[nn];
 							for (int j = 0; j < nn; ++j ) {
 								String subId = allIds[j];
 								String txt = allTexts[j];
@@ -270,7 +233,9 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 									mri.setSelected(false);
 								}
 								mri.setVisible(cmd.isVisible());
+								radios[j] = mri;
 							}
+							bindings_.add(new Binding(cmd, ct, null, radios));
 						} else {
 							System.err.println("Command ID array length does not match text array length.");
 						}
@@ -283,6 +248,49 @@ public class UICommandSite<T> extends JFrame implements ActionListener, MenuList
 			}
 		}
 		setJMenuBar(menuBar);
+		menuModel_ = model;
+	}
+	/**
+	 * Resets the items of the menu built last to what their commands give now, 
+	 * touching only what differs.
+	 */
+	protected void refreshMenu() {
+		for (Binding b : bindings_) {
+			UICommand<T> cmd = b.cmd;
+			boolean visible = cmd.isVisible();
+			if (b.radios!=null) {
+				int sel = cmd.getDefaultRadioButton();
+				for (int j = 0; j < b.radios.length; ++j) {
+					JRadioButtonMenuItem mri = b.radios[j];
+					if (j==sel && !mri.isSelected()) {
+						mri.setSelected(true);
+					}
+					if (mri.isVisible()!=visible) {
+						mri.setVisible(visible);
+					}
+				}
+				continue;
+			}
+			String text = cmd.getText();
+			if (text!=null && !text.equals(b.item.getText())) {
+				b.item.setText(text);
+			}
+			if (b.type=='c' && b.item.isSelected()!=cmd.isSelected()) {
+				b.item.setSelected(cmd.isSelected());
+			}
+			if (b.item.isVisible()!=visible) {
+				b.item.setVisible(visible);
+			}
+		}
+	}
+	/**
+	 * Creates the command of a menu entry, by reflection unless overridden, 
+	 * e.g. to call constructors directly.
+	 * @param e
+	 * @return The command, null if it cannot be created.
+	 */
+	protected UICommand<T> createCommand(MenuModel.Entry e) {
+		return instantiateClass(e.command, com.taibaisoft.framework.UICommand.class);
 	}
 	
 	protected String generateRadioButtonGroupMasterAction(int counter) {
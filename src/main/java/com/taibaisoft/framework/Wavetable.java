@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014 Jeffrey Bian
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+
+package com.taibaisoft.framework;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.taibaisoft.framework.Tone.ToneType;
+
+/**
+ * One cycle of a waveform in a table of SIZE samples, read with a fixed-point
+ * phase accumulator: the top BITS bits of an int phase index the table, and the
+ * phase wraps around by overflowing.
+ * 
+ * SQUARE and TRIANGLE are summed from their odd harmonics below the Nyquist
+ * frequency, with one table per octave of pitch so that high notes do not alias.
+ * The tables are built from a sine table when first asked for a type and sample
+ * rate, and shared by every user.
+ * 
+ * @author jeffreybian
+ *
+ */
+public final class Wavetable {
+	public static final int BITS = 11;
+	public static final int SIZE = 1 << BITS;
+	/** Gain of mix() that adds the table values unscaled. */
+	public static final int UNITY = 1 << 15;
+	private static final int SHIFT = 32 - BITS;
+	/* A table cannot hold harmonics above SIZE / 2 */
+	private static final int OCTAVES = BITS;
+	private static final double[] SINE = new double[SIZE];
+	static {
+		for (int i = 0; i < SIZE; ++i) {
+			SINE[i] = Math.sin(2 * Math.PI * i / SIZE);
+		}
+	}
+	private static final Map<String, Wavetable> cache_ = new HashMap<String, Wavetable>();
+	
+	private final ToneType type_;
+	private final int sampleRate_;
+	/** Octave k holds the harmonics up to 2^k, SINE only has one. */
+	private final short[][] octaves_;
+	
+	/**
+	 * @param type
+	 * @param sampleRate
+	 * @return The shared tables of the type for the sample rate.
+	 */
+	public static synchronized Wavetable get(ToneType type, int sampleRate) {
+		String key = type + "@" + sampleRate;
+		Wavetable w = cache_.get(key);
+		if (w == null) {
+			w = new Wavetable(type, sampleRate);
+			cache_.put(key, w);
+		}
+		return w;
+	}
+	private Wavetable(ToneType type, int sampleRate) {
+		type_ = type;
+		sampleRate_ = sampleRate;
+		octaves_ = new short[type == ToneType.SINE ? 1 : OCTAVES][];
+		for (int k = 0; k < octaves_.length; ++k) {
+			octaves_[k] = build(k);
+		}
+	}
+	public ToneType getType() {
+		return type_;
+	}
+	public int getSampleRate() {
+		return sampleRate_;
+	}
+	
+	/**
+	 * @param frequency In Hz.
+	 * @return The phase step per sample.
+	 */
+	public int increment(double frequency) {
+		return (int) Math.round(frequency / sampleRate_ * 4294967296.0);
+	}
+	/**
+	 * @param frequency In Hz.
+	 * @return The table for the pitch, with no harmonic above the Nyquist frequency.
+	 */
+	public short[] table(double frequency) {
+		int k = 0;
+		double harmonics = sampleRate_ / 2.0 / frequency;
+		while (k + 1 < octaves_.length && (1 << (k + 1)) <= harmonics) {
+			++k;
+		}
+		return octaves_[k];
+	}
+	
+	/**
+	 * Adds n samples of the wave to mix, scaled by gain / UNITY.
+	 * @param mix
+	 * @param off First sample of mix to add to.
+	 * @param n
+	 * @param frequency In Hz.
+	 * @param phase Phase of the first sample.
+	 * @param gain
+	 * @return The phase of the sample after the last one, to carry on from.
+	 */
+	public int mix(int[] mix, int off, int n, double frequency, int phase, int gain) {
+		final short[] t = table(frequency);
+		final int inc = increment(frequency);
+		for (int i = off, end = off + n; i < end; ++i) {
+			mix[i] += (t[phase >>> SHIFT] * gain) >> 15;
+			phase += inc;
+		}
+		return phase;
+	}
+	
+	private short[] build(int k) {
+		double[] w = new double[SIZE];
+		if (type_ == ToneType.SINE) {
+			System.arraycopy(SINE, 0, w, 0, SIZE);
+		} else {
+			int top = 1 << k;
+			for (int n = 1; n <= top; n += 2) {
+				// Square: sin(nx) / n, triangle: alternating sin(nx) / n^2
+				double a = type_ == ToneType.SQUARE ? 1.0 / n : ((n & 2) == 0 ? 1.0 : -1.0) / ((double) n * n);
+				for (int i = 0; i < SIZE; ++i) {
+					w[i] += a * SINE[(int) (((long) n * i) & (SIZE - 1))];
+				}
+			}
+		}
+		double peak = 0;
+		for (double x : w) {
+			peak = Math.max(peak, Math.abs(x));
+		}
+		short[] t = new short[SIZE];
+		for (int i = 0; i < SIZE; ++i) {
+			t[i] = (short) Math.round(w[i] / peak * Short.MAX_VALUE);
+		}
+		return t;
+	}
+}